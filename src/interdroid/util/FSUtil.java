@@ -31,6 +31,10 @@
 package interdroid.util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 /**
  * A utility class for dealing with file systems.
@@ -78,4 +82,32 @@ public final class FSUtil {
 		return directory.delete();
 	}
 
+	/**
+	 * Copy a file.
+	 * @param source the file to copy
+	 * @param target the file to copy to
+	 * @throws IOException if reading or writing fails
+	 */
+	public static void copyFile(final File source, final File target)
+			throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(target);
+			try {
+				FileChannel inChannel = in.getChannel();
+				FileChannel outChannel = out.getChannel();
+				long size = inChannel.size();
+				long position = 0;
+				while (position < size) {
+					position += inChannel.transferTo(position,
+							size - position, outChannel);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 }
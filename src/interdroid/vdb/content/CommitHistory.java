@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content;
+
+import interdroid.vdb.content.EntityUriMatcher.UriMatch;
+import interdroid.vdb.persistence.api.CommitInfo;
+import interdroid.vdb.persistence.api.VdbRepository;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+/**
+ * Serves the history of a reference as a cursor. History URIs take the
+ * form content://authority/repository_name/history/reference and accept
+ * the {@link #QUERY_OFFSET} and {@link #QUERY_LIMIT} query parameters to
+ * select a page, newest commit first.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class CommitHistory {
+	/**
+	 * The row number of the commit within the history.
+	 */
+	public static final String ID = "_id";
+
+	/**
+	 * The sha1 of the commit.
+	 */
+	public static final String SHA1 = "sha1";
+
+	/**
+	 * The sha1 of the parents of the commit, separated by spaces.
+	 */
+	public static final String PARENTS = "parents";
+
+	/**
+	 * The commit time in seconds since the epoch.
+	 */
+	public static final String COMMIT_TIME = "commit_time";
+
+	/**
+	 * The generation of the commit, 1 for a root commit.
+	 */
+	public static final String GENERATION = "generation";
+
+	/**
+	 * The name of the author.
+	 */
+	public static final String AUTHOR_NAME = "author_name";
+
+	/**
+	 * The email of the author.
+	 */
+	public static final String AUTHOR_EMAIL = "author_email";
+
+	/**
+	 * The first line of the commit message.
+	 */
+	public static final String MESSAGE = "message";
+
+	/**
+	 * The query parameter giving the number of commits to skip.
+	 */
+	public static final String QUERY_OFFSET = "offset";
+
+	/**
+	 * The query parameter giving the maximum number of commits.
+	 */
+	public static final String QUERY_LIMIT = "limit";
+
+	/**
+	 * The number of commits returned if no limit is given.
+	 */
+	public static final int DEFAULT_LIMIT = 50;
+
+	/**
+	 * All columns in their default order.
+	 */
+	private static final List<String> COLUMNS = Arrays.asList(ID, SHA1,
+			PARENTS, COMMIT_TIME, GENERATION, AUTHOR_NAME, AUTHOR_EMAIL,
+			MESSAGE);
+
+	/**
+	 * Utility classes can not be constructed.
+	 */
+	private CommitHistory() { }
+
+	/**
+	 * Queries a page of history.
+	 * @param repository the repository to read history from
+	 * @param uri the history uri
+	 * @param match the match for the uri
+	 * @param projection the columns to return or null for all columns
+	 * @return a cursor over the page
+	 */
+	/* package */ static Cursor query(final VdbRepository repository,
+			final Uri uri, final UriMatch match, final String[] projection) {
+		String[] columns = projection;
+		if (columns == null) {
+			columns = COLUMNS.toArray(new String[COLUMNS.size()]);
+		}
+		int[] indexes = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			indexes[i] = COLUMNS.indexOf(columns[i]);
+			if (indexes[i] < 0) {
+				throw new IllegalArgumentException("Unknown column: "
+						+ columns[i]);
+			}
+		}
+
+		int offset = getParameter(uri, QUERY_OFFSET, 0);
+		int limit = getParameter(uri, QUERY_LIMIT, DEFAULT_LIMIT);
+		List<CommitInfo> page;
+		try {
+			page = repository.getHistory(match.reference, offset, limit);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read history.", e);
+		}
+
+		MatrixCursor cursor = new MatrixCursor(columns, page.size());
+		Object[] row = new Object[columns.length];
+		int id = offset;
+		for (CommitInfo commit : page) {
+			for (int i = 0; i < indexes.length; i++) {
+				row[i] = getValue(commit, indexes[i], id);
+			}
+			cursor.addRow(row);
+			id++;
+		}
+		return cursor;
+	}
+
+	/**
+	 * Returns the value of a column for a commit.
+	 * @param commit the commit
+	 * @param column the index of the column in {@link #COLUMNS}
+	 * @param id the row number of the commit
+	 * @return the value
+	 */
+	private static Object getValue(final CommitInfo commit, final int column,
+			final int id) {
+		switch (column) {
+		case 0:
+			return id;
+		case 1:
+			return commit.getId();
+		case 2:
+			return TextUtils.join(" ", commit.getParents());
+		case 3:
+			return commit.getCommitTime();
+		case 4:
+			return commit.getGeneration();
+		case 5:
+			return commit.getAuthorName();
+		case 6:
+			return commit.getAuthorEmail();
+		default:
+			return commit.getMessage();
+		}
+	}
+
+	/**
+	 * Reads a non negative number from a query parameter.
+	 * @param uri the uri to read from
+	 * @param name the name of the parameter
+	 * @param defaultValue the value if the parameter is not given
+	 * @return the value of the parameter
+	 */
+	private static int getParameter(final Uri uri, final String name,
+			final int defaultValue) {
+		String value = uri.getQueryParameter(name);
+		if (TextUtils.isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			int result = Integer.parseInt(value);
+			if (result >= 0) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below.
+		}
+		throw new IllegalArgumentException("Invalid " + name + ": " + value);
+	}
+}
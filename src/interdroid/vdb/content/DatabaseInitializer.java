@@ -38,11 +38,13 @@ import interdroid.vdb.persistence.api.VdbInitializer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 /**
@@ -159,18 +161,7 @@ public class DatabaseInitializer implements VdbInitializer {
 				} else {
 					firstField = false;
 				}
-				createSql.append(
-						GenericContentProvider.sanitize(field.fieldName));
-				createSql.append(' ');
-				createSql.append(DatabaseFieldType.INTEGER);
-				createSql.append(" REFERENCES ");
-				createSql.append(
-						GenericContentProvider.escapeName(mNamespace,
-								field.targetEntity));
-				createSql.append('(');
-				createSql.append(GenericContentProvider.sanitize(field.targetField.fieldName));
-				createSql.append(')');
-				createSql.append(" DEFERRABLE");
+				appendColumn(createSql, field);
 				LOG.debug("Create SQL now: {}", createSql);
 				break;
 			default:
@@ -179,20 +170,7 @@ public class DatabaseInitializer implements VdbInitializer {
 				} else {
 					firstField = false;
 				}
-				createSql.append(GenericContentProvider.sanitize(
-						field.fieldName));
-				createSql.append(' ');
-				createSql.append(field.dbTypeName());
-				if (field.targetEntity != null) {
-					createSql.append(" REFERENCES ");
-					createSql.append(
-							GenericContentProvider.escapeName(mNamespace,
-									field.targetEntity));
-					createSql.append('(');
-					createSql.append(GenericContentProvider.sanitize(
-							field.targetField.fieldName));
-					createSql.append(") DEFERRABLE");
-				}
+				appendColumn(createSql, field);
 				LOG.debug("Create SQL Default: {}",
 						createSql);
 				break;
@@ -243,12 +221,204 @@ public class DatabaseInitializer implements VdbInitializer {
 		built.put(entity.name(), entity.name());
 	}
 
+	/**
+	 * Appends the definition of the column for a field.
+	 * @param sql the statement to append to
+	 * @param field the field to define the column for
+	 */
+	private void appendColumn(final StringBuilder sql,
+			final FieldInfo field) {
+		sql.append(GenericContentProvider.sanitize(field.fieldName));
+		sql.append(' ');
+		if (field.dbType == DatabaseFieldType.ONE_TO_ONE) {
+			sql.append(DatabaseFieldType.INTEGER);
+		} else {
+			sql.append(field.dbTypeName());
+		}
+		if (field.targetEntity != null) {
+			sql.append(" REFERENCES ");
+			sql.append(GenericContentProvider.escapeName(mNamespace,
+					field.targetEntity));
+			sql.append('(');
+			sql.append(GenericContentProvider.sanitize(
+					field.targetField.fieldName));
+			sql.append(") DEFERRABLE");
+		}
+	}
+
+	/**
+	 * Updates a database built for the old metadata in place, if this
+	 * metadata only adds to it. New fields are added to their tables with
+	 * ALTER TABLE, new tables are created and new enumeration values are
+	 * inserted. Existing rows get no value for the new fields, just as
+	 * with updateCopy. Nothing is changed if the metadata removes or
+	 * changes anything, in which case the database has to be copied.
+	 * Columns which the tables already have are skipped, so an update
+	 * whose schema was not recorded can be run again.
+	 * The caller should run this in a transaction.
+	 * @param db the database to update
+	 * @param masterMetadata the metadata of the database
+	 * @return the number of tables which were changed or -1 if the
+	 * database has to be copied.
+	 */
+	public final int updateInPlace(final SQLiteDatabase db,
+			final Metadata masterMetadata) {
+		for (EntityInfo other : masterMetadata.getEntities()) {
+			if (mDbMetadata.getEntity(other.name()) == null) {
+				LOG.debug("Entity removed: {}", other.name());
+				return -1;
+			}
+		}
+
+		// Plan everything before changing anything.
+		ArrayList<String> alterSql = new ArrayList<String>();
+		ArrayList<EntityInfo> enums = new ArrayList<EntityInfo>();
+		HashMap<String, String> built = new HashMap<String, String>();
+		int tables = 0;
+		for (EntityInfo entity : mDbMetadata.getEntities()) {
+			EntityInfo other = masterMetadata.getEntity(entity.name());
+			if (other != null) {
+				int altered = alterSql.size();
+				if (!planAlter(db, entity, other, alterSql)) {
+					return -1;
+				}
+				if (entity.enumValues != null
+						&& !entity.enumValues.equals(other.enumValues)) {
+					enums.add(entity);
+				}
+				if (altered != alterSql.size()
+						|| enums.contains(entity)) {
+					tables++;
+				}
+				built.put(entity.name(), entity.name());
+			}
+		}
+
+		for (String sql : alterSql) {
+			LOG.debug("Altering: {}", sql);
+			db.execSQL(sql);
+		}
+		for (EntityInfo entity : enums) {
+			for (Integer ordinal : entity.enumValues.keySet()) {
+				db.execSQL("INSERT OR REPLACE INTO "
+						+ GenericContentProvider.escapeName(mNamespace, entity)
+						+ " (_id, _value) VALUES (?, ?)",
+						new Object[] {ordinal, entity.enumValues.get(ordinal)});
+			}
+		}
+		for (EntityInfo entity : mDbMetadata.getEntities()) {
+			if (!built.containsKey(entity.name())) {
+				tables++;
+				buildTables(db, entity, built);
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Plans the ALTER TABLE statements which turn the table of the old
+	 * entity into the table of the new one.
+	 * @param db the database holding the table
+	 * @param entity the new entity
+	 * @param other the old entity
+	 * @param alterSql the list to add the statements to
+	 * @return false if the table can not be altered in place
+	 */
+	private boolean planAlter(final SQLiteDatabase db,
+			final EntityInfo entity, final EntityInfo other,
+			final ArrayList<String> alterSql) {
+		if (entity.key.size() != other.key.size()) {
+			return false;
+		}
+		for (int i = 0; i < entity.key.size(); i++) {
+			if (!entity.key.get(i).fieldName.equals(
+					other.key.get(i).fieldName)) {
+				return false;
+			}
+		}
+		for (FieldInfo otherField : other.getFields()) {
+			if (!entity.fields.containsKey(otherField.fieldName)) {
+				LOG.debug("Field removed: {}", otherField.fieldName);
+				return false;
+			}
+		}
+
+		HashSet<String> columns = getColumns(db, entity);
+		for (FieldInfo field : entity.getFields()) {
+			FieldInfo otherField = other.fields.get(field.fieldName);
+			if (otherField != null) {
+				if (field.dbType != otherField.dbType
+						|| !sameTarget(field, otherField)) {
+					LOG.debug("Field changed: {}", field.fieldName);
+					return false;
+				}
+			} else if (columns.contains(
+					GenericContentProvider.sanitize(field.fieldName))) {
+				LOG.debug("Column already added: {}", field.fieldName);
+			} else if (field.dbType != DatabaseFieldType.ONE_TO_MANY_INT
+					&& field.dbType != DatabaseFieldType.ONE_TO_MANY_STRING) {
+				StringBuilder sql = new StringBuilder("ALTER TABLE ");
+				sql.append(GenericContentProvider.escapeName(mNamespace,
+						entity));
+				sql.append(" ADD COLUMN ");
+				appendColumn(sql, field);
+				alterSql.add(sql.toString());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param db the database holding the table
+	 * @param entity the entity of the table
+	 * @return the quoted names of the columns the table has
+	 */
+	private HashSet<String> getColumns(final SQLiteDatabase db,
+			final EntityInfo entity) {
+		HashSet<String> columns = new HashSet<String>();
+		Cursor c = db.rawQuery("PRAGMA table_info("
+				+ GenericContentProvider.escapeName(mNamespace, entity)
+				+ ")", null);
+		try {
+			int nameIndex = c.getColumnIndexOrThrow("name");
+			while (c.moveToNext()) {
+				columns.add(GenericContentProvider.sanitize(
+						c.getString(nameIndex)));
+			}
+		} finally {
+			c.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * @param field the new field
+	 * @param otherField the old field
+	 * @return true if both fields refer to the same entity, or to none
+	 */
+	private boolean sameTarget(final FieldInfo field,
+			final FieldInfo otherField) {
+		if (field.targetEntity == null || otherField.targetEntity == null) {
+			return field.targetEntity == otherField.targetEntity;
+		}
+		return field.targetEntity.name().equals(
+				otherField.targetEntity.name());
+	}
+
 	@Override
 	public final String getSchema() {
 		return mSchema;
 	}
 
-	public void updateCopy(SQLiteDatabase updateDb, Metadata masterMetadata) {
+	/**
+	 * Copies all data from the database attached as old to the given
+	 * database in one statement per table. Fields which do not exist in
+	 * the old metadata are left empty.
+	 * @param updateDb the database to copy into, with the old one attached
+	 * @param masterMetadata the metadata of the old database
+	 */
+	public final void updateCopy(final SQLiteDatabase updateDb,
+			final Metadata masterMetadata) {
 		// Keep track of what has been copied as we go so as not to duplicate
 		HashMap<String, String> built = new HashMap<String, String>();
 
@@ -262,9 +432,16 @@ public class DatabaseInitializer implements VdbInitializer {
 		}
 	}
 
-	private void updateCopyImpl(EntityInfo entity, SQLiteDatabase updateDb,
-			Metadata masterMetadata,
-			HashMap<String, String> built) {
+	/**
+	 * Copies the data for an entity and the entities it refers to.
+	 * @param entity the entity to copy
+	 * @param updateDb the database to copy into
+	 * @param masterMetadata the metadata of the old database
+	 * @param built the hash of already copied tables
+	 */
+	private void updateCopyImpl(final EntityInfo entity,
+			final SQLiteDatabase updateDb, final Metadata masterMetadata,
+			final HashMap<String, String> built) {
 		LOG.debug("Copying entity: {}", entity.name())
 		;
 		if (built.containsKey(entity.name())) {
@@ -306,6 +483,9 @@ public class DatabaseInitializer implements VdbInitializer {
 				// then do this table.
 				updateCopyImpl(field.targetEntity, updateDb,
 						masterMetadata, built);
+				if (otherFields.containsKey(field.fieldName)) {
+					copyFields.add(field.fieldName);
+				}
 				break;
 			default:
 				// Check if the field existed in the old metadata
@@ -317,32 +497,24 @@ public class DatabaseInitializer implements VdbInitializer {
 			}
 		}
 
-		// Prepare the INSERT copying SQL
-		StringBuffer insertSql = new StringBuffer();
-		insertSql.append("INSERT INTO ");
-		insertSql.append(entity.name());
-		insertSql.append(" VALUES (");
-		StringBuffer selectSql = new StringBuffer();
-		selectSql.append("SELECT ");
-
-		boolean first = true;
-		for (String field : copyFields) {
-			if (!first) {
-				insertSql.append(", ");
-				selectSql.append(", ");
-			} else {
-				first = false;
+		// Prepare the INSERT copying SQL. Enumerations are already filled
+		// in by onCreate so rows with the same key are replaced.
+		if (other != null && !copyFields.isEmpty()) {
+			StringBuffer fields = new StringBuffer();
+			for (String field : copyFields) {
+				if (fields.length() > 0) {
+					fields.append(", ");
+				}
+				fields.append(GenericContentProvider.sanitize(field));
 			}
-			insertSql.append(field);
-			selectSql.append(field);
-		}
-		insertSql.append(") ");
-		selectSql.append(" FROM old.");
-		selectSql.append(entity.name());
-		insertSql.append(selectSql.toString());
+			String insertSql = "INSERT OR REPLACE INTO "
+					+ GenericContentProvider.escapeName(mNamespace, entity)
+					+ " (" + fields + ") SELECT " + fields + " FROM old."
+					+ GenericContentProvider.escapeName(mNamespace, other);
 
-		LOG.debug("Insert SQL: {}", insertSql.toString());
-		updateDb.execSQL(insertSql.toString());
+			LOG.debug("Insert SQL: {}", insertSql);
+			updateDb.execSQL(insertSql);
+		}
 
 		// Now process any remaining children
 		for (EntityInfo child : children) {
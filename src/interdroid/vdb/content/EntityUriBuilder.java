@@ -144,6 +144,26 @@ public final class EntityUriBuilder {
 				MatchType.COMMIT.toString() + "/" + sha1);
 	}
 
+	/**
+	 * Returns a URI for a page of the history of a reference.
+	 * @param authority the authority for the repository
+	 * @param repoName the repository name
+	 * @param reference the branch name, remote branch name or sha1
+	 * @param offset the number of commits to skip
+	 * @param limit the maximum number of commits
+	 * @return a URI
+	 */
+	public static Uri historyUri(final String authority, final String repoName,
+			final String reference, final int offset, final int limit) {
+		return Uri.withAppendedPath(repositoryUri(authority, repoName),
+				MatchType.HISTORY.toString() + "/" + reference).buildUpon()
+				.appendQueryParameter(CommitHistory.QUERY_OFFSET,
+						String.valueOf(offset))
+				.appendQueryParameter(CommitHistory.QUERY_LIMIT,
+						String.valueOf(limit))
+				.build();
+	}
+
 	/**
 	 * Converts an internal URI for the given native URI.
 	 * @param uri the native URI to convert
@@ -69,7 +69,9 @@ public final class EntityUriMatcher {
 		/** For a remote master "remote" is required. */
 		REMOTE("remote"),
 		/** For a remote branch "remote-branches" is required. */
-		REMOTE_BRANCH("remote-branches");
+		REMOTE_BRANCH("remote-branches"),
+		/** For the history of a reference "history" is required. */
+		HISTORY("history");
 
 		/**
 		 * The short string for this match type.
@@ -276,6 +278,7 @@ public final class EntityUriMatcher {
 	 *                                              [entity/id]+[/entity]?
 	 * content://authority/repository_name/commits/sha1/entity
 	 * content://authority/repository_name/commits/sha1/[entity/id]+[/entity]?
+	 * content://authority/repository_name/history/reference
 	 */
 	/**
 	 * Returns a match for the given URI.
@@ -311,6 +314,18 @@ public final class EntityUriMatcher {
 		}
 
 		switch(match.type) {
+		case HISTORY:
+			if (!pathIterator.hasNext()) {
+				throw new IllegalArgumentException(
+						"Unknown URI, no reference. " + uri);
+			}
+			// The rest of the path is the reference, which may hold slashes.
+			StringBuilder reference = new StringBuilder(pathIterator.next());
+			while (pathIterator.hasNext()) {
+				reference.append('/').append(pathIterator.next());
+			}
+			match.reference = reference.toString();
+			return match;
 		case COMMIT:
 		case LOCAL_BRANCH:
 		case REMOTE:
@@ -31,13 +31,17 @@
 package interdroid.vdb.content;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import interdroid.util.DbUtil;
+import interdroid.vdb.content.EntityUriMatcher.MatchType;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 import interdroid.vdb.content.metadata.EntityInfo;
+import interdroid.vdb.content.metadata.FieldInfo;
 import interdroid.vdb.content.metadata.Metadata;
 import interdroid.vdb.persistence.api.VdbCheckout;
 import interdroid.vdb.persistence.api.VdbInitializer;
@@ -45,9 +49,13 @@ import interdroid.vdb.persistence.api.VdbRepository;
 import interdroid.vdb.persistence.api.VdbRepositoryRegistry;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -77,6 +85,17 @@ public abstract class GenericContentProvider extends ContentProvider {
 	 */
 	public static final String PARENT_COLUMN_PREFIX = SEPARATOR + "parent";
 
+	/**
+	 * The size used for estimating numeric values.
+	 */
+	private static final int LONG_SIZE = 8;
+
+	/**
+	 * The batch running on the current thread, if any.
+	 */
+	private final ThreadLocal<WriteBatch> mBatch =
+			new ThreadLocal<WriteBatch>();
+
 	/**
 	 * The metadata for this content provider.
 	 */
@@ -243,14 +262,176 @@ public abstract class GenericContentProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * @param uri the uri to write to
+	 * @param result the match result for that uri
+	 * @return a checkout for the uri / match which can be written to
+	 */
+	private VdbCheckout getWriteCheckoutFor(final Uri uri,
+			final UriMatch result) {
+		if (result.isCheckout() && result.isReadOnlyCheckout()) {
+			throw new RuntimeException("Checkout is read only: " + uri);
+		}
+		return getCheckoutFor(uri, result);
+	}
+
+	/**
+	 * Releases a checkout returned by {@link #getCheckoutFor} once it is
+	 * no longer used. Only checkouts of commits have to be released.
+	 * @param result the match result the checkout was returned for
+	 * @param checkout the checkout
+	 */
+	private void releaseCheckoutFor(final UriMatch result,
+			final VdbCheckout checkout) {
+		if (result.isReadOnlyCheckout()) {
+			mVdbRepo.releaseCommit(checkout);
+		}
+	}
+
 	@Override
 	public final Uri insert(final Uri uri, final ContentValues userValues) {
-		Uri returnUri = null;
-
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Inserting into: " + uri);
 		}
 		final UriMatch result = EntityUriMatcher.getMatch(uri);
+		final EntityInfo entityInfo = getInsertEntity(uri, result);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Got info: " + entityInfo.name());
+			LOG.debug("Getting checkout for: " + uri);
+		}
+		VdbCheckout vdbBranch = getWriteCheckoutFor(uri, result);
+		ContentValues values = prepareInsert(result, entityInfo, userValues);
+
+		WriteBatch batch = mBatch.get();
+		if (batch != null) {
+			Uri returnUri = insertRow(uri, entityInfo,
+					batch.getDatabase(vdbBranch), values, batch);
+			batch.changed(vdbBranch, uri, 1, estimateSize(values));
+			return returnUri;
+		}
+
+		SQLiteDatabase db;
+		try {
+			db = vdbBranch.getReadWriteDatabase();
+		} catch (IOException e) {
+			throw new RuntimeException("getReadWriteDatabase failed", e);
+		}
+
+		Uri returnUri;
+		try {
+			returnUri = insertRow(uri, entityInfo, db, values, null);
+		} finally {
+			vdbBranch.releaseDatabase();
+		}
+		vdbBranch.markDirty(1, estimateSize(values));
+		getContext().getContentResolver().notifyChange(returnUri, null);
+
+		return returnUri;
+	}
+
+	/**
+	 * Inserts all rows in a single transaction using a compiled
+	 * statement, sending a single change notification when done.
+	 * @param uri the uri to insert into
+	 * @param allValues the rows to insert
+	 * @return the number of rows inserted
+	 */
+	@Override
+	public final int bulkInsert(final Uri uri,
+			final ContentValues[] allValues) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Bulk inserting " + allValues.length + " into: " + uri);
+		}
+		final UriMatch result = EntityUriMatcher.getMatch(uri);
+		final EntityInfo entityInfo = getInsertEntity(uri, result);
+		VdbCheckout vdbBranch = getWriteCheckoutFor(uri, result);
+
+		WriteBatch batch = beginBatch();
+		boolean successful = false;
+		try {
+			WriteBatch current = mBatch.get();
+			SQLiteDatabase db = current.getDatabase(vdbBranch);
+			for (ContentValues userValues : allValues) {
+				ContentValues values =
+						prepareInsert(result, entityInfo, userValues);
+				insertRow(uri, entityInfo, db, values, current);
+				current.changed(vdbBranch, uri, 1, estimateSize(values));
+			}
+			successful = true;
+		} finally {
+			endBatch(batch, successful);
+		}
+		return allValues.length;
+	}
+
+	/**
+	 * Applies all operations in a single transaction per checkout.
+	 * Inserts use compiled statements and change notifications are sent
+	 * once per uri after all operations were applied. If an operation
+	 * fails none of the operations take effect.
+	 * @param operations the operations to apply
+	 * @return the results of the operations
+	 * @throws OperationApplicationException if an operation fails
+	 */
+	@Override
+	public final ContentProviderResult[] applyBatch(
+			final ArrayList<ContentProviderOperation> operations)
+					throws OperationApplicationException {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Applying batch of " + operations.size());
+		}
+		WriteBatch batch = beginBatch();
+		boolean successful = false;
+		try {
+			ContentProviderResult[] results =
+					new ContentProviderResult[operations.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = operations.get(i).apply(this, results, i);
+			}
+			successful = true;
+			return results;
+		} finally {
+			endBatch(batch, successful);
+		}
+	}
+
+	/**
+	 * Starts a batch for the current thread unless one is running.
+	 * @return the new batch or null if a batch was already running
+	 */
+	private WriteBatch beginBatch() {
+		if (mBatch.get() != null) {
+			return null;
+		}
+		WriteBatch batch = new WriteBatch();
+		mBatch.set(batch);
+		return batch;
+	}
+
+	/**
+	 * Finishes a batch started with {@link #beginBatch()}.
+	 * @param batch the batch or null if it was nested
+	 * @param successful true if all writes should take effect
+	 */
+	private void endBatch(final WriteBatch batch, final boolean successful) {
+		if (batch == null) {
+			return;
+		}
+		mBatch.remove();
+		ContentResolver resolver = null;
+		if (getContext() != null) {
+			resolver = getContext().getContentResolver();
+		}
+		batch.finish(successful, resolver);
+	}
+
+	/**
+	 * Finds the entity to insert into for a uri.
+	 * @param uri the uri being inserted into
+	 * @param result the match for the uri
+	 * @return the info for the entity
+	 */
+	private EntityInfo getInsertEntity(final Uri uri, final UriMatch result) {
 		if (result.entityIdentifier != null) { /* don't accept ID queries */
 			throw new IllegalArgumentException("Invalid item URI " + uri);
 		}
@@ -266,12 +447,19 @@ public abstract class GenericContentProvider extends ContentProvider {
 			throw new RuntimeException("Unable to find entity for: "
 					+ result.entityName);
 		}
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("Got info: " + entityInfo.name());
-			LOG.debug("Getting checkout for: " + uri);
-		}
-		VdbCheckout vdbBranch = getCheckoutFor(uri, result);
+		return entityInfo;
+	}
 
+	/**
+	 * Prepares the values for an insert, running the pre insert hook
+	 * and adding the parent identifier if required.
+	 * @param result the match for the uri
+	 * @param entityInfo the info for the entity
+	 * @param userValues the values given by the user or null
+	 * @return the values to insert
+	 */
+	private ContentValues prepareInsert(final UriMatch result,
+			final EntityInfo entityInfo, final ContentValues userValues) {
 		ContentValues values;
 		if (userValues != null) {
 			values = userValues;
@@ -287,49 +475,55 @@ public abstract class GenericContentProvider extends ContentProvider {
 			handler.preInsertHook(values);
 		}
 
-		SQLiteDatabase db;
-		try {
-			db = vdbBranch.getReadWriteDatabase();
-		} catch (IOException e) {
-			throw new RuntimeException("getReadWriteDatabase failed", e);
-		}
-
-		try {
+		// Do we need to include the parent identifier?
+		if (entityInfo.parentEntity != null
+				&& result.parentEntityIdentifiers != null) {
 			if (LOG.isDebugEnabled()) {
-				LOG.debug("Inserting: " + entityInfo.name() + " : "
-						+ entityInfo.key.get(0).fieldName + ":"
-						+ values.getAsString(
-								entityInfo.key.get(0).fieldName)
-								+ " : " + values.size());
-			}
-			// Do we need to include the parent identifier?
-			if (entityInfo.parentEntity != null
-					&& result.parentEntityIdentifiers != null) {
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("Adding parent id: "
-							+ entityInfo.parentEntity.key.get(0).fieldName + ":"
-							+ result.parentEntityIdentifiers.get(
-									result.parentEntityIdentifiers.size() - 1));
-				}
-				values.put(PARENT_COLUMN_PREFIX
-						+ entityInfo.parentEntity.key.get(0).fieldName,
-						result.parentEntityIdentifiers.get(
+				LOG.debug("Adding parent id: "
+						+ entityInfo.parentEntity.key.get(0).fieldName + ":"
+						+ result.parentEntityIdentifiers.get(
 								result.parentEntityIdentifiers.size() - 1));
 			}
-			long rowId = db.insert(escapeName(entityInfo),
+			values.put(PARENT_COLUMN_PREFIX
+					+ entityInfo.parentEntity.key.get(0).fieldName,
+					result.parentEntityIdentifiers.get(
+							result.parentEntityIdentifiers.size() - 1));
+		}
+		return values;
+	}
+
+	/**
+	 * Inserts a single row.
+	 * @param uri the uri being inserted into
+	 * @param entityInfo the info for the entity
+	 * @param db the database to insert into
+	 * @param values the prepared values to insert
+	 * @param batch the batch supplying compiled statements or null
+	 * @return the uri of the new row
+	 */
+	private Uri insertRow(final Uri uri, final EntityInfo entityInfo,
+			final SQLiteDatabase db, final ContentValues values,
+			final WriteBatch batch) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Inserting: " + entityInfo.name() + " : "
+					+ entityInfo.key.get(0).fieldName + ":"
+					+ values.getAsString(
+							entityInfo.key.get(0).fieldName)
+							+ " : " + values.size());
+		}
+		long rowId;
+		if (batch != null && values.size() > 0) {
+			rowId = batch.insert(db, escapeName(entityInfo), values);
+		} else {
+			rowId = db.insert(escapeName(entityInfo),
 					sanitize(entityInfo.key.get(0).fieldName),
 					DbUtil.quoteColumnNames(values));
-			if (rowId > 0) {
-				returnUri = ContentUris.withAppendedId(uri, rowId);
-				getContext().getContentResolver().notifyChange(returnUri, null);
-			} else {
-				throw new SQLException("Failed to insert row into " + uri);
-			}
-			onPostInsert(returnUri, values);
-		} finally {
-			vdbBranch.releaseDatabase();
 		}
-
+		if (rowId <= 0) {
+			throw new SQLException("Failed to insert row into " + uri);
+		}
+		Uri returnUri = ContentUris.withAppendedId(uri, rowId);
+		onPostInsert(returnUri, values);
 		return returnUri;
 	}
 
@@ -344,6 +538,30 @@ public abstract class GenericContentProvider extends ContentProvider {
 		return "\"" + fieldName.replace('"', '_') + "\"";
 	}
 
+	/**
+	 * Returns the columns a query without a projection returns. These
+	 * are the columns of the fields of the entity, so internal columns
+	 * kept by the repository in the same table are not returned.
+	 * @param entityInfo the entity being queried
+	 * @return the quoted names of the columns of the entity
+	 */
+	private static String[] getDefaultProjection(
+			final EntityInfo entityInfo) {
+		ArrayList<String> columns = new ArrayList<String>();
+		for (FieldInfo field : entityInfo.getFields()) {
+			switch (field.dbType) {
+			case ONE_TO_MANY_INT:
+			case ONE_TO_MANY_STRING:
+				// These are stored as a key in the target entity.
+				break;
+			default:
+				columns.add(sanitize(field.fieldName));
+				break;
+			}
+		}
+		return columns.toArray(new String[columns.size()]);
+	}
+
 	@Override
 	public final Cursor query(final Uri uri, final String[] projection,
 			final String selection, final String[] selectionArgs,
@@ -353,6 +571,9 @@ public abstract class GenericContentProvider extends ContentProvider {
 		}
 		// Validate the requested uri
 		final UriMatch result = EntityUriMatcher.getMatch(uri);
+		if (result.type == MatchType.HISTORY) {
+			return CommitHistory.query(mVdbRepo, uri, result, projection);
+		}
 		LOG.debug("Query for: {} {}", result.entityName,
 				getClass().getCanonicalName());
 		final EntityInfo entityInfo = mMetadata.getEntity(result);
@@ -360,8 +581,6 @@ public abstract class GenericContentProvider extends ContentProvider {
 			throw new RuntimeException("Unable to find entity for: "
 					+ result.entityName);
 		}
-		VdbCheckout vdbBranch = getCheckoutFor(uri, result);
-
 		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
 		if (result.entityIdentifier != null) {
@@ -382,11 +601,16 @@ public abstract class GenericContentProvider extends ContentProvider {
 		}
 
 		// Get the database and run the query
-		SQLiteDatabase db;
+		VdbCheckout vdbBranch = getCheckoutFor(uri, result);
+		SQLiteDatabase db = null;
 		try {
 			db = vdbBranch.getReadOnlyDatabase();
 		} catch (IOException e) {
 			throw new RuntimeException("getReadOnlyDatabase failed", e);
+		} finally {
+			if (db == null) {
+				releaseCheckoutFor(result, vdbBranch);
+			}
 		}
 
 		LOG.debug("Got database: {}", db);
@@ -402,7 +626,13 @@ public abstract class GenericContentProvider extends ContentProvider {
 					projection == null ? null : projection.length);
 			LOG.debug("Selection: {}", selection);
 			LOG.debug("SelectionArgs: {} {}", selectionArgs, selectionArgs == null ? null : selectionArgs.length);
-			Cursor c = qb.query(db, DbUtil.quoteColumnNames(projection),
+			String[] columns;
+			if (projection == null) {
+				columns = getDefaultProjection(entityInfo);
+			} else {
+				columns = DbUtil.quoteColumnNames(projection);
+			}
+			Cursor c = qb.query(db, columns,
 					selection, selectionArgs,
 					null, null, sortOrder, null);
 			LOG.debug("Got cursor: {}", c);
@@ -417,6 +647,7 @@ public abstract class GenericContentProvider extends ContentProvider {
 			// TODO: Is this release legal here or does the
 			// cursor still need it?
 			vdbBranch.releaseDatabase();
+			releaseCheckoutFor(result, vdbBranch);
 		}
 	}
 
@@ -446,10 +677,23 @@ public abstract class GenericContentProvider extends ContentProvider {
 			throw new RuntimeException("Unable to find entity for: " + uri);
 		}
 
-		VdbCheckout vdbBranch = getCheckoutFor(uri, result);
+		VdbCheckout vdbBranch = getWriteCheckoutFor(uri, result);
 
 		int count = 0;
 
+		WriteBatch batch = mBatch.get();
+		if (batch != null) {
+			count = batch.getDatabase(vdbBranch).update(
+					escapeName(entityInfo),
+					DbUtil.quoteColumnNames(values),
+					prepareWhereClause(where, result, entityInfo),
+					prepareWhereArgs(whereArgs, result, entityInfo));
+			onPostUpdate(uri, values, where, whereArgs);
+			batch.changed(vdbBranch, uri, count,
+					count * estimateSize(values));
+			return count;
+		}
+
 		SQLiteDatabase db;
 		try {
 			db = vdbBranch.getReadWriteDatabase();
@@ -467,15 +711,9 @@ public abstract class GenericContentProvider extends ContentProvider {
 		} finally {
 			vdbBranch.releaseDatabase();
 		}
-
-		/*
-		TODO: (emilian) implement auto commit support
-		try {
-			vdbBranch.commitBranch();
-		} catch(IOException e) {
-			LOG.debug(e.toString());
+		if (count > 0) {
+			vdbBranch.markDirty(count, count * estimateSize(values));
 		}
-		 */
 
 		getContext().getContentResolver().notifyChange(uri, null);
 		LOG.debug("Updated: {}", count);
@@ -592,7 +830,18 @@ public abstract class GenericContentProvider extends ContentProvider {
 			throw new RuntimeException("Unable to find entity for: "
 					+ result.entityName);
 		}
-		VdbCheckout vdbBranch = getCheckoutFor(uri, result);
+		VdbCheckout vdbBranch = getWriteCheckoutFor(uri, result);
+
+		WriteBatch batch = mBatch.get();
+		if (batch != null) {
+			int count = batch.getDatabase(vdbBranch).delete(
+					escapeName(entityInfo),
+					prepareWhereClause(where, result, entityInfo),
+					prepareWhereArgs(whereArgs, result, entityInfo));
+			onPostDelete(uri, where, whereArgs);
+			batch.changed(vdbBranch, uri, count, 0);
+			return count;
+		}
 
 		SQLiteDatabase db;
 		try {
@@ -601,18 +850,44 @@ public abstract class GenericContentProvider extends ContentProvider {
 			throw new RuntimeException("getReadWriteDatabase failed", e);
 		}
 
+		int count;
 		try {
-			int count = db.delete(escapeName(entityInfo),
+			count = db.delete(escapeName(entityInfo),
 					prepareWhereClause(where, result, entityInfo),
 					prepareWhereArgs(whereArgs, result, entityInfo));
 
 			onPostDelete(uri, where, whereArgs);
-
-			getContext().getContentResolver().notifyChange(uri, null);
-			return count;
 		} finally {
 			vdbBranch.releaseDatabase();
 		}
+		if (count > 0) {
+			vdbBranch.markDirty(count, 0);
+		}
+
+		getContext().getContentResolver().notifyChange(uri, null);
+		return count;
+	}
+
+	/**
+	 * Estimates the number of bytes a set of values adds to the database.
+	 * @param values the values to estimate
+	 * @return the estimated size in bytes
+	 */
+	private static long estimateSize(final ContentValues values) {
+		long size = 0;
+		if (values != null) {
+			for (Map.Entry<String, Object> entry : values.valueSet()) {
+				Object value = entry.getValue();
+				if (value instanceof String) {
+					size += ((String) value).length();
+				} else if (value instanceof byte[]) {
+					size += ((byte[]) value).length;
+				} else {
+					size += LONG_SIZE;
+				}
+			}
+		}
+		return size;
 	}
 
 
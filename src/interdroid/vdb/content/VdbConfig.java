@@ -30,6 +30,9 @@
  */
 package interdroid.vdb.content;
 
+import interdroid.vdb.persistence.api.AutoCommitPolicy;
+import interdroid.vdb.persistence.api.ConflictConfig;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -56,12 +59,53 @@ public class VdbConfig {
 	 */
 	private static final String CONFIG_XML = "vdbconfig.xml";
 
+	/**
+	 * The attribute holding the auto commit row threshold.
+	 */
+	private static final String AUTO_COMMIT_ROWS = "autoCommitRows";
+
+	/**
+	 * The attribute holding the auto commit byte threshold.
+	 */
+	private static final String AUTO_COMMIT_BYTES = "autoCommitBytes";
+
+	/**
+	 * The attribute holding the auto commit delay in milliseconds.
+	 */
+	private static final String AUTO_COMMIT_DELAY = "autoCommitDelay";
+
+	/**
+	 * The attribute marking a repository to be initialized at startup.
+	 */
+	private static final String HOT = "hot";
+
+	/**
+	 * The attribute holding the number of threads used to initialize
+	 * hot repositories.
+	 */
+	private static final String WARMUP_THREADS = "threads";
+
+	/**
+	 * The element setting a conflict policy for a repository.
+	 */
+	private static final String CONFLICT = "conflict";
+
 	/**
 	 * The list of repositories.
 	 */
 	private final List<RepositoryConf> repositories =
 			new ArrayList<RepositoryConf>();
 
+	/**
+	 * The auto commit policy for repositories which do not set one.
+	 */
+	private AutoCommitPolicy mAutoCommitPolicy;
+
+	/**
+	 * The number of threads used to initialize hot repositories.
+	 */
+	private int mWarmupThreads = 0;
+
 	/**
 	 * @return the list of repositories.
 	 */
@@ -69,6 +113,46 @@ public class VdbConfig {
 		return repositories;
 	}
 
+	/**
+	 * @return the default auto commit policy or null if none is configured.
+	 */
+	public final AutoCommitPolicy getAutoCommitPolicy() {
+		return mAutoCommitPolicy;
+	}
+
+	/**
+	 * @return the number of threads used to initialize hot repositories
+	 * or 0 if none is configured.
+	 */
+	public final int getWarmupThreads() {
+		return mWarmupThreads;
+	}
+
+	/**
+	 * Parses the auto commit attributes of the current tag.
+	 * @param xpp the parser
+	 * @return the policy or null if no attributes were given
+	 * @throws XmlPullParserException if an attribute is not a number
+	 */
+	private static AutoCommitPolicy parseAutoCommit(final XmlPullParser xpp)
+			throws XmlPullParserException {
+		String rows = xpp.getAttributeValue(null, AUTO_COMMIT_ROWS);
+		String bytes = xpp.getAttributeValue(null, AUTO_COMMIT_BYTES);
+		String delay = xpp.getAttributeValue(null, AUTO_COMMIT_DELAY);
+		if (rows == null && bytes == null && delay == null) {
+			return null;
+		}
+		try {
+			return new AutoCommitPolicy(
+					rows == null ? 0 : Integer.parseInt(rows),
+					bytes == null ? 0 : Long.parseLong(bytes),
+					delay == null ? 0 : Long.parseLong(delay));
+		} catch (NumberFormatException e) {
+			throw new XmlPullParserException(
+					"Invalid auto commit threshold: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * A class to represent the information for a repository.
 	 * This class supports both ORM and Avro based repositories.
@@ -89,6 +173,18 @@ public class VdbConfig {
 		 * The avro schema for the repository if there is one.
 		 */
 		private String mAvroSchema = null;
+		/**
+		 * The auto commit policy for the repository if there is one.
+		 */
+		private AutoCommitPolicy mAutoCommitPolicy = null;
+		/**
+		 * Should the repository be initialized at startup.
+		 */
+		private boolean mHot = false;
+		/**
+		 * The conflict policies for the repository.
+		 */
+		private final ConflictConfig mConflictConfig = new ConflictConfig();
 
 		/**
 		 * Can only be constructed with no arguments here.
@@ -143,12 +239,48 @@ public class VdbConfig {
 				throw new XmlPullParserException("Missing mandatory attributes"
 						+ " for repository.");
 			}
+			obj.mAutoCommitPolicy = parseAutoCommit(xpp);
+			obj.mHot = Boolean.parseBoolean(
+					xpp.getAttributeValue(/* namespace */ null, HOT));
+			int eventType = xpp.next();
+			while (eventType != XmlPullParser.END_TAG) {
+				if (eventType == XmlPullParser.START_TAG
+						&& CONFLICT.equals(xpp.getName())) {
+					obj.parseConflict(xpp);
+				} else if (eventType != XmlPullParser.TEXT) {
+					throw new XmlPullParserException(
+							"Expected end tag for Repository."
+									+ "Found " + xpp.getEventType());
+				}
+				eventType = xpp.next();
+			}
+			return obj;
+		}
+
+		/**
+		 * Parses a conflict policy for an entity or one of its fields.
+		 * @param xpp the parser positioned on the conflict tag
+		 * @throws XmlPullParserException if the parse fails
+		 * @throws IOException if IO fails
+		 */
+		private void parseConflict(final XmlPullParser xpp)
+				throws XmlPullParserException, IOException {
+			String entity = xpp.getAttributeValue(null, "entity");
+			String field = xpp.getAttributeValue(null, "field");
+			String policy = xpp.getAttributeValue(null, "policy");
+			if (entity == null || policy == null) {
+				throw new XmlPullParserException("Missing mandatory attributes"
+						+ " for conflict.");
+			}
+			if (field == null) {
+				mConflictConfig.setPolicy(entity, policy);
+			} else {
+				mConflictConfig.setPolicy(entity, field, policy);
+			}
 			if (xpp.next() != XmlPullParser.END_TAG) {
 				throw new XmlPullParserException(
-						"Expected end tag for Repository."
-								+ "Found " + xpp.getEventType());
+						"Expected end tag for conflict.");
 			}
-			return obj;
 		}
 
 		/**
@@ -172,6 +304,28 @@ public class VdbConfig {
 			return mAvroSchema;
 		}
 
+		/**
+		 * @return the auto commit policy or null if none is configured
+		 */
+		public final AutoCommitPolicy getAutoCommitPolicy() {
+			return mAutoCommitPolicy;
+		}
+
+		/**
+		 * @return true if the repository should be initialized at startup
+		 * instead of on first use.
+		 */
+		public final boolean isHot() {
+			return mHot;
+		}
+
+		/**
+		 * @return the conflict policies for the repository
+		 */
+		public final ConflictConfig getConflictConfig() {
+			return mConflictConfig;
+		}
+
 	}
 
 	/**
@@ -200,6 +354,26 @@ public class VdbConfig {
 					if ("repository".equals(xpp.getName())) {
 						repositories.add(
 								RepositoryConf.parseFromStartTag(xpp));
+					} else if ("autocommit".equals(xpp.getName())) {
+						mAutoCommitPolicy = parseAutoCommit(xpp);
+						if (xpp.next() != XmlPullParser.END_TAG) {
+							throw new XmlPullParserException(
+									"Expected end tag for autocommit.");
+						}
+					} else if ("warmup".equals(xpp.getName())) {
+						try {
+							mWarmupThreads = Integer.parseInt(
+									xpp.getAttributeValue(null,
+											WARMUP_THREADS));
+						} catch (NumberFormatException e) {
+							throw new XmlPullParserException(
+									"Invalid warmup threads: "
+											+ e.getMessage());
+						}
+						if (xpp.next() != XmlPullParser.END_TAG) {
+							throw new XmlPullParserException(
+									"Expected end tag for warmup.");
+						}
 					} else {
 						throw new XmlPullParserException(
 								"Unexpected element type: "
@@ -210,6 +384,11 @@ public class VdbConfig {
 				}
 				eventType = xpp.next();
 			}
+			for (RepositoryConf conf : repositories) {
+				if (conf.mAutoCommitPolicy == null) {
+					conf.mAutoCommitPolicy = mAutoCommitPolicy;
+				}
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot open " + CONFIG_XML, e);
 		} catch (XmlPullParserException e) {
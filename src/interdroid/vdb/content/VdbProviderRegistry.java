@@ -46,6 +46,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,9 +83,16 @@ public class VdbProviderRegistry {
 
 	/**
 	 * Hash of information about the repositories we know about.
+	 * Hot repositories are initialized from several threads.
 	 */
-	private static final Map<String, RepositoryInfo> REPOS =
-			new HashMap<String, RepositoryInfo>();
+	private static final ConcurrentHashMap<String, RepositoryInfo> REPOS =
+			new ConcurrentHashMap<String, RepositoryInfo>();
+
+	/**
+	 * The maximum number of threads initializing hot repositories
+	 * if the configuration does not say.
+	 */
+	private static final int MAX_DEFAULT_WARMUP_THREADS = 4;
 
 	/**
 	 * Constant for the key of the repository name.
@@ -116,6 +127,16 @@ public class VdbProviderRegistry {
 		 */
 		private GenericContentProvider mProvider = null;
 
+		/**
+		 * Is the provider completely built.
+		 */
+		private volatile boolean mReady = false;
+
+		/**
+		 * The time it took to initialize the repository or -1.
+		 */
+		private volatile long mStartupMillis = -1;
+
 		/**
 		 * Constructs with the given configuration.
 		 * @param conf the configuration to construct with
@@ -135,6 +156,30 @@ public class VdbProviderRegistry {
 		public void setProvider(GenericContentProvider provider) {
 			mProvider = provider;
 		}
+
+		/**
+		 * @return true if the provider is completely built
+		 */
+		boolean isReady() {
+			return mReady;
+		}
+
+		/**
+		 * Marks the provider as completely built.
+		 * @param startupMillis the time it took to build
+		 */
+		void setReady(final long startupMillis) {
+			mStartupMillis = startupMillis;
+			mReady = true;
+		}
+
+		/**
+		 * @return the time it took to initialize the repository or -1
+		 * if it was not initialized yet.
+		 */
+		long getStartupMillis() {
+			return mStartupMillis;
+		}
 	}
 
 	/**
@@ -147,13 +192,17 @@ public class VdbProviderRegistry {
 
 		if (REPOS.size() == 0) {
 			LOG.debug("Initializing static repositories.");
+			long start = System.currentTimeMillis();
+			int warmupThreads = 0;
 			try {
 				VdbConfig config = new VdbConfig(context);
+				warmupThreads = config.getWarmupThreads();
 				initializeAll(config.getRepositories());
 			} catch (Exception e) {
 				// Ignore.
 				LOG.warn("Ignoring error while fetching ORM repositories.", e);
 			}
+			long configured = System.currentTimeMillis();
 
 			LOG.debug("Initializing Avro Repos.");
 			List<RepositoryConf> infos =
@@ -161,8 +210,61 @@ public class VdbProviderRegistry {
 							AvroSchemaRegistrationHandler.URI))
 							.getAllRepositories();
 			initializeAll(infos);
-			LOG.debug("All repositories registered.");
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Registered " + REPOS.size() + " repositories in "
+						+ (System.currentTimeMillis() - start)
+						+ " ms (configuration: " + (configured - start)
+						+ " ms)");
+			}
+			warmUp(warmupThreads);
+		}
+	}
+
+	/**
+	 * Initializes the hot repositories in the background. Every other
+	 * repository is initialized on first use.
+	 * @param threads the number of threads to use or 0 for the default
+	 */
+	private void warmUp(final int threads) {
+		final List<String> hot = new ArrayList<String>();
+		for (RepositoryInfo info : REPOS.values()) {
+			if (info.getConf().isHot() && !info.isReady()) {
+				hot.add(info.getConf().getName());
+			}
+		}
+		if (hot.isEmpty()) {
+			return;
+		}
+		int poolSize = threads;
+		if (poolSize <= 0) {
+			poolSize = Math.min(MAX_DEFAULT_WARMUP_THREADS,
+					Runtime.getRuntime().availableProcessors());
+		}
+		poolSize = Math.min(poolSize, hot.size());
+		LOG.debug("Warming up {} repositories.", hot.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize,
+				new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "Repository warm-up");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		for (final String name : hot) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						initByName(name);
+					} catch (RuntimeException e) {
+						LOG.warn("Error warming up repository: " + name, e);
+					}
+				}
+			});
 		}
+		// The threads go away once all repositories are initialized.
+		executor.shutdown();
 	}
 
 	/**
@@ -184,54 +286,71 @@ public class VdbProviderRegistry {
 	 */
 	public final void registerRepository(final RepositoryConf repoConf) {
 		RepositoryInfo repoInfo = new RepositoryInfo(repoConf);
-		if (!REPOS.containsKey(repoInfo.getConf().getName())) {
-			LOG.debug("Storing into repoInfos: {}", repoInfo.getConf());
-			REPOS.put(repoInfo.getConf().getName(), repoInfo);
+		if (REPOS.putIfAbsent(repoInfo.getConf().getName(), repoInfo)
+				== null) {
+			LOG.debug("Stored into repoInfos: {}", repoInfo.getConf());
 		}
 	}
 
+	/**
+	 * @param name the name of a repository or null
+	 * @return the information on the repository or null if it is unknown
+	 */
+	private static RepositoryInfo getInfo(final String name) {
+		if (name == null) {
+			return null;
+		}
+		return REPOS.get(name);
+	}
+
 	/**
 	 * Initializes the given repo.
 	 * @param context the context to work in
-	 * @param name the repository name
+	 * @param conf the repository configuration
 	 * @param initializer the initializer for the repository
 	 * @throws IOException if the repo cannot be initialized
 	 */
-	private void initializeRepo(final Context context, final String name,
-			final VdbInitializer initializer) throws IOException {
-		LOG.debug("Initializing repository: {}", name);
-		VdbRepositoryRegistry.getInstance().addRepository(context,
-				name, initializer);
+	private void initializeRepo(final Context context,
+			final RepositoryConf conf, final VdbInitializer initializer)
+					throws IOException {
+		LOG.debug("Initializing repository: {}", conf.getName());
+		VdbRepository repo = VdbRepositoryRegistry.getInstance().addRepository(
+				context, conf.getName(), initializer);
+		if (conf.getAutoCommitPolicy() != null) {
+			repo.setAutoCommitPolicy(conf.getAutoCommitPolicy());
+		}
+		if (!conf.getConflictConfig().isEmpty()) {
+			repo.setConflictConfig(conf.getConflictConfig());
+		}
 	}
 
 	/**
-	 * Builds a provider for the given repository info.
+	 * Builds a provider for the given repository info. Other threads
+	 * asking for the same repository wait until it is built.
 	 * @param context the context to work in
 	 * @param info the info on the repository
 	 * @throws IOException if there is a problem reading or writing the repo
 	 */
 	private void buildProvider(final Context context, final RepositoryInfo info)
 			throws IOException {
-		LOG.debug("Building provider for: {}", info.getConf());
+		if (info.isReady()) {
+			return;
+		}
 		try {
-			if (info.getProvider() == null) {
-				if (info.getConf().getAvroSchema() != null) {
-					info.setProvider(
-							new AvroContentProvider(info.getConf().getAvroSchema()));
-				} else {
-					info.setProvider((GenericContentProvider)
-							Class.forName(
-									info.getConf().getContentProvider())
-									.newInstance());
+			synchronized (info) {
+				// The provider is set while attaching so a provider
+				// asking for its own repository does not build it again.
+				if (info.getProvider() == null) {
+					boolean built = false;
+					try {
+						buildProviderImpl(context, info);
+						built = true;
+					} finally {
+						if (!built) {
+							info.setProvider(null);
+						}
+					}
 				}
-				initializeRepo(mContext, info.getConf().getName(),
-						info.getProvider().buildInitializer());
-
-				// Do this at the end, since onCreate will be called in child
-				// We want everything to be registered prior to this happening.
-				LOG.debug("Attaching context: {} to provider.", context);
-				info.getProvider().attachInfo(context, null);
-				LOG.debug("Initialized Repository: " + info.getConf().getName());
 			}
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
@@ -242,13 +361,75 @@ public class VdbProviderRegistry {
 		}
 	}
 
+	/**
+	 * Builds a provider for the given repository info and records how
+	 * long it took.
+	 * @param context the context to work in
+	 * @param info the info on the repository
+	 * @throws IOException if there is a problem reading or writing the repo
+	 * @throws ClassNotFoundException if the provider class is unknown
+	 * @throws InstantiationException if the provider can not be built
+	 * @throws IllegalAccessException if the provider can not be built
+	 */
+	private void buildProviderImpl(final Context context,
+			final RepositoryInfo info) throws IOException,
+			ClassNotFoundException, InstantiationException,
+			IllegalAccessException {
+		LOG.debug("Building provider for: {}", info.getConf());
+		long start = System.currentTimeMillis();
+		if (info.getConf().getAvroSchema() != null) {
+			info.setProvider(
+					new AvroContentProvider(info.getConf().getAvroSchema()));
+		} else {
+			info.setProvider((GenericContentProvider)
+					Class.forName(
+							info.getConf().getContentProvider())
+							.newInstance());
+		}
+		VdbInitializer initializer = info.getProvider().buildInitializer();
+		long built = System.currentTimeMillis();
+		initializeRepo(mContext, info.getConf(), initializer);
+		long opened = System.currentTimeMillis();
+
+		// Do this at the end, since onCreate will be called in child
+		// We want everything to be registered prior to this happening.
+		LOG.debug("Attaching context: {} to provider.", context);
+		info.getProvider().attachInfo(context, null);
+		long end = System.currentTimeMillis();
+		info.setReady(end - start);
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Initialized repository " + info.getConf().getName()
+					+ " in " + (end - start) + " ms (provider: "
+					+ (built - start) + " ms, repository: "
+					+ (opened - built) + " ms, attach: " + (end - opened)
+					+ " ms)");
+		}
+	}
+
+	/**
+	 * Returns how long each repository took to initialize, which shows
+	 * where the time at startup goes. Repositories which were not used
+	 * yet are not included.
+	 * @return the time in milliseconds by repository name
+	 */
+	public final Map<String, Long> getStartupTimes() {
+		Map<String, Long> times = new HashMap<String, Long>();
+		for (RepositoryInfo info : REPOS.values()) {
+			long millis = info.getStartupMillis();
+			if (millis >= 0) {
+				times.put(info.getConf().getName(), millis);
+			}
+		}
+		return times;
+	}
+
 	/**
 	 * @param uri the uri a content provider is desired for.
 	 * @return a content provider for the given uri.
 	 */
 	public final ContentProvider get(final Uri uri) {
 		UriMatch match = EntityUriMatcher.getMatch(uri);
-		RepositoryInfo info = REPOS.get(match.repositoryName);
+		RepositoryInfo info = getInfo(match.repositoryName);
 		validateUri(uri, info, match);
 		try {
 			buildProvider(mContext, info);
@@ -283,7 +464,7 @@ public class VdbProviderRegistry {
 	 */
 	public final String getType(final Uri uri) {
 		UriMatch match = EntityUriMatcher.getMatch(uri);
-		RepositoryInfo info = REPOS.get(match.repositoryName);
+		RepositoryInfo info = getInfo(match.repositoryName);
 		String type = null;
 
 		if (info == null) {
@@ -309,6 +490,9 @@ public class VdbProviderRegistry {
 			case REMOTE:
 				type = BASE_TYPE + "/remote";
 				break;
+			case HISTORY:
+				type = BASE_TYPE + "/history";
+				break;
 			default:
 				LOG.error("Unknown match type: " + match.type);
 				throw new RuntimeException("Unknown match type:" + match.type);
@@ -328,7 +512,11 @@ public class VdbProviderRegistry {
 	 * @param name the name of the repository to initialize
 	 */
 	public final void initByName(final String name) {
-		RepositoryInfo info = REPOS.get(name);
+		RepositoryInfo info = getInfo(name);
+		if (info == null) {
+			throw new IllegalArgumentException(
+					"Unregistered repository: " + name);
+		}
 		try {
 			buildProvider(mContext, info);
 		} catch (IOException e) {
@@ -384,18 +572,18 @@ public class VdbProviderRegistry {
 			if (!info.getConf().getName().startsWith("interdroid.vdb")) {
 				Map<String, Object> map = new HashMap<String, Object>();
 				map.put(REPOSITORY_NAME, info.getConf().getName());
-				// Make sure it is initialized
-				initByName(info.getConf().getName());
-				// Pull the repo out
+				// Only open the repository, the provider is not needed.
+				// Repositories which were never created have no remotes.
 				VdbRepository repo = VdbRepositoryRegistry.getInstance()
-						.getRepository(mContext, info.getConf().getName());
+						.getExistingRepository(mContext,
+								info.getConf().getName());
 				// Is it a peer?
-				if (null != repo.getRemoteInfo(email)) {
+				if (repo != null && null != repo.getRemoteInfo(email)) {
 					map.put(REPOSITORY_IS_PEER, true);
 				} else {
 					map.put(REPOSITORY_IS_PEER, false);
 				}
-				map.put(REPOSITORY_IS_PUBLIC, repo.isPublic());
+				map.put(REPOSITORY_IS_PUBLIC, repo != null && repo.isPublic());
 				result.add(map);
 			}
 		}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content;
+
+import interdroid.util.DbUtil;
+import interdroid.vdb.persistence.api.VdbCheckout;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+/**
+ * Collects the writes of a bulk insert or a batch of operations on a
+ * {@link GenericContentProvider} so they run in a single transaction
+ * per checkout with compiled insert statements. Change notifications
+ * and dirty marks are held back until the batch is finished and are
+ * then sent once per uri and checkout.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class WriteBatch {
+	/**
+	 * The logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(WriteBatch.class);
+
+	/**
+	 * The databases in use by this batch, each in a transaction.
+	 */
+	private final Map<VdbCheckout, SQLiteDatabase> mDatabases =
+			new LinkedHashMap<VdbCheckout, SQLiteDatabase>();
+
+	/**
+	 * The rows and bytes written per checkout.
+	 */
+	private final Map<VdbCheckout, long[]> mDirty =
+			new HashMap<VdbCheckout, long[]>();
+
+	/**
+	 * The compiled insert statements per database and column set.
+	 */
+	private final Map<SQLiteDatabase, Map<String, SQLiteStatement>> mInserts =
+			new HashMap<SQLiteDatabase, Map<String, SQLiteStatement>>();
+
+	/**
+	 * The uris to notify once the batch is done.
+	 */
+	private final Set<Uri> mChanged = new LinkedHashSet<Uri>();
+
+	/**
+	 * Returns the database of a checkout for writing, starting a
+	 * transaction on it the first time.
+	 * @param checkout the checkout to write to
+	 * @return the database
+	 */
+	SQLiteDatabase getDatabase(final VdbCheckout checkout) {
+		SQLiteDatabase db = mDatabases.get(checkout);
+		if (db == null) {
+			try {
+				db = checkout.getReadWriteDatabase();
+			} catch (IOException e) {
+				throw new RuntimeException("getReadWriteDatabase failed", e);
+			}
+			try {
+				db.beginTransaction();
+			} catch (RuntimeException e) {
+				checkout.releaseDatabase();
+				throw e;
+			}
+			mDatabases.put(checkout, db);
+		}
+		return db;
+	}
+
+	/**
+	 * Inserts a row with a compiled statement which is reused for all
+	 * rows with the same columns in the same table.
+	 * @param db the database to insert into
+	 * @param table the escaped name of the table
+	 * @param values the values to insert, which may not be empty
+	 * @return the row id of the new row or -1 on failure
+	 */
+	long insert(final SQLiteDatabase db, final String table,
+			final ContentValues values) {
+		// Sort so the same columns always give the same statement.
+		TreeMap<String, Object> columns = new TreeMap<String, Object>();
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			columns.put(DbUtil.quoteColumnName(entry.getKey()),
+					entry.getValue());
+		}
+
+		StringBuilder key = new StringBuilder(table);
+		for (String column : columns.keySet()) {
+			key.append(',').append(column);
+		}
+		Map<String, SQLiteStatement> statements = mInserts.get(db);
+		if (statements == null) {
+			statements = new HashMap<String, SQLiteStatement>();
+			mInserts.put(db, statements);
+		}
+		SQLiteStatement statement = statements.get(key.toString());
+		if (statement == null) {
+			statement = db.compileStatement(buildInsert(table,
+					columns.keySet()));
+			statements.put(key.toString(), statement);
+		}
+
+		statement.clearBindings();
+		int index = 1;
+		for (Object value : columns.values()) {
+			bind(statement, index++, value);
+		}
+		return statement.executeInsert();
+	}
+
+	/**
+	 * Records a change to be reported when the batch is done.
+	 * @param checkout the checkout which was written to
+	 * @param uri the uri to notify
+	 * @param rows the number of rows written
+	 * @param bytes the estimated number of bytes written
+	 */
+	void changed(final VdbCheckout checkout, final Uri uri, final int rows,
+			final long bytes) {
+		mChanged.add(uri);
+		long[] dirty = mDirty.get(checkout);
+		if (dirty == null) {
+			dirty = new long[2];
+			mDirty.put(checkout, dirty);
+		}
+		dirty[0] += rows;
+		dirty[1] += bytes;
+	}
+
+	/**
+	 * Ends the transactions and releases the databases. If the batch
+	 * was successful the changes are reported.
+	 * @param successful true to commit the transactions
+	 * @param resolver the resolver to notify or null
+	 */
+	void finish(final boolean successful, final ContentResolver resolver) {
+		for (Map<String, SQLiteStatement> statements : mInserts.values()) {
+			for (SQLiteStatement statement : statements.values()) {
+				statement.close();
+			}
+		}
+		mInserts.clear();
+
+		RuntimeException failure = null;
+		for (Map.Entry<VdbCheckout, SQLiteDatabase> entry
+				: mDatabases.entrySet()) {
+			try {
+				if (successful && failure == null) {
+					entry.getValue().setTransactionSuccessful();
+				}
+				entry.getValue().endTransaction();
+			} catch (RuntimeException e) {
+				LOG.warn("Error ending batch transaction.", e);
+				if (failure == null) {
+					failure = e;
+				}
+			} finally {
+				entry.getKey().releaseDatabase();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		if (!successful) {
+			return;
+		}
+
+		for (Map.Entry<VdbCheckout, long[]> entry : mDirty.entrySet()) {
+			long[] dirty = entry.getValue();
+			if (dirty[0] > 0) {
+				entry.getKey().markDirty((int) dirty[0], dirty[1]);
+			}
+		}
+		if (resolver != null) {
+			for (Uri uri : mChanged) {
+				resolver.notifyChange(uri, null);
+			}
+		}
+	}
+
+	/**
+	 * Builds the insert statement for the given columns.
+	 * @param table the escaped name of the table
+	 * @param columns the quoted names of the columns
+	 * @return the statement
+	 */
+	private static String buildInsert(final String table,
+			final Set<String> columns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+		sql.append(table).append(" (");
+		StringBuilder params = new StringBuilder();
+		for (String column : columns) {
+			if (params.length() > 0) {
+				sql.append(',');
+				params.append(',');
+			}
+			sql.append(column);
+			params.append('?');
+		}
+		sql.append(") VALUES (").append(params).append(')');
+		return sql.toString();
+	}
+
+	/**
+	 * Binds a value of a content value to a statement.
+	 * @param statement the statement
+	 * @param index the index of the parameter
+	 * @param value the value to bind
+	 */
+	private static void bind(final SQLiteStatement statement, final int index,
+			final Object value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else if (value instanceof String) {
+			statement.bindString(index, (String) value);
+		} else if (value instanceof Double || value instanceof Float) {
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			statement.bindLong(index, ((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+		} else if (value instanceof byte[]) {
+			statement.bindBlob(index, (byte[]) value);
+		} else {
+			statement.bindString(index, value.toString());
+		}
+	}
+}
@@ -113,12 +113,13 @@ public class AvroContentProvider extends GenericContentProvider {
 	}
 
 	/**
-	 * Constructs the metadata for this schema.
+	 * Returns the metadata for this schema, which is shared by all
+	 * schemas with the same fingerprint.
 	 * @param schema the schema to build metdata for
 	 * @return the metadata for this schema
 	 */
 	public static Metadata makeMetadata(final Schema schema) {
-		return new AvroMetadata(schema);
+		return SchemaCache.get(schema).getMetadata();
 	}
 
 	/**
@@ -126,7 +127,7 @@ public class AvroContentProvider extends GenericContentProvider {
 	 * @param schema the schema as a string.
 	 */
 	public AvroContentProvider(final String schema) {
-		this(Schema.parse(schema));
+		this(SchemaCache.get(schema).getSchema());
 	}
 
 	/**
@@ -77,7 +77,7 @@ public class AvroContentProviderProxy extends ContentProvider {
 	 * @param schema the schema for the provider
 	 */
 	public AvroContentProviderProxy(final String schema) {
-		this(Schema.parse(schema));
+		this(SchemaCache.get(schema).getSchema());
 	}
 
 	/**
@@ -69,6 +69,13 @@ public class AvroEntityInfo extends EntityInfo {
 	 */
 	private Schema mSchema;
 
+	/**
+	 * @return the schema for this entity.
+	 */
+	public Schema getSchema() {
+		return mSchema;
+	}
+
 	/**
 	 * Construct an entity.
 	 * @param schema the schema for the entity
@@ -247,7 +247,7 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 		registerRepository(namespace, schemaString);
 
 		// Parse the schema
-		Schema newSchema = Schema.parse(schemaString);
+		Schema newSchema = SchemaCache.get(schemaString).getSchema();
 
 		VdbRepository repo = VdbRepositoryRegistry.getInstance()
 				.getRepository(getContext(), namespace);
@@ -282,7 +282,7 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 			if (c != null && c.moveToFirst()) {
 				String schemaString = c.getString(0);
 				LOG.debug("Got schema: {}", schemaString);
-				schema = Schema.parse(schemaString);
+				schema = SchemaCache.get(schemaString).getSchema();
 			} else {
 				LOG.error("Schema not found.");
 			}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.avro;
+
+import interdroid.vdb.content.DatabaseInitializer;
+import interdroid.vdb.content.metadata.Metadata;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process wide cache of parsed schemas together with the metadata and
+ * database initializer built from them. Entries are keyed by the full
+ * JSON form of the schema, so schemas which differ only in formatting
+ * share one entry while a change to documentation, defaults or
+ * properties gets an entry of its own. Each entry also carries the
+ * fingerprint of the schema, the CRC-64-AVRO of its parsing canonical
+ * form, which only changes with the way data is read.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class SchemaCache {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SchemaCache.class);
+
+	/**
+	 * The fingerprint of the empty input.
+	 */
+	private static final long EMPTY = 0xc15d213aa4d7a795L;
+
+	/**
+	 * The lookup table for the fingerprint.
+	 */
+	private static final long[] FP_TABLE = new long[256];
+
+	static {
+		for (int i = 0; i < FP_TABLE.length; i++) {
+			long fp = i;
+			for (int j = 0; j < 8; j++) {
+				fp = (fp >>> 1) ^ (EMPTY & -(fp & 1L));
+			}
+			FP_TABLE[i] = fp;
+		}
+	}
+
+	/**
+	 * The maximum number of schema texts remembered before the text
+	 * lookup is cleared.
+	 */
+	private static final int MAX_TEXTS = 64;
+
+	/**
+	 * The entries by the full JSON form of their schema.
+	 */
+	private static final ConcurrentHashMap<String, Entry> ENTRIES =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The entries by the text they were parsed from.
+	 */
+	private static final ConcurrentHashMap<String, Entry> TEXTS =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * A parsed schema with the metadata and initializer built from it.
+	 */
+	public static final class Entry {
+		/**
+		 * The fingerprint of the schema.
+		 */
+		private final long mFingerprint;
+
+		/**
+		 * The parsed schema.
+		 */
+		private final Schema mSchema;
+
+		/**
+		 * The metadata for the schema.
+		 */
+		private final Metadata mMetadata;
+
+		/**
+		 * The initializer for databases with the schema.
+		 */
+		private final DatabaseInitializer mInitializer;
+
+		/**
+		 * Construct an entry.
+		 * @param fingerprint the fingerprint of the schema
+		 * @param schema the schema
+		 */
+		private Entry(final long fingerprint, final Schema schema) {
+			mFingerprint = fingerprint;
+			mSchema = schema;
+			mMetadata = new AvroMetadata(schema);
+			mInitializer = new DatabaseInitializer(schema.getNamespace(),
+					mMetadata, schema.toString());
+		}
+
+		/**
+		 * @return the fingerprint of the schema
+		 */
+		public long getFingerprint() {
+			return mFingerprint;
+		}
+
+		/**
+		 * @return the parsed schema, which must not be modified
+		 */
+		public Schema getSchema() {
+			return mSchema;
+		}
+
+		/**
+		 * @return the metadata for the schema
+		 */
+		public Metadata getMetadata() {
+			return mMetadata;
+		}
+
+		/**
+		 * @return the initializer for databases with the schema
+		 */
+		public DatabaseInitializer getInitializer() {
+			return mInitializer;
+		}
+	}
+
+	/**
+	 * Utility classes can not be constructed.
+	 */
+	private SchemaCache() { }
+
+	/**
+	 * Returns the entry for a schema given as text, parsing it only if
+	 * the same text has not been seen before.
+	 * @param schema the schema as text
+	 * @return the entry for the schema
+	 */
+	public static Entry get(final String schema) {
+		Entry entry = TEXTS.get(schema);
+		if (entry == null) {
+			entry = get(Schema.parse(schema));
+			if (TEXTS.size() >= MAX_TEXTS) {
+				TEXTS.clear();
+			}
+			TEXTS.put(schema, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the entry for a parsed schema, building the metadata only
+	 * if the same schema has not been seen before.
+	 * @param schema the schema
+	 * @return the entry for the schema
+	 */
+	public static Entry get(final Schema schema) {
+		String json = schema.toString();
+		Entry entry = ENTRIES.get(json);
+		if (entry == null) {
+			long fingerprint = fingerprint(schema);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Caching schema " + schema.getFullName() + " with "
+						+ "fingerprint " + Long.toHexString(fingerprint));
+			}
+			entry = new Entry(fingerprint, schema);
+			Entry existing = ENTRIES.putIfAbsent(json, entry);
+			if (existing != null) {
+				entry = existing;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Computes the fingerprint of a schema, the CRC-64-AVRO of the
+	 * UTF-8 bytes of its parsing canonical form.
+	 * @param schema the schema
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(final Schema schema) {
+		byte[] data;
+		try {
+			data = toCanonicalForm(schema).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		long fp = EMPTY;
+		for (byte b : data) {
+			fp = (fp >>> 8) ^ FP_TABLE[(int) (fp ^ b) & 0xff];
+		}
+		return fp;
+	}
+
+	/**
+	 * Returns the parsing canonical form of a schema, which drops
+	 * everything which does not affect how data is read and uses full
+	 * names and a fixed order and formatting for the rest.
+	 * @param schema the schema
+	 * @return the canonical form
+	 */
+	public static String toCanonicalForm(final Schema schema) {
+		StringBuilder out = new StringBuilder();
+		appendCanonical(out, schema, new HashSet<String>());
+		return out.toString();
+	}
+
+	/**
+	 * Appends the canonical form of a schema.
+	 * @param out the builder to append to
+	 * @param schema the schema
+	 * @param named the full names of the named schemas already written
+	 */
+	private static void appendCanonical(final StringBuilder out,
+			final Schema schema, final Set<String> named) {
+		switch (schema.getType()) {
+		case UNION:
+			out.append('[');
+			boolean first = true;
+			for (Schema type : schema.getTypes()) {
+				if (!first) {
+					out.append(',');
+				}
+				appendCanonical(out, type, named);
+				first = false;
+			}
+			out.append(']');
+			break;
+		case ARRAY:
+			out.append("{\"type\":\"array\",\"items\":");
+			appendCanonical(out, schema.getElementType(), named);
+			out.append('}');
+			break;
+		case MAP:
+			out.append("{\"type\":\"map\",\"values\":");
+			appendCanonical(out, schema.getValueType(), named);
+			out.append('}');
+			break;
+		case RECORD:
+		case ENUM:
+		case FIXED:
+			String name = schema.getFullName();
+			if (!named.add(name)) {
+				out.append('"').append(name).append('"');
+				break;
+			}
+			out.append("{\"name\":\"").append(name).append("\",\"type\":\"")
+				.append(typeName(schema)).append('"');
+			if (schema.getType() == Schema.Type.RECORD) {
+				out.append(",\"fields\":[");
+				boolean firstField = true;
+				for (Field field : schema.getFields()) {
+					if (!firstField) {
+						out.append(',');
+					}
+					out.append("{\"name\":\"").append(field.name())
+						.append("\",\"type\":");
+					appendCanonical(out, field.schema(), named);
+					out.append('}');
+					firstField = false;
+				}
+				out.append(']');
+			} else if (schema.getType() == Schema.Type.ENUM) {
+				out.append(",\"symbols\":[");
+				boolean firstSymbol = true;
+				for (String symbol : schema.getEnumSymbols()) {
+					if (!firstSymbol) {
+						out.append(',');
+					}
+					out.append('"').append(symbol).append('"');
+					firstSymbol = false;
+				}
+				out.append(']');
+			} else {
+				out.append(",\"size\":").append(schema.getFixedSize());
+			}
+			out.append('}');
+			break;
+		default:
+			out.append('"').append(typeName(schema)).append('"');
+			break;
+		}
+	}
+
+	/**
+	 * @param schema the schema
+	 * @return the name of the type of the schema as used in JSON
+	 */
+	private static String typeName(final Schema schema) {
+		return schema.getType().name().toLowerCase(Locale.ENGLISH);
+	}
+}
@@ -55,6 +55,12 @@ import org.slf4j.LoggerFactory;
  * enumeration value. Such warnings are treated as errors with respect
  * to validateProjection by default but this can be turned off setFailOnWarning
  * to turn this off.
+ * <br/>
+ * While walking the schemas the validator also records if the reader's
+ * schema only adds to the writer's: new fields with defaults, enumeration
+ * symbols appended at the end and new records or arrays in those new
+ * fields. Such changes can be applied to a database in place, see
+ * isAdditive.
  *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  *
@@ -150,6 +156,11 @@ public final class SchemaEvolutionValidator {
 	 */
 	private boolean mFailOnWarning = true;
 
+	/**
+	 * Does the reader only add to the writer's schema.
+	 */
+	private boolean mAdditive = true;
+
 	/**
 	 * Construct an evolution validator.
 	 */
@@ -181,6 +192,7 @@ public final class SchemaEvolutionValidator {
 		// Clear any existing warnings from last run.
 		mWarnings.clear();
 		mErrors.clear();
+		mAdditive = true;
 
 		// Are the schemas the same? Shortcut the whole deal.
 		if (readerSchema.toString().equals(writerSchema.toString())) {
@@ -199,6 +211,19 @@ public final class SchemaEvolutionValidator {
 		return hasErrorsOrWarnings();
 	}
 
+	/**
+	 * Returns if the last validated reader's schema only adds to the
+	 * writer's schema. Any other change, like a removed field, a promoted
+	 * type, a renamed record or a changed union, requires the data to be
+	 * rewritten. This is only meaningful if validateProjection returned
+	 * true.
+	 *
+	 * @return true if the reader's schema only adds to the writer's.
+	 */
+	public boolean isAdditive() {
+		return mAdditive;
+	}
+
 	/**
 	 * @return true if there are warnings.
 	 */
@@ -272,6 +297,10 @@ public final class SchemaEvolutionValidator {
 	 */
 	private void validateUnionProjection(final Schema readerSchema,
 			final Schema writerSchema, final Stack<String> names) {
+		if (!readerSchema.toString().equals(writerSchema.toString())) {
+			changed(new FieldName(names), "Union changed.");
+		}
+
 		// Recursive validator.
 		SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
 
@@ -353,6 +382,16 @@ public final class SchemaEvolutionValidator {
 		mWarnings.put(fieldName, message);
 	}
 
+	/**
+	 * Record a change which is not additive.
+	 * @param fieldName the field which changed
+	 * @param message the message
+	 */
+	private void changed(final FieldName fieldName, final String message) {
+		LOG.debug("Changed: {} : {}", fieldName, message);
+		mAdditive = false;
+	}
+
 	/**
 	 * Add an error.
 	 * @param fieldName the field generating the error
@@ -390,6 +429,21 @@ public final class SchemaEvolutionValidator {
 		// Is the writer a record?
 		if (writerSchema.getType().equals(Type.RECORD)) {
 
+			// A renamed record lives in a different table
+			if (!readerSchema.getFullName().equals(
+					writerSchema.getFullName())) {
+				changed(new FieldName(names), "Record renamed.");
+			}
+
+			// Fields the reader dropped are left behind in the table
+			for (Field writerField: writerSchema.getFields()) {
+				if (readerSchema.getField(writerField.name()) == null) {
+					names.push(writerField.name());
+					changed(new FieldName(names), "Field removed.");
+					names.pop();
+				}
+			}
+
 			// Examine all reader fields and make sure we have data
 			for (Field readerField: readerSchema.getFields()) {
 				names.push(readerField.name());
@@ -482,6 +536,15 @@ public final class SchemaEvolutionValidator {
 				}
 				names.pop();
 			}
+
+			// Enumerations are stored by ordinal so symbols may only be
+			// appended.
+			List<String> writerSymbols = writerSchema.getEnumSymbols();
+			if (readerSymbols.size() < writerSymbols.size()
+					|| !readerSymbols.subList(0, writerSymbols.size())
+					.equals(writerSymbols)) {
+				changed(new FieldName(names), "Enumeration reordered.");
+			}
 		} else if (writerSchema.getType().equals(Type.UNION)) {
 			validateUnionProjection(readerSchema, writerSchema, names);
 		} else {
@@ -547,6 +610,7 @@ public final class SchemaEvolutionValidator {
 		if (readerType.equals(writerType)) {
 			isPromotable = true;
 		} else {
+			changed(new FieldName(names), "Type promoted.");
 			switch (writerType) {
 			case INT:
 				// int is promotable to long, float, or double
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+/**
+ * The thresholds which trigger an automatic commit of a checkout.
+ * A commit is made as soon as any of the enabled thresholds is reached.
+ * A threshold of zero or less is disabled.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class AutoCommitPolicy {
+	/**
+	 * A policy which never commits automatically.
+	 */
+	public static final AutoCommitPolicy DISABLED =
+			new AutoCommitPolicy(0, 0, 0);
+
+	/**
+	 * The number of changed rows which triggers a commit.
+	 */
+	private final int mMaxRows;
+
+	/**
+	 * The estimated number of changed bytes which triggers a commit.
+	 */
+	private final long mMaxBytes;
+
+	/**
+	 * The time after the first uncommitted change which triggers a commit.
+	 */
+	private final long mMaxDelayMillis;
+
+	/**
+	 * Construct a policy.
+	 * @param maxRows the number of rows to commit after
+	 * @param maxBytes the number of bytes to commit after
+	 * @param maxDelayMillis the delay after the first change to commit after
+	 */
+	public AutoCommitPolicy(final int maxRows, final long maxBytes,
+			final long maxDelayMillis) {
+		mMaxRows = maxRows;
+		mMaxBytes = maxBytes;
+		mMaxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @return the number of changed rows which triggers a commit
+	 */
+	public int getMaxRows() {
+		return mMaxRows;
+	}
+
+	/**
+	 * @return the number of changed bytes which triggers a commit
+	 */
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * @return the delay in milliseconds which triggers a commit
+	 */
+	public long getMaxDelayMillis() {
+		return mMaxDelayMillis;
+	}
+
+	/**
+	 * @return true if any threshold is enabled
+	 */
+	public boolean isEnabled() {
+		return mMaxRows > 0 || mMaxBytes > 0 || mMaxDelayMillis > 0;
+	}
+
+	/**
+	 * @param rows the number of changed rows
+	 * @param bytes the number of changed bytes
+	 * @return true if the row or byte threshold has been reached
+	 */
+	public boolean isFull(final int rows, final long bytes) {
+		return (mMaxRows > 0 && rows >= mMaxRows)
+				|| (mMaxBytes > 0 && bytes >= mMaxBytes);
+	}
+
+	@Override
+	public String toString() {
+		return "rows: " + mMaxRows + " bytes: " + mMaxBytes
+				+ " delay: " + mMaxDelayMillis;
+	}
+}
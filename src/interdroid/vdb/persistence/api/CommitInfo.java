@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+/**
+ * Describes a single commit in the history of a branch as returned by
+ * {@link VdbRepository#getHistory(String, int, int)}.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class CommitInfo {
+	/**
+	 * The sha1 of the commit.
+	 */
+	private final String mId;
+
+	/**
+	 * The sha1 of the parents of the commit.
+	 */
+	private final String[] mParents;
+
+	/**
+	 * The commit time in seconds since the epoch.
+	 */
+	private final int mCommitTime;
+
+	/**
+	 * The generation of the commit, which is one more than the highest
+	 * generation of its parents and 1 for a root commit.
+	 */
+	private final int mGeneration;
+
+	/**
+	 * The name of the author.
+	 */
+	private final String mAuthorName;
+
+	/**
+	 * The email of the author.
+	 */
+	private final String mAuthorEmail;
+
+	/**
+	 * The first line of the commit message.
+	 */
+	private final String mMessage;
+
+	/**
+	 * Construct commit info.
+	 * @param id the sha1 of the commit
+	 * @param parents the sha1 of the parents of the commit
+	 * @param commitTime the commit time in seconds since the epoch
+	 * @param generation the generation of the commit
+	 * @param authorName the name of the author
+	 * @param authorEmail the email of the author
+	 * @param message the first line of the commit message
+	 */
+	public CommitInfo(final String id, final String[] parents,
+			final int commitTime, final int generation,
+			final String authorName, final String authorEmail,
+			final String message) {
+		mId = id;
+		mParents = parents;
+		mCommitTime = commitTime;
+		mGeneration = generation;
+		mAuthorName = authorName;
+		mAuthorEmail = authorEmail;
+		mMessage = message;
+	}
+
+	/**
+	 * @return the sha1 of the commit
+	 */
+	public String getId() {
+		return mId;
+	}
+
+	/**
+	 * @return the sha1 of the parents of the commit
+	 */
+	public String[] getParents() {
+		return mParents.clone();
+	}
+
+	/**
+	 * @return the commit time in seconds since the epoch
+	 */
+	public int getCommitTime() {
+		return mCommitTime;
+	}
+
+	/**
+	 * @return the generation of the commit, 1 for a root commit
+	 */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return the name of the author
+	 */
+	public String getAuthorName() {
+		return mAuthorName;
+	}
+
+	/**
+	 * @return the email of the author
+	 */
+	public String getAuthorEmail() {
+		return mAuthorEmail;
+	}
+
+	/**
+	 * @return the first line of the commit message
+	 */
+	public String getMessage() {
+		return mMessage;
+	}
+
+	@Override
+	public String toString() {
+		return mId + " " + mAuthorName + " <" + mAuthorEmail + "> "
+				+ mMessage;
+	}
+}
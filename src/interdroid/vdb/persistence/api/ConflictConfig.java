@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the {@link ConflictPolicy} used for each entity and field
+ * when a merge conflicts. Entities are named by their table.
+ *
+ * An entity policy is one of {@link #OURS}, {@link #THEIRS},
+ * {@link #LAST_WRITER_WINS}, {@link #FIELD_MERGE} or the name of a
+ * class implementing {@link ConflictPolicy}. Field policies are one of
+ * {@link #OURS}, {@link #THEIRS} or {@link #LAST_WRITER_WINS} and are
+ * used by {@link #FIELD_MERGE} for fields changed on both sides. An
+ * entity with field policies but no policy of its own is merged by
+ * field.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class ConflictConfig {
+	/**
+	 * The property of records and fields in an Avro schema which holds
+	 * their policy.
+	 */
+	public static final String SCHEMA_PROPERTY = "conflictPolicy";
+
+	/** Keeps our side of a conflict. */
+	public static final String OURS = "ours";
+	/** Takes their side of a conflict. */
+	public static final String THEIRS = "theirs";
+	/** Takes the side with the latest commit. */
+	public static final String LAST_WRITER_WINS = "lastWriterWins";
+	/** Takes fields changed on one side only from that side. */
+	public static final String FIELD_MERGE = "fieldMerge";
+
+	/**
+	 * The policies for entities.
+	 */
+	private final Map<String, String> mEntities =
+			new HashMap<String, String>();
+
+	/**
+	 * The policies for fields by entity.
+	 */
+	private final Map<String, Map<String, String>> mFields =
+			new HashMap<String, Map<String, String>>();
+
+	/**
+	 * Sets the policy for an entity.
+	 * @param entity the table of the entity
+	 * @param policy the policy
+	 */
+	public synchronized void setPolicy(final String entity,
+			final String policy) {
+		mEntities.put(entity, policy);
+	}
+
+	/**
+	 * Sets the policy for a field.
+	 * @param entity the table of the entity
+	 * @param field the field
+	 * @param policy the policy
+	 */
+	public synchronized void setPolicy(final String entity,
+			final String field, final String policy) {
+		Map<String, String> fields = mFields.get(entity);
+		if (fields == null) {
+			fields = new HashMap<String, String>();
+			mFields.put(entity, fields);
+		}
+		fields.put(field, policy);
+	}
+
+	/**
+	 * @param entity the table of the entity
+	 * @return the policy for the entity or null if it has none
+	 */
+	public synchronized String getPolicy(final String entity) {
+		String policy = mEntities.get(entity);
+		if (policy == null && mFields.containsKey(entity)) {
+			policy = FIELD_MERGE;
+		}
+		return policy;
+	}
+
+	/**
+	 * @param entity the table of the entity
+	 * @return the policies for the fields of the entity
+	 */
+	public synchronized Map<String, String> getFieldPolicies(
+			final String entity) {
+		Map<String, String> fields = mFields.get(entity);
+		if (fields == null) {
+			return Collections.emptyMap();
+		}
+		return new HashMap<String, String>(fields);
+	}
+
+	/**
+	 * Adds all policies of another configuration, replacing the
+	 * policies this one has for the same entities and fields.
+	 * @param other the configuration to add
+	 */
+	public synchronized void addAll(final ConflictConfig other) {
+		synchronized (other) {
+			mEntities.putAll(other.mEntities);
+			for (Map.Entry<String, Map<String, String>> entity
+					: other.mFields.entrySet()) {
+				for (Map.Entry<String, String> field
+						: entity.getValue().entrySet()) {
+					setPolicy(entity.getKey(), field.getKey(),
+							field.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if no policies are set
+	 */
+	public synchronized boolean isEmpty() {
+		return mEntities.isEmpty() && mFields.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entities: " + mEntities + " fields: " + mFields;
+	}
+}
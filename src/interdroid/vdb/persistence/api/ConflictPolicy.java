@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Resolves the conflicts a merge leaves in a table. Policies are chosen
+ * per entity through the {@link ConflictConfig} of a repository or the
+ * {@link ConflictConfig#SCHEMA_PROPERTY} property in the schema, which
+ * may also name a class implementing this interface. Such classes need
+ * a public constructor without arguments.
+ *
+ * Policies are expected to work on all conflicts of a table at once
+ * with a few SQL statements, so merges with many conflicts finish
+ * quickly.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public interface ConflictPolicy {
+	/**
+	 * Resolves conflicts listed in the conflict table of a table. The
+	 * checkout database holds our side of the merge and has the base,
+	 * ours and theirs databases attached under those names. Resolved
+	 * conflicts have to be deleted from the conflict table. This runs
+	 * in the transaction of the merge.
+	 * @param db the checkout database
+	 * @param conflicts the conflicts to resolve
+	 * @return the number of conflicts resolved
+	 */
+	int resolve(SQLiteDatabase db, ConflictSet conflicts);
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the conflicts a merge left in one table, as handed to a
+ * {@link ConflictPolicy}. The conflicts are listed in a table holding
+ * the key columns of every conflicting row followed by
+ * {@link #COL_OURS} and {@link #COL_THEIRS}, which hold how the row
+ * changed on each side: INSERTED, DELETED or MODIFIED.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class ConflictSet {
+	/**
+	 * The column holding the change on our side.
+	 */
+	public static final String COL_OURS = "_ours";
+
+	/**
+	 * The column holding the change on their side.
+	 */
+	public static final String COL_THEIRS = "_theirs";
+
+	/**
+	 * The name of the table.
+	 */
+	private final String mTable;
+
+	/**
+	 * The name of the table listing the conflicts.
+	 */
+	private final String mConflictTable;
+
+	/**
+	 * The key columns of the table.
+	 */
+	private final List<String> mKeys;
+
+	/**
+	 * The other columns of the table.
+	 */
+	private final List<String> mFields;
+
+	/**
+	 * The policies for single fields.
+	 */
+	private final Map<String, String> mFieldPolicies;
+
+	/**
+	 * The time of our commit.
+	 */
+	private final long mOurTime;
+
+	/**
+	 * The time of their commit.
+	 */
+	private final long mTheirTime;
+
+	/**
+	 * Construct a conflict set.
+	 * @param table the name of the table
+	 * @param conflictTable the name of the table listing the conflicts
+	 * @param keys the key columns of the table
+	 * @param fields the other columns of the table
+	 * @param fieldPolicies the policies for single fields
+	 * @param ourTime the time of our commit in milliseconds
+	 * @param theirTime the time of their commit in milliseconds
+	 */
+	public ConflictSet(final String table, final String conflictTable,
+			final List<String> keys, final List<String> fields,
+			final Map<String, String> fieldPolicies, final long ourTime,
+			final long theirTime) {
+		mTable = table;
+		mConflictTable = conflictTable;
+		mKeys = Collections.unmodifiableList(keys);
+		mFields = Collections.unmodifiableList(fields);
+		mFieldPolicies = Collections.unmodifiableMap(fieldPolicies);
+		mOurTime = ourTime;
+		mTheirTime = theirTime;
+	}
+
+	/**
+	 * @return the name of the table
+	 */
+	public String getTable() {
+		return mTable;
+	}
+
+	/**
+	 * @return the name of the table listing the conflicts
+	 */
+	public String getConflictTable() {
+		return mConflictTable;
+	}
+
+	/**
+	 * @return the key columns of the table
+	 */
+	public List<String> getKeys() {
+		return mKeys;
+	}
+
+	/**
+	 * @return the columns of the table which are not part of the key
+	 */
+	public List<String> getFields() {
+		return mFields;
+	}
+
+	/**
+	 * @param field the name of the field
+	 * @return the policy for the field or null if it has none
+	 */
+	public String getFieldPolicy(final String field) {
+		return mFieldPolicies.get(field);
+	}
+
+	/**
+	 * @return the time of our commit in milliseconds
+	 */
+	public long getOurTime() {
+		return mOurTime;
+	}
+
+	/**
+	 * @return the time of their commit in milliseconds
+	 */
+	public long getTheirTime() {
+		return mTheirTime;
+	}
+
+	/**
+	 * Builds a condition matching the keys of two tables, which is
+	 * handy for the correlated sub queries policies are made of.
+	 * @param left the table or alias on the left
+	 * @param right the table or alias on the right
+	 * @return the condition
+	 */
+	public String keyCondition(final String left, final String right) {
+		StringBuilder condition = new StringBuilder();
+		for (String key : mKeys) {
+			String column = "\"" + key.replace("\"", "\"\"") + "\"";
+			if (condition.length() > 0) {
+				condition.append(" AND ");
+			}
+			condition.append(left).append('.').append(column).append(" = ")
+			.append(right).append('.').append(column);
+		}
+		return condition.toString();
+	}
+}
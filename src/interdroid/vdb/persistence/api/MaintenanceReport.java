@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+/**
+ * Describes the outcome of a maintenance run on a repository, which
+ * packs and prunes the object database and removes stale temporary
+ * checkouts.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class MaintenanceReport {
+	/**
+	 * The size of the object database before the run.
+	 */
+	private final long mBytesBefore;
+
+	/**
+	 * The size of the object database after the run.
+	 */
+	private final long mBytesAfter;
+
+	/**
+	 * The size of the stale temporary checkouts which were removed.
+	 */
+	private final long mScratchBytes;
+
+	/**
+	 * The number of loose objects before the run.
+	 */
+	private final long mLooseBefore;
+
+	/**
+	 * The number of loose objects after the run.
+	 */
+	private final long mLooseAfter;
+
+	/**
+	 * The number of pack files after the run.
+	 */
+	private final long mPacks;
+
+	/**
+	 * The time the run took.
+	 */
+	private final long mElapsedMillis;
+
+	/**
+	 * Construct a report.
+	 * @param bytesBefore the size of the object database before the run
+	 * @param bytesAfter the size of the object database after the run
+	 * @param scratchBytes the size of the removed temporary checkouts
+	 * @param looseBefore the number of loose objects before the run
+	 * @param looseAfter the number of loose objects after the run
+	 * @param packs the number of pack files after the run
+	 * @param elapsedMillis the time the run took
+	 */
+	public MaintenanceReport(final long bytesBefore, final long bytesAfter,
+			final long scratchBytes, final long looseBefore,
+			final long looseAfter, final long packs,
+			final long elapsedMillis) {
+		mBytesBefore = bytesBefore;
+		mBytesAfter = bytesAfter;
+		mScratchBytes = scratchBytes;
+		mLooseBefore = looseBefore;
+		mLooseAfter = looseAfter;
+		mPacks = packs;
+		mElapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return the size of the object database before the run in bytes
+	 */
+	public long getBytesBefore() {
+		return mBytesBefore;
+	}
+
+	/**
+	 * @return the size of the object database after the run in bytes
+	 */
+	public long getBytesAfter() {
+		return mBytesAfter;
+	}
+
+	/**
+	 * @return the size of the removed temporary checkouts in bytes
+	 */
+	public long getScratchBytes() {
+		return mScratchBytes;
+	}
+
+	/**
+	 * @return the total number of bytes the run freed on disk
+	 */
+	public long getBytesReclaimed() {
+		return mBytesBefore - mBytesAfter + mScratchBytes;
+	}
+
+	/**
+	 * @return the number of loose objects before the run
+	 */
+	public long getLooseObjectsBefore() {
+		return mLooseBefore;
+	}
+
+	/**
+	 * @return the number of loose objects after the run
+	 */
+	public long getLooseObjectsAfter() {
+		return mLooseAfter;
+	}
+
+	/**
+	 * @return the number of pack files after the run
+	 */
+	public long getPackFiles() {
+		return mPacks;
+	}
+
+	/**
+	 * @return the time the run took in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return mElapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "reclaimed: " + getBytesReclaimed()
+				+ " bytes (objects " + mBytesBefore + " -> " + mBytesAfter
+				+ ", scratch " + mScratchBytes + ") loose: " + mLooseBefore
+				+ " -> " + mLooseAfter + " packs: " + mPacks
+				+ " time: " + mElapsedMillis + " ms";
+	}
+}
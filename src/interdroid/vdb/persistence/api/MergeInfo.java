@@ -62,6 +62,11 @@ public final class MergeInfo implements Serializable {
 	 */
 	private boolean mResolved = false;
 
+	/**
+	 * The number of rows the automatic merge could not merge.
+	 */
+	private int mConflicts = 0;
+
 	/**
 	 * Construct a merge info.
 	 * @param base the base commit SHA1
@@ -79,6 +84,7 @@ public final class MergeInfo implements Serializable {
 	public MergeInfo clone() {
 		MergeInfo copy = new MergeInfo(mBase, mTheirs, mOurs);
 		copy.mResolved = mResolved;
+		copy.mConflicts = mConflicts;
 		return copy;
 	}
 
@@ -116,4 +122,22 @@ public final class MergeInfo implements Serializable {
 	public void setResolved() {
 		this.mResolved = true;
 	}
+
+	/**
+	 * Returns the number of rows which were changed differently on both
+	 * sides. These are listed in the conflict table of each table,
+	 * named _vdb_conflicts_ followed by the name of the table.
+	 * @return the number of conflicting rows
+	 */
+	public int getConflicts() {
+		return mConflicts;
+	}
+
+	/**
+	 * Sets the number of conflicting rows.
+	 * @param conflicts the number of conflicting rows
+	 */
+	public void setConflicts(final int conflicts) {
+		mConflicts = conflicts;
+	}
 }
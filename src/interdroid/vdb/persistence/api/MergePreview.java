@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Previews the outcome of a merge per table, computed from the
+ * summaries stored in the commits without opening any database. The
+ * summaries compare ranges of keys, so the counts are upper bounds on
+ * the rows changed on each side and on the rows in conflict.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class MergePreview {
+	/** The index of the rows changed on our side. */
+	private static final int OURS = 0;
+	/** The index of the rows changed on their side. */
+	private static final int THEIRS = 1;
+	/** The index of the rows changed on both sides. */
+	private static final int CONFLICTS = 2;
+
+	/**
+	 * The counts for each table.
+	 */
+	private final Map<String, long[]> mTables =
+			new TreeMap<String, long[]>();
+
+	/**
+	 * Adds the counts for a table to the preview.
+	 * @param table the name of the table
+	 * @param ours the rows changed on our side
+	 * @param theirs the rows changed on their side
+	 * @param conflicts the rows changed on both sides
+	 */
+	public void addTable(final String table, final long ours,
+			final long theirs, final long conflicts) {
+		mTables.put(table, new long[] {ours, theirs, conflicts});
+	}
+
+	/**
+	 * @return the names of the tables in the preview
+	 */
+	public Set<String> getTables() {
+		return Collections.unmodifiableSet(mTables.keySet());
+	}
+
+	/**
+	 * @param table the name of the table
+	 * @return the most rows of the table changed on our side
+	 */
+	public long getOurChanges(final String table) {
+		return get(table, OURS);
+	}
+
+	/**
+	 * @param table the name of the table
+	 * @return the most rows of the table changed on their side
+	 */
+	public long getTheirChanges(final String table) {
+		return get(table, THEIRS);
+	}
+
+	/**
+	 * @param table the name of the table
+	 * @return the most rows of the table which may conflict
+	 */
+	public long getConflicts(final String table) {
+		return get(table, CONFLICTS);
+	}
+
+	/**
+	 * @return the most rows changed on our side in all tables
+	 */
+	public long getOurChanges() {
+		return total(OURS);
+	}
+
+	/**
+	 * @return the most rows changed on their side in all tables
+	 */
+	public long getTheirChanges() {
+		return total(THEIRS);
+	}
+
+	/**
+	 * @return the most rows which may conflict in all tables
+	 */
+	public long getConflicts() {
+		return total(CONFLICTS);
+	}
+
+	/**
+	 * @param table the name of the table
+	 * @param index the count to return
+	 * @return the count or 0 for an unknown table
+	 */
+	private long get(final String table, final int index) {
+		long[] counts = mTables.get(table);
+		if (counts == null) {
+			return 0;
+		}
+		return counts[index];
+	}
+
+	/**
+	 * @param index the count to sum
+	 * @return the sum of the count over all tables
+	 */
+	private long total(final int index) {
+		long total = 0;
+		for (long[] counts : mTables.values()) {
+			total += counts[index];
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "ours: " + getOurChanges() + " theirs: " + getTheirChanges()
+				+ " conflicts: " + getConflicts() + " tables: "
+				+ mTables.size();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.api;
+
+/**
+ * Describes the outcome of migrating the database of a checkout to a
+ * new schema.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class MigrationReport {
+	/**
+	 * The number of tables copied.
+	 */
+	private final int mTables;
+
+	/**
+	 * The number of rows copied in batches.
+	 */
+	private final long mRowsCopied;
+
+	/**
+	 * The number of rows copied again because they were written while
+	 * the copy was running.
+	 */
+	private final long mRowsCaughtUp;
+
+	/**
+	 * The time the migration took.
+	 */
+	private final long mElapsedMillis;
+
+	/**
+	 * The time the checkout was locked for the switch to the new database.
+	 */
+	private final long mLockedMillis;
+
+	/**
+	 * Construct a report.
+	 * @param tables the number of tables copied
+	 * @param rowsCopied the number of rows copied in batches
+	 * @param rowsCaughtUp the number of rows copied again
+	 * @param elapsedMillis the time the migration took
+	 * @param lockedMillis the time the checkout was locked
+	 */
+	public MigrationReport(final int tables, final long rowsCopied,
+			final long rowsCaughtUp, final long elapsedMillis,
+			final long lockedMillis) {
+		mTables = tables;
+		mRowsCopied = rowsCopied;
+		mRowsCaughtUp = rowsCaughtUp;
+		mElapsedMillis = elapsedMillis;
+		mLockedMillis = lockedMillis;
+	}
+
+	/**
+	 * @return the number of tables copied
+	 */
+	public int getTables() {
+		return mTables;
+	}
+
+	/**
+	 * @return the number of rows copied in batches
+	 */
+	public long getRowsCopied() {
+		return mRowsCopied;
+	}
+
+	/**
+	 * @return the number of rows copied again because they were written
+	 * while the copy was running
+	 */
+	public long getRowsCaughtUp() {
+		return mRowsCaughtUp;
+	}
+
+	/**
+	 * @return the time the migration took in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return mElapsedMillis;
+	}
+
+	/**
+	 * @return the time the checkout was locked in milliseconds
+	 */
+	public long getLockedMillis() {
+		return mLockedMillis;
+	}
+
+	/**
+	 * @return the number of rows copied per second
+	 */
+	public long getRowsPerSecond() {
+		return (mRowsCopied + mRowsCaughtUp) * 1000
+				/ Math.max(1, mElapsedMillis);
+	}
+
+	@Override
+	public String toString() {
+		return "tables: " + mTables + " rows: " + mRowsCopied
+				+ " caught up: " + mRowsCaughtUp + " (" + getRowsPerSecond()
+				+ " rows/s) time: " + mElapsedMillis + " ms locked: "
+				+ mLockedMillis + " ms";
+	}
+}
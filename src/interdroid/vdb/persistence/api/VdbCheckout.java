@@ -31,8 +31,11 @@
 package interdroid.vdb.persistence.api;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import org.apache.avro.Schema;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
 
 import android.database.sqlite.SQLiteDatabase;
 
@@ -47,6 +50,9 @@ public interface VdbCheckout {
 	 * Returns an sqlite database handler set to read only mode for
 	 * the given branch.
 	 *
+	 * Handlers for reading may come from a pool of connections so
+	 * several threads can read the branch at the same time.
+	 *
 	 * @return sqlite db handler
 	 * @throws IOException if there is a problem reading or writing
 	 */
@@ -71,8 +77,11 @@ public interface VdbCheckout {
 	 * Commits a new version to the specified branch with the current
 	 * database snapshot of that branch.
 	 *
-	 * Blocks until all the RW databases associated with branchName have been
-	 * released so that we do not commit while the database is written to.
+	 * The commit records a consistent state of the database. Reads and
+	 * writes may continue while it is made, writes which happen after
+	 * that state was captured go into the next commit.
+	 * Returns without creating a commit if nothing changed since the
+	 * last commit.
 	 *
 	 * @param authorName the name of the author
 	 * @param authorEmail the email of the author
@@ -85,6 +94,47 @@ public interface VdbCheckout {
 	void commit(String authorName, String authorEmail, String msg)
 		throws IOException, MergeInProgressException;
 
+	/**
+	 * Commits like {@link #commit(String, String, String)} on the commit
+	 * executor of the repository and returns immediately.
+	 *
+	 * A request made while an earlier request for this checkout has not
+	 * started yet joins that request if both have the same author, email
+	 * and message and the later request reports to the same monitor or
+	 * to none. A single commit is then made for both. Otherwise the
+	 * request is queued as a commit of its own.
+	 *
+	 * @param authorName the name of the author
+	 * @param authorEmail the email of the author
+	 * @param msg the message for the commit
+	 * @param monitor the monitor to report progress to or null
+	 * @param callback the callback to notify when done or null
+	 * @return the future id of the commit, or of the current head if
+	 * there was nothing to commit
+	 */
+	Future<ObjectId> commitAsync(String authorName, String authorEmail,
+			String msg, ProgressMonitor monitor, CommitCallback callback);
+
+	/**
+	 * Records that rows were written to the database of this checkout.
+	 * This drives automatic commits according to the
+	 * {@link AutoCommitPolicy} of the repository and should be called
+	 * after the database has been released.
+	 *
+	 * @param rows the number of rows written
+	 * @param bytes an estimate of the number of bytes written
+	 */
+	void markDirty(int rows, long bytes);
+
+	/**
+	 * Checks if the checkout holds changes which have not been committed.
+	 * This is cheap and does not read the whole database.
+	 *
+	 * @return true if a commit would record changes
+	 * @throws IOException if there is a problem reading or writing
+	 */
+	boolean isDirty() throws IOException;
+
 	/**
 	 * Users need to release handlers obtained by calling get[RO/RW]Database
 	 * by calling this method right after they are done with them.
@@ -93,6 +143,8 @@ public interface VdbCheckout {
 	 * so this means handles need to be held for short intervals spanning
 	 * single queries usually.
 	 *
+	 * Handlers must be released on the thread which obtained them.
+	 *
 	 *  TODO(emilian): Also need to handle write cursors or figure out some
 	 *  smarter way to obtain lock on db.
 	 */
@@ -101,6 +153,9 @@ public interface VdbCheckout {
 	/**
 	 * Reverts the database to the last saved stated, as found in the
 	 * last commit on this branch. The checkout should be a local branch.
+	 * Only the rows changed since the last commit are restored, so
+	 * databases handed out before stay valid, unless the schema changed
+	 * since the last commit.
 	 *
 	 * Also, if the checkout was in merging mode then it is put back into
 	 * normal mode.
@@ -137,10 +192,19 @@ public interface VdbCheckout {
 	 * </li>
 	 * </ol>
 	 *
-	 * After the successful return of this function, the checkout will
-	 * be marked for merging. The merge will be in the PENDING phase
-	 * and all commits against it will fail with
-	 * {@link MergeInProgressException}.
+	 * Their changes are merged into the checkout automatically, in one
+	 * transaction. Rows only changed on their side are applied, rows
+	 * changed differently on both sides keep our version and are listed
+	 * in a conflict table per table, see {@link MergeInfo#getConflicts()}.
+	 * Conflicts are then resolved by the policies configured for their
+	 * table, see {@link ConflictConfig}. Without conflicts the merge is resolved right away and the next
+	 * commit has two parents.
+	 *
+	 * Otherwise, after the successful return of this function, the
+	 * checkout will be marked for merging. The merge will be in the
+	 * PENDING phase and all commits against it will fail with
+	 * {@link MergeInProgressException} until {@link #doneMerge()} is
+	 * called.
 	 *
 	 * @param theirSha1 the sha1 of the version to be moved
 	 * @throws MergeInProgressException if the checkout was already marked
@@ -153,6 +217,19 @@ public interface VdbCheckout {
 	void startMerge(String theirSha1)
 		throws MergeInProgressException, DirtyCheckoutException, IOException;
 
+	/**
+	 * Previews a merge with the given commit without opening any
+	 * database. The preview is computed from the summaries stored in the
+	 * commits, so its counts are upper bounds on the changed and
+	 * conflicting rows of each table. Tables which are not keyed on a
+	 * single integer column are not summarized and are left out.
+	 *
+	 * @param theirSha1 the sha1 of the version to be merged
+	 * @return the preview or null if one of the commits has no summary
+	 * @throws IOException if there is a problem reading the commits
+	 */
+	MergePreview previewMerge(String theirSha1) throws IOException;
+
 	/**
 	 * Retrieves the merge information for this checkout. If it's not in merge
 	 * mode <code>null</code> will be returned.
@@ -163,7 +240,7 @@ public interface VdbCheckout {
 	/**
 	 * Marks the current merge as resolved, the next commit will not
 	 * throw {@link MergeInProgressException} and will result in a commit
-	 * with two parents.
+	 * with two parents. The conflict tables are dropped.
 	 */
 	void doneMerge();
 
@@ -192,10 +269,39 @@ public interface VdbCheckout {
 	String getSchema() throws IOException;
 
 	/**
-	 * Update the database for this checkout to the given schema.
+	 * Returns the fingerprint of the schema for this checkout, the
+	 * CRC-64-AVRO of its canonical form. The schema is read and parsed
+	 * once and kept until it changes.
+	 * @throws IOException if there is a problem reading.
+	 * @return the fingerprint or 0 if this is not an Avro based repository
+	 */
+	long getSchemaFingerprint() throws IOException;
+
+	/**
+	 * Update the database for this checkout to the given schema and
+	 * wait for the update to finish.
 	 * @param newSchema the new schema for the database.
 	 * @throws IOException  if there is a problem reading or writing.
+	 * @see #updateDatabaseAsync(Schema, ProgressMonitor)
 	 */
 	void updateDatabase(Schema newSchema) throws IOException;
 
+	/**
+	 * Starts updating the database for this checkout to the given schema
+	 * on a background thread. The data is copied to a new database in
+	 * batches while the current database stays available for reads and
+	 * writes. Rows written during the copy are copied again before the
+	 * new database replaces the current one, which is the only time the
+	 * checkout is locked. A schema which only adds fields, enumeration
+	 * symbols or records is applied in place without copying, in which
+	 * case the returned future is already done.
+	 * @param newSchema the new schema for the database
+	 * @param monitor the monitor to report progress to or null. The
+	 *     update stops if the monitor is cancelled.
+	 * @return a future giving a report on the update when it is done
+	 * @throws IOException if there is a problem reading or writing
+	 */
+	Future<MigrationReport> updateDatabaseAsync(Schema newSchema,
+			ProgressMonitor monitor) throws IOException;
+
 }
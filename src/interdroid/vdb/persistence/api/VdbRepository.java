@@ -31,7 +31,9 @@
 package interdroid.vdb.persistence.api;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.apache.avro.Schema;
 import org.eclipse.jgit.lib.ProgressMonitor;
@@ -86,12 +88,24 @@ public interface VdbRepository {
 	 * The returned object will be destined only for read access, methods
 	 * like commit and getReadWriteDatabase() will fail.
 	 *
+	 * The checkout is kept until it is released with
+	 * {@link #releaseCommit(VdbCheckout)}.
+	 *
 	 * @param sha1 the SHA1 of the commit to fetch
 	 * @return a checkout for the given commit
 	 * @throws IOException if there is a problem reading or writing
 	 */
 	VdbCheckout getCommit(String sha1) throws IOException;
 
+	/**
+	 * Releases a checkout returned by {@link #getCommit(String)} or
+	 * {@link #getRemoteBranch(String)}. The checkout may be evicted
+	 * afterwards and must not be used again.
+	 *
+	 * @param checkout the checkout to release
+	 */
+	void releaseCommit(VdbCheckout checkout);
+
 	/**
 	 * Retrieves a {@link VdbCheckout} object for the current version of
 	 * a remote branch.
@@ -103,7 +117,8 @@ public interface VdbRepository {
 	 * {@link VdbCheckout} object
 	 * does not change to the new version, instead another call to
 	 * {@link #getRemoteBranch(String)} needs to be made to retrieve an updated
-	 * checkout.
+	 * checkout. The checkout has to be released with
+	 * {@link #releaseCommit(VdbCheckout)}.
 	 *
 	 * @param remoteBranchName The "remoteName/branchName" formatted string,
 	 *     representing the branch, as returned by {@link #listRemoteBranches()}
@@ -210,6 +225,9 @@ public interface VdbRepository {
 	 * Returns a {@link RevWalk} object used to walk the revision graph
 	 * upwards to the root beginning at the given leaves.
 	 *
+	 * Every commit is parsed from the object database as it is walked,
+	 * use {@link #getHistory(String, int, int)} to list history.
+	 *
 	 * @param leaves The sha1 or branch names of the leaves to start the walk
 	 *     from, in case of an empty list all the branches are walked.
 	 * @return the {@link RevWalk} object
@@ -218,6 +236,22 @@ public interface VdbRepository {
 	RevWalk enumerateCommits(String ...leaves)
 		throws IOException;
 
+	/**
+	 * Returns a page of the history of a reference, newest commit first.
+	 * The history is read from an index of the commit graph which is
+	 * kept up to date as commits are made and fetched, so the cost of
+	 * a page depends on its end and not on the length of the history.
+	 *
+	 * @param reference the branch name, remote branch name or sha1
+	 *     to list the history of
+	 * @param offset the number of commits to skip
+	 * @param limit the maximum number of commits to return
+	 * @return the commits in the page
+	 * @throws IOException if there is a problem reading
+	 */
+	List<CommitInfo> getHistory(String reference, int offset, int limit)
+		throws IOException;
+
 	/**
 	 * Returns true if this repository is marked as a repository.
 	 * @return true if this is a repository.
@@ -232,6 +266,45 @@ public interface VdbRepository {
 	void setIsPublic(boolean isChecked) throws IOException;
 
 
+	/**
+	 * Sets the policy used to commit local branches automatically after
+	 * they have been written to through {@link VdbCheckout#markDirty}.
+	 * @param policy the policy to use
+	 */
+	void setAutoCommitPolicy(AutoCommitPolicy policy);
+
+	/**
+	 * @return the policy used to commit local branches automatically.
+	 */
+	AutoCommitPolicy getAutoCommitPolicy();
+
+	/**
+	 * Sets the policies used to resolve conflicts left by automatic
+	 * merges. These override policies set in the schema.
+	 * @param config the policies to use
+	 */
+	void setConflictConfig(ConflictConfig config);
+
+	/**
+	 * @return the policies used to resolve conflicts left by automatic
+	 * merges.
+	 */
+	ConflictConfig getConflictConfig();
+
+	/**
+	 * Packs and prunes the object database and removes stale temporary
+	 * checkouts in the background. This also happens automatically once
+	 * enough commits have been made.
+	 * @return the future report of the run
+	 */
+	Future<MaintenanceReport> runMaintenance();
+
+	/**
+	 * @return the report of the last maintenance run which did any work
+	 * or null if there was none.
+	 */
+	MaintenanceReport getLastMaintenanceReport();
+
 	/**
 	 * Update this database to a new schema.
 	 * @param newSchema the new schema for the database.
@@ -136,6 +136,31 @@ public final class VdbRepositoryRegistry {
 		return repoDir;
 	}
 
+	/**
+	 * Returns a repository which was created before, without building its
+	 * content provider. This is cheap compared to getRepository, which
+	 * initializes the repository completely.
+	 * @param context the context being requested from
+	 * @param repositoryName the name of the repository
+	 * @return the repository or null if it was never created
+	 * @throws IOException if reading or writing fails
+	 */
+	public VdbRepository getExistingRepository(final Context context,
+			final String repositoryName) throws IOException {
+		synchronized (this) {
+			if (mRepositories.containsKey(repositoryName)) {
+				return mRepositories.get(repositoryName);
+			}
+		}
+		File gitDir = new File(getRepositoryDir(context, repositoryName),
+				".git");
+		if (!gitDir.isDirectory()) {
+			return null;
+		}
+		// The initializer is only used to create the repository.
+		return addRepository(context, repositoryName, null);
+	}
+
 	/**
 	 * Returns a repository with the given name.
 	 * @param context the context being requested from
@@ -143,14 +168,26 @@ public final class VdbRepositoryRegistry {
 	 * @return the requested repository
 	 * @throws IOException if reading or writing fails
 	 */
-	public synchronized VdbRepository getRepository(final Context context,
+	public VdbRepository getRepository(final Context context,
 			final String repositoryName) throws IOException {
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Getting repository: {} : {}", repositoryName,
 					mRepositories.size());
 		}
-		// Make sure the repository has been initialized.
+		// Make sure the repository has been initialized. This must not
+		// hold the registry since repositories are initialized in
+		// parallel and add themselves to it.
 		new VdbProviderRegistry(context).initByName(repositoryName);
+		return getInitializedRepository(repositoryName);
+	}
+
+	/**
+	 * Returns a repository which has been initialized.
+	 * @param repositoryName the name of the repository
+	 * @return the repository or null if it is unknown
+	 */
+	private synchronized VdbRepository getInitializedRepository(
+			final String repositoryName) {
 		if (LOG.isDebugEnabled()) {
 			for (String repo : mRepositories.keySet()) {
 				LOG.debug("Repo: {}", repo);
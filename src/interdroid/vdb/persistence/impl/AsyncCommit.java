@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.persistence.api.CommitCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A commit requested through {@link VdbCheckoutImpl#commitAsync}.
+ *
+ * Until the commit starts further requests for the same checkout with
+ * the same author, email and message join it instead of queueing
+ * another commit, since the commit will pick up their writes as well.
+ * Once it has started a new request is needed for writes made after the
+ * database state was captured.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class AsyncCommit extends FutureTask<ObjectId> {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AsyncCommit.class);
+
+	/**
+	 * The callbacks to notify when the commit is done.
+	 */
+	private final List<CommitCallback> mCallbacks =
+			new ArrayList<CommitCallback>();
+
+	/**
+	 * A flag indicating the commit has started.
+	 */
+	private boolean mStarted;
+
+	/**
+	 * The name of the author.
+	 */
+	private final String mAuthorName;
+
+	/**
+	 * The email of the author.
+	 */
+	private final String mAuthorEmail;
+
+	/**
+	 * The commit message.
+	 */
+	private final String mMessage;
+
+	/**
+	 * The monitor progress is reported to.
+	 */
+	private final ProgressMonitor mMonitor;
+
+	/**
+	 * Construct a commit request.
+	 * @param checkout the checkout to commit
+	 * @param authorName the name of the author
+	 * @param authorEmail the email of the author
+	 * @param msg the commit message
+	 * @param monitor the monitor to report progress to
+	 */
+	AsyncCommit(final VdbCheckoutImpl checkout, final String authorName,
+			final String authorEmail, final String msg,
+			final ProgressMonitor monitor) {
+		super(new Callable<ObjectId>() {
+			@Override
+			public ObjectId call() throws Exception {
+				return checkout.commit(authorName, authorEmail, msg,
+						monitor);
+			}
+		});
+		mAuthorName = authorName;
+		mAuthorEmail = authorEmail;
+		mMessage = msg;
+		mMonitor = monitor;
+	}
+
+	/**
+	 * Joins this request if it has not started yet and makes the same
+	 * commit. Requests reporting to another monitor are not joined since
+	 * that monitor would not see any progress.
+	 * @param authorName the name of the author
+	 * @param authorEmail the email of the author
+	 * @param msg the commit message
+	 * @param monitor the monitor to report progress to or null
+	 * @param callback the callback to notify or null
+	 * @return true if the request was joined
+	 */
+	synchronized boolean join(final String authorName,
+			final String authorEmail, final String msg,
+			final ProgressMonitor monitor, final CommitCallback callback) {
+		if (mStarted || isDone()) {
+			return false;
+		}
+		if (!equal(mAuthorName, authorName)
+				|| !equal(mAuthorEmail, authorEmail)
+				|| !equal(mMessage, msg)
+				|| (monitor != null && monitor != mMonitor)) {
+			return false;
+		}
+		if (callback != null) {
+			mCallbacks.add(callback);
+		}
+		return true;
+	}
+
+	/**
+	 * @param a a string or null
+	 * @param b a string or null
+	 * @return true if both are null or equal
+	 */
+	private static boolean equal(final String a, final String b) {
+		if (a == null) {
+			return b == null;
+		}
+		return a.equals(b);
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			mStarted = true;
+		}
+		super.run();
+	}
+
+	@Override
+	protected void done() {
+		List<CommitCallback> callbacks;
+		synchronized (this) {
+			mStarted = true;
+			callbacks = new ArrayList<CommitCallback>(mCallbacks);
+		}
+		ObjectId commitId = null;
+		Throwable failure = null;
+		try {
+			commitId = get();
+		} catch (CancellationException e) {
+			failure = e;
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (InterruptedException e) {
+			failure = e;
+		}
+		for (CommitCallback callback : callbacks) {
+			try {
+				if (failure == null) {
+					callback.onCommitted(commitId);
+				} else {
+					callback.onFailed(failure);
+				}
+			} catch (RuntimeException e) {
+				LOG.warn("Commit callback failed.", e);
+			}
+		}
+	}
+}
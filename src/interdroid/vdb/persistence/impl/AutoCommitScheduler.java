@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.persistence.api.AutoCommitPolicy;
+import interdroid.vdb.persistence.api.MergeInProgressException;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects writes to a checkout and commits them in the background
+ * once the thresholds of the {@link AutoCommitPolicy} are reached,
+ * so that many small writes end up in a single commit.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+class AutoCommitScheduler {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AutoCommitScheduler.class);
+
+	/**
+	 * The message used for automatic commits.
+	 */
+	private static final String AUTO_COMMIT_MESSAGE = "Automatic commit of ";
+
+	/**
+	 * The minimum delay in milliseconds before a failed commit is
+	 * retried.
+	 */
+	private static final long RETRY_DELAY_MS = 5000;
+
+	/**
+	 * The checkout we commit.
+	 */
+	private final VdbCheckoutImpl mCheckout;
+
+	/**
+	 * The repository which provides the policy and the executor.
+	 */
+	private final VdbRepositoryImpl mRepository;
+
+	/**
+	 * The rows written since the last commit.
+	 */
+	private int mPendingRows;
+
+	/**
+	 * The estimated bytes written since the last commit.
+	 */
+	private long mPendingBytes;
+
+	/**
+	 * The time of the first write since the last commit or 0.
+	 */
+	private long mFirstWriteTime;
+
+	/**
+	 * The scheduled commit or null if none is scheduled.
+	 */
+	private ScheduledFuture<?> mScheduled;
+
+	/**
+	 * The lag between the first write and the commit for the last commit.
+	 */
+	private volatile long mLastCommitLag;
+
+	/**
+	 * The number of rows in the last commit.
+	 */
+	private volatile int mLastBatchSize;
+
+	/**
+	 * The task which performs the commit.
+	 */
+	private final Runnable mCommitTask = new Runnable() {
+		@Override
+		public void run() {
+			runCommit();
+		}
+	};
+
+	/**
+	 * Construct a scheduler for a checkout.
+	 * @param checkout the checkout to commit
+	 * @param repository the repository the checkout belongs to
+	 */
+	AutoCommitScheduler(final VdbCheckoutImpl checkout,
+			final VdbRepositoryImpl repository) {
+		mCheckout = checkout;
+		mRepository = repository;
+	}
+
+	/**
+	 * Records a write and schedules a commit if required.
+	 * @param rows the number of rows written
+	 * @param bytes the estimated number of bytes written
+	 */
+	final synchronized void onWrite(final int rows, final long bytes) {
+		AutoCommitPolicy policy = mRepository.getAutoCommitPolicy();
+		if (!policy.isEnabled()) {
+			return;
+		}
+		if (mFirstWriteTime == 0) {
+			mFirstWriteTime = System.currentTimeMillis();
+		}
+		mPendingRows += rows;
+		mPendingBytes += bytes;
+
+		if (policy.isFull(mPendingRows, mPendingBytes)) {
+			schedule(0);
+		} else if (mScheduled == null && policy.getMaxDelayMillis() > 0) {
+			schedule(policy.getMaxDelayMillis());
+		}
+	}
+
+	/**
+	 * Schedules the commit, moving an already scheduled commit forward
+	 * if required.
+	 * @param delay the delay in milliseconds
+	 */
+	private void schedule(final long delay) {
+		if (mScheduled != null) {
+			if (mScheduled.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+				return;
+			}
+			mScheduled.cancel(false);
+		}
+		ScheduledExecutorService executor =
+				mRepository.getAutoCommitExecutor();
+		mScheduled = executor.schedule(mCommitTask, delay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Commits the pending writes.
+	 */
+	private void runCommit() {
+		int rows;
+		long bytes;
+		long firstWrite;
+		synchronized (this) {
+			mScheduled = null;
+			rows = mPendingRows;
+			bytes = mPendingBytes;
+			firstWrite = mFirstWriteTime;
+			if (firstWrite == 0) {
+				return;
+			}
+			mPendingRows = 0;
+			mPendingBytes = 0;
+			mFirstWriteTime = 0;
+		}
+
+		try {
+			mCheckout.commit(VdbCheckoutImpl.VERSIONING_DAEMON,
+					VdbCheckoutImpl.VDB_EMAIL,
+					AUTO_COMMIT_MESSAGE + rows + " rows.");
+			mLastCommitLag = System.currentTimeMillis() - firstWrite;
+			mLastBatchSize = rows;
+			LOG.info("Auto commit of {} rows with lag {} ms.",
+					rows, mLastCommitLag);
+		} catch (MergeInProgressException e) {
+			LOG.debug("Postponing auto commit during merge.");
+			retry(rows, bytes, firstWrite);
+		} catch (IOException e) {
+			LOG.warn("Auto commit failed.", e);
+			retry(rows, bytes, firstWrite);
+		} catch (RuntimeException e) {
+			LOG.warn("Auto commit failed.", e);
+			retry(rows, bytes, firstWrite);
+		}
+	}
+
+	/**
+	 * Puts the writes of a failed commit back and schedules another
+	 * attempt, unless the checkout is gone.
+	 * @param rows the rows of the failed commit
+	 * @param bytes the bytes of the failed commit
+	 * @param firstWrite the time of the first write of the failed commit
+	 */
+	private synchronized void retry(final int rows, final long bytes,
+			final long firstWrite) {
+		if (mCheckout.isDeleted()) {
+			return;
+		}
+		mPendingRows += rows;
+		mPendingBytes += bytes;
+		// Writes made during the attempt came later.
+		mFirstWriteTime = firstWrite;
+		AutoCommitPolicy policy = mRepository.getAutoCommitPolicy();
+		if (policy.isEnabled()) {
+			schedule(Math.max(RETRY_DELAY_MS, policy.getMaxDelayMillis()));
+		}
+	}
+
+	/**
+	 * Cancels any scheduled commit.
+	 */
+	final synchronized void cancel() {
+		if (mScheduled != null) {
+			mScheduled.cancel(false);
+			mScheduled = null;
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds between the first write and
+	 * the commit for the last automatic commit
+	 */
+	final long getLastCommitLag() {
+		return mLastCommitLag;
+	}
+
+	/**
+	 * @return the number of rows in the last automatic commit
+	 */
+	final int getLastBatchSize() {
+		return mLastBatchSize;
+	}
+
+	/**
+	 * @return the number of rows waiting to be committed
+	 */
+	final synchronized int getPendingRows() {
+		return mPendingRows;
+	}
+}
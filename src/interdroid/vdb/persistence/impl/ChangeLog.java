@@ -0,0 +1,860 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Tracks row level changes made to a checkout database since the last
+ * commit and turns them into compact change sets which can be stored
+ * in a commit instead of a full snapshot of the database.
+ *
+ * Changes are recorded by triggers into a log table inside the database
+ * itself, so every write is captured regardless of which handle made it.
+ * The log only records which rows changed. The row values are read when
+ * the change set is built so the change set holds the net effect of all
+ * writes since the last commit.
+ *
+ * Every user table also gets a row stamp column, which triggers renew
+ * whenever a row changes. Stamps travel with the rows in change sets
+ * and merges, so comparing the stamps is enough to find the rows which
+ * differ between two versions of a database. Renewing a stamp is not
+ * logged again, so each write adds as many log entries as it would
+ * without stamps.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ChangeLog {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(ChangeLog.class);
+
+	/**
+	 * The prefix used for all internal tables and triggers.
+	 */
+	static final String INTERNAL_PREFIX = "_vdb_";
+
+	/**
+	 * The name of the table holding the log.
+	 */
+	static final String TABLE = INTERNAL_PREFIX + "changes";
+
+	/**
+	 * The name of the table which keeps log entries cleared by commits
+	 * while a schema migration is running.
+	 */
+	static final String MIGRATION_TABLE = INTERNAL_PREFIX + "migration";
+
+	/**
+	 * The column holding the stamp of each row in the user tables. The
+	 * stamp is replaced with a new random value whenever a row is
+	 * written without an explicit stamp, so rows with equal stamps in
+	 * two databases hold the same values.
+	 */
+	static final String STAMP_COLUMN = INTERNAL_PREFIX + "rowstamp";
+
+	/**
+	 * The version of the change set format.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/** Marks the end of a change set. */
+	private static final byte OP_END = 0;
+	/** Switches the table the following operations apply to. */
+	private static final byte OP_TABLE = 1;
+	/** Deletes a row by primary key. */
+	private static final byte OP_DELETE = 2;
+	/** Inserts or replaces a complete row. */
+	private static final byte OP_UPSERT = 3;
+
+	/** A null value. */
+	private static final byte VALUE_NULL = 0;
+	/** An integer value. */
+	private static final byte VALUE_INTEGER = 1;
+	/** A real value. */
+	private static final byte VALUE_REAL = 2;
+	/** A text value. */
+	private static final byte VALUE_TEXT = 3;
+	/** A blob value. */
+	private static final byte VALUE_BLOB = 4;
+
+	/**
+	 * The character set used for text in change sets.
+	 */
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * No construction.
+	 */
+	private ChangeLog() { }
+
+	/**
+	 * Creates the log table and installs the logging triggers and the
+	 * row stamps on all user tables in the database. This is safe to
+	 * call on every open.
+	 * @param db the database to install into
+	 */
+	static void install(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE
+				+ " (seq INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ " tbl TEXT NOT NULL, pk TEXT NOT NULL)");
+		for (String table : getUserTables(db)) {
+			List<String> keys = getKeyColumns(db, table);
+			installStamp(db, table, keys);
+			installTriggers(db, table, keys);
+		}
+	}
+
+	/**
+	 * Adds the stamp column to a table, indexes it together with the key
+	 * and installs the trigger which stamps inserted rows. Updated rows
+	 * are stamped by the update trigger, see
+	 * {@link #installTriggers(SQLiteDatabase, String, List)}. Rows written
+	 * before the stamp was installed keep a null stamp until they are
+	 * written again.
+	 * @param db the database the table lives in
+	 * @param table the name of the table
+	 * @param keys the key columns of the table
+	 */
+	private static void installStamp(final SQLiteDatabase db,
+			final String table, final List<String> keys) {
+		String name = identifier(table);
+		String stamp = identifier(STAMP_COLUMN);
+		addStampColumn(db, table);
+
+		// The rowid is part of every index already.
+		StringBuilder indexed = new StringBuilder();
+		for (String key : keys) {
+			if (!"rowid".equals(key)) {
+				indexed.append(identifier(key)).append(", ");
+			}
+		}
+		indexed.append(stamp);
+		db.execSQL("CREATE INDEX IF NOT EXISTS "
+				+ identifier(INTERNAL_PREFIX + "stamp_" + table)
+				+ " ON " + name + " (" + indexed + ")");
+
+		// Rows copied with their stamp, by a merge or when replaying a
+		// change set, keep it. Everything else gets a new one.
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+				+ identifier(INTERNAL_PREFIX + "stamp_ins_" + table)
+				+ " AFTER INSERT ON " + name
+				+ " WHEN NEW." + stamp + " IS NULL BEGIN "
+				+ restamp(table) + " END");
+	}
+
+	/**
+	 * @param table the name of the table
+	 * @return the statement giving the row of a trigger a new stamp
+	 */
+	private static String restamp(final String table) {
+		return "UPDATE " + identifier(table) + " SET "
+				+ identifier(STAMP_COLUMN)
+				+ " = random() WHERE rowid = NEW.rowid;";
+	}
+
+	/**
+	 * Adds the stamp column to all user tables without installing the
+	 * triggers, so rows can be copied into the tables with their stamps
+	 * before the log is installed.
+	 * @param db the database to add the columns to
+	 */
+	static void addStampColumns(final SQLiteDatabase db) {
+		for (String table : getUserTables(db)) {
+			addStampColumn(db, table);
+		}
+	}
+
+	/**
+	 * Adds the stamp column to a table unless it already has one.
+	 * @param db the database the table lives in
+	 * @param table the name of the table
+	 */
+	private static void addStampColumn(final SQLiteDatabase db,
+			final String table) {
+		if (!getColumns(db, "main", table).contains(STAMP_COLUMN)) {
+			db.execSQL("ALTER TABLE " + identifier(table) + " ADD COLUMN "
+					+ identifier(STAMP_COLUMN) + " INTEGER");
+		}
+	}
+
+	/**
+	 * Installs the triggers for a single table.
+	 *
+	 * The update trigger logs the old and the new key and renews the
+	 * stamp. It only fires for updates which leave the stamp alone, so
+	 * renewing the stamp does not log the row a second time. Updates
+	 * which set the stamp themselves must log the row, see
+	 * {@link #stampRows(SQLiteDatabase, String)}.
+	 *
+	 * @param db the database the table lives in
+	 * @param table the name of the table
+	 * @param keys the key columns of the table
+	 */
+	private static void installTriggers(final SQLiteDatabase db,
+			final String table, final List<String> keys) {
+		String tableLiteral = literal(table);
+		String insertLog = "INSERT INTO " + TABLE + " (tbl, pk) VALUES ("
+				+ tableLiteral + ", ";
+		String stamp = identifier(STAMP_COLUMN);
+		String update = identifier(INTERNAL_PREFIX + "upd_" + table);
+
+		// Older update triggers logged every update and left the stamp
+		// to a trigger of its own.
+		String existing = getTriggerSql(db, INTERNAL_PREFIX + "upd_" + table);
+		if (existing != null && !existing.contains(STAMP_COLUMN)) {
+			db.execSQL("DROP TRIGGER " + update);
+		}
+		db.execSQL("DROP TRIGGER IF EXISTS "
+				+ identifier(INTERNAL_PREFIX + "stamp_upd_" + table));
+
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+				+ identifier(INTERNAL_PREFIX + "ins_" + table)
+				+ " AFTER INSERT ON " + identifier(table) + " BEGIN "
+				+ insertLog + keyExpression(keys, "NEW") + "); END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS " + update
+				+ " AFTER UPDATE ON " + identifier(table)
+				+ " WHEN NEW." + stamp + " IS OLD." + stamp + " BEGIN "
+				+ insertLog + keyExpression(keys, "OLD") + "); "
+				+ insertLog + keyExpression(keys, "NEW") + "); "
+				+ restamp(table) + " END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+				+ identifier(INTERNAL_PREFIX + "del_" + table)
+				+ " AFTER DELETE ON " + identifier(table) + " BEGIN "
+				+ insertLog + keyExpression(keys, "OLD") + "); END");
+	}
+
+	/**
+	 * Gives all rows of a table which have no stamp yet a new one and
+	 * logs them. The update sets the stamp itself, so the triggers do
+	 * not log it.
+	 * @param db the database the table lives in
+	 * @param table the name of the table
+	 */
+	static void stampRows(final SQLiteDatabase db, final String table) {
+		String name = identifier(table);
+		String stamp = identifier(STAMP_COLUMN);
+		if (hasTable(db, TABLE)) {
+			db.execSQL("INSERT INTO " + TABLE + " (tbl, pk) SELECT "
+					+ literal(table) + ", "
+					+ keyExpression(getKeyColumns(db, table), name)
+					+ " FROM " + name + " WHERE " + stamp + " IS NULL");
+		}
+		db.execSQL("UPDATE " + name + " SET " + stamp + " = random()"
+				+ " WHERE " + stamp + " IS NULL");
+	}
+
+	/**
+	 * @param db the database to check
+	 * @param trigger the name of the trigger
+	 * @return the statement which created the trigger or null if there
+	 * is no such trigger
+	 */
+	private static String getTriggerSql(final SQLiteDatabase db,
+			final String trigger) {
+		Cursor c = db.rawQuery("SELECT sql FROM sqlite_master"
+				+ " WHERE type = 'trigger' AND name = ?",
+				new String[] {trigger});
+		try {
+			if (c.moveToFirst()) {
+				return c.getString(0);
+			}
+			return null;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Builds an SQL expression which evaluates to a where clause
+	 * selecting the row with the key of the given trigger row.
+	 * @param keys the key columns
+	 * @param row NEW or OLD, or the table when selecting from it
+	 * @return the expression
+	 */
+	private static String keyExpression(final List<String> keys,
+			final String row) {
+		StringBuilder expr = new StringBuilder();
+		for (int i = 0; i < keys.size(); i++) {
+			String key = identifier(keys.get(i));
+			if (i > 0) {
+				expr.append(" || ");
+			}
+			expr.append(literal((i > 0 ? " AND " : "") + key + " = "));
+			expr.append(" || quote(").append(row).append('.')
+			.append(key).append(')');
+		}
+		return expr.toString();
+	}
+
+	/**
+	 * @param db the database to check
+	 * @return true if there are changes which have not been committed
+	 */
+	static boolean hasChanges(final SQLiteDatabase db) {
+		return getMark(db) > 0;
+	}
+
+	/**
+	 * Returns the sequence number of the last logged change. Changes
+	 * up to and including the mark can later be cleared with
+	 * {@link #clear(SQLiteDatabase, long)}.
+	 * @param db the database to check
+	 * @return the mark or 0 if nothing was logged
+	 */
+	static long getMark(final SQLiteDatabase db) {
+		if (!hasTable(db, TABLE)) {
+			return 0;
+		}
+		SQLiteStatement stmt = db.compileStatement(
+				"SELECT IFNULL(MAX(seq), 0) FROM " + TABLE);
+		try {
+			return stmt.simpleQueryForLong();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Removes the log entries up to and including the given mark. While
+	 * a migration is running the entries are kept for it first.
+	 * @param db the database to clear
+	 * @param mark the mark to clear up to
+	 */
+	static void clear(final SQLiteDatabase db, final long mark) {
+		if (hasTable(db, TABLE)) {
+			if (hasTable(db, MIGRATION_TABLE)) {
+				db.execSQL("INSERT OR IGNORE INTO " + MIGRATION_TABLE
+						+ " SELECT seq, tbl, pk FROM " + TABLE
+						+ " WHERE seq <= " + mark);
+			}
+			db.execSQL("DELETE FROM " + TABLE + " WHERE seq <= " + mark);
+		}
+	}
+
+	/**
+	 * Starts keeping log entries for a migration, so entries cleared by
+	 * commits can still be read by the migration.
+	 * @param db the database being migrated
+	 * @return the mark of the last change before the migration
+	 */
+	static long beginMigration(final SQLiteDatabase db) {
+		install(db);
+		db.beginTransaction();
+		try {
+			db.execSQL("DROP TABLE IF EXISTS " + MIGRATION_TABLE);
+			db.execSQL("CREATE TABLE " + MIGRATION_TABLE
+					+ " (seq INTEGER PRIMARY KEY,"
+					+ " tbl TEXT NOT NULL, pk TEXT NOT NULL)");
+			long mark = getMark(db);
+			db.setTransactionSuccessful();
+			return mark;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Stops keeping log entries for a migration.
+	 * @param db the database which was being migrated
+	 */
+	static void endMigration(final SQLiteDatabase db) {
+		db.execSQL("DROP TABLE IF EXISTS " + MIGRATION_TABLE);
+	}
+
+	/**
+	 * Restores every logged row to its state in an attached database
+	 * holding the last commit and clears the log. Only the logged rows
+	 * are touched, so this takes time in proportion to the changes
+	 * since the last commit. The tables must have the same layout in
+	 * both databases.
+	 * @param db the database to revert
+	 * @param source the name the last commit is attached as
+	 * @return the number of rows restored
+	 */
+	static int revert(final SQLiteDatabase db, final String source) {
+		if (!hasTable(db, TABLE)) {
+			return 0;
+		}
+		// Read the log first since restoring the rows adds to it.
+		Map<String, Set<String>> rows =
+				new LinkedHashMap<String, Set<String>>();
+		Cursor c = db.rawQuery("SELECT tbl, pk FROM " + TABLE
+				+ " ORDER BY seq", null);
+		try {
+			while (c.moveToNext()) {
+				Set<String> keys = rows.get(c.getString(0));
+				if (keys == null) {
+					keys = new LinkedHashSet<String>();
+					rows.put(c.getString(0), keys);
+				}
+				keys.add(c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+
+		int restored = 0;
+		for (Map.Entry<String, Set<String>> table : rows.entrySet()) {
+			String name = identifier(table.getKey());
+			// The column order may differ when columns were added later.
+			List<String> columns = getColumns(db, "main", table.getKey());
+			columns.retainAll(getColumns(db, source, table.getKey()));
+			StringBuilder list = new StringBuilder();
+			for (String column : columns) {
+				if (list.length() > 0) {
+					list.append(", ");
+				}
+				list.append(identifier(column));
+			}
+			for (String key : table.getValue()) {
+				db.execSQL("DELETE FROM main." + name + " WHERE " + key);
+				db.execSQL("INSERT INTO main." + name + " (" + list
+						+ ") SELECT " + list + " FROM "
+						+ source + "." + name + " WHERE " + key);
+				restored++;
+			}
+		}
+		CommitSummary.update(db, false);
+		clear(db, Long.MAX_VALUE);
+		return restored;
+	}
+
+	/**
+	 * Writes the net effect of all logged changes up to the given mark
+	 * to the output stream.
+	 * @param db the database to read the changes from
+	 * @param mark the mark to read up to
+	 * @param out the stream to write the change set to
+	 * @return the number of rows in the change set
+	 * @throws IOException if writing fails
+	 */
+	static int write(final SQLiteDatabase db, final long mark,
+			final OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(FORMAT_VERSION);
+
+		Map<String, List<String>> columnCache =
+				new HashMap<String, List<String>>();
+		String currentTable = null;
+		List<String> columns = null;
+		int rows = 0;
+
+		Cursor changes = db.rawQuery("SELECT tbl, pk FROM " + TABLE
+				+ " WHERE seq <= " + mark + " GROUP BY tbl, pk"
+				+ " ORDER BY tbl", null);
+		try {
+			while (changes.moveToNext()) {
+				String table = changes.getString(0);
+				String where = changes.getString(1);
+				if (!table.equals(currentTable)) {
+					columns = columnCache.get(table);
+					if (columns == null) {
+						columns = getColumns(db, "main", table);
+						columnCache.put(table, columns);
+					}
+					currentTable = table;
+					dos.writeByte(OP_TABLE);
+					writeString(dos, table);
+					dos.writeInt(columns.size());
+					for (String column : columns) {
+						writeString(dos, column);
+					}
+				}
+				if (!writeRow(db, table, columns, where, dos)) {
+					dos.writeByte(OP_DELETE);
+					writeString(dos, where);
+				}
+				rows++;
+			}
+		} finally {
+			changes.close();
+		}
+		dos.writeByte(OP_END);
+		dos.flush();
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Wrote change set with " + rows + " rows.");
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes the current value of the row matching the where clause.
+	 * @param db the database to read from
+	 * @param table the table the row lives in
+	 * @param columns the columns in the table
+	 * @param where the where clause selecting the row
+	 * @param dos the stream to write to
+	 * @return false if the row no longer exists
+	 * @throws IOException if writing fails
+	 */
+	private static boolean writeRow(final SQLiteDatabase db,
+			final String table, final List<String> columns,
+			final String where, final DataOutputStream dos)
+					throws IOException {
+		// We ask SQLite for the type of each value since the declared
+		// type of a column says little about what is actually stored.
+		StringBuilder query = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.size(); i++) {
+			String column = identifier(columns.get(i));
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append("typeof(").append(column).append("), ")
+			.append(column);
+		}
+		query.append(" FROM ").append(identifier(table))
+		.append(" WHERE ").append(where);
+
+		Cursor row = db.rawQuery(query.toString(), null);
+		try {
+			if (!row.moveToFirst()) {
+				return false;
+			}
+			dos.writeByte(OP_UPSERT);
+			for (int i = 0; i < columns.size(); i++) {
+				String type = row.getString(2 * i);
+				int index = 2 * i + 1;
+				if ("integer".equals(type)) {
+					dos.writeByte(VALUE_INTEGER);
+					dos.writeLong(row.getLong(index));
+				} else if ("real".equals(type)) {
+					dos.writeByte(VALUE_REAL);
+					dos.writeDouble(row.getDouble(index));
+				} else if ("text".equals(type)) {
+					dos.writeByte(VALUE_TEXT);
+					writeString(dos, row.getString(index));
+				} else if ("blob".equals(type)) {
+					byte[] blob = row.getBlob(index);
+					dos.writeByte(VALUE_BLOB);
+					dos.writeInt(blob.length);
+					dos.write(blob);
+				} else {
+					dos.writeByte(VALUE_NULL);
+				}
+			}
+			return true;
+		} finally {
+			row.close();
+		}
+	}
+
+	/**
+	 * Applies a change set to the given database. The caller is
+	 * responsible for running this inside a transaction.
+	 * @param db the database to apply to
+	 * @param in the stream with the change set
+	 * @return the number of rows applied
+	 * @throws IOException if reading fails or the change set is corrupt
+	 */
+	static int apply(final SQLiteDatabase db, final InputStream in)
+			throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		int version = dis.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported change set version: "
+					+ version);
+		}
+
+		String table = null;
+		int columnCount = 0;
+		SQLiteStatement upsert = null;
+		int rows = 0;
+		try {
+			byte op;
+			while ((op = dis.readByte()) != OP_END) {
+				switch (op) {
+				case OP_TABLE:
+					if (upsert != null) {
+						upsert.close();
+					}
+					table = readString(dis);
+					columnCount = dis.readInt();
+					List<String> columns = new ArrayList<String>(columnCount);
+					for (int i = 0; i < columnCount; i++) {
+						columns.add(readString(dis));
+					}
+					if (columns.contains(STAMP_COLUMN)) {
+						// Snapshots taken before stamps were installed.
+						addStampColumn(db, table);
+					}
+					upsert = db.compileStatement(
+							buildUpsert(table, columns));
+					break;
+				case OP_DELETE:
+					checkTable(table);
+					db.execSQL("DELETE FROM " + identifier(table)
+							+ " WHERE " + readString(dis));
+					rows++;
+					break;
+				case OP_UPSERT:
+					checkTable(table);
+					upsert.clearBindings();
+					for (int i = 1; i <= columnCount; i++) {
+						bindValue(upsert, i, dis);
+					}
+					upsert.execute();
+					rows++;
+					break;
+				default:
+					throw new IOException("Corrupt change set.");
+				}
+			}
+		} finally {
+			if (upsert != null) {
+				upsert.close();
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads a value and binds it to the statement.
+	 * @param stmt the statement to bind to
+	 * @param index the index to bind
+	 * @param dis the stream to read from
+	 * @throws IOException if reading fails
+	 */
+	private static void bindValue(final SQLiteStatement stmt, final int index,
+			final DataInputStream dis) throws IOException {
+		byte type = dis.readByte();
+		switch (type) {
+		case VALUE_NULL:
+			stmt.bindNull(index);
+			break;
+		case VALUE_INTEGER:
+			stmt.bindLong(index, dis.readLong());
+			break;
+		case VALUE_REAL:
+			stmt.bindDouble(index, dis.readDouble());
+			break;
+		case VALUE_TEXT:
+			stmt.bindString(index, readString(dis));
+			break;
+		case VALUE_BLOB:
+			byte[] blob = new byte[dis.readInt()];
+			dis.readFully(blob);
+			stmt.bindBlob(index, blob);
+			break;
+		default:
+			throw new IOException("Corrupt change set value.");
+		}
+	}
+
+	/**
+	 * Checks that a table has been selected.
+	 * @param table the current table
+	 * @throws IOException if no table is selected
+	 */
+	private static void checkTable(final String table) throws IOException {
+		if (table == null) {
+			throw new IOException("Corrupt change set: no table.");
+		}
+	}
+
+	/**
+	 * Builds the INSERT OR REPLACE statement for a table.
+	 * @param table the table
+	 * @param columns the columns to fill
+	 * @return the SQL for the statement
+	 */
+	private static String buildUpsert(final String table,
+			final List<String> columns) {
+		StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ");
+		sql.append(identifier(table)).append(" (");
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sql.append(", ");
+				values.append(", ");
+			}
+			sql.append(identifier(columns.get(i)));
+			values.append('?');
+		}
+		sql.append(") VALUES (").append(values).append(')');
+		return sql.toString();
+	}
+
+	/**
+	 * @param db the database to list
+	 * @return the names of all tables which are not internal tables
+	 */
+	static List<String> getUserTables(final SQLiteDatabase db) {
+		List<String> tables = new ArrayList<String>();
+		Cursor c = db.rawQuery("SELECT name FROM sqlite_master"
+				+ " WHERE type = 'table' AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\'"
+				+ " AND name NOT LIKE '\\_vdb\\_%' ESCAPE '\\'"
+				+ " AND name != 'android_metadata'", null);
+		try {
+			while (c.moveToNext()) {
+				tables.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		return tables;
+	}
+
+	/**
+	 * @param db the database to check
+	 * @param table the table to look for
+	 * @return true if the table exists
+	 */
+	static boolean hasTable(final SQLiteDatabase db, final String table) {
+		Cursor c = db.rawQuery("SELECT 1 FROM sqlite_master"
+				+ " WHERE type = 'table' AND name = ?",
+				new String[] {table});
+		try {
+			return c.moveToFirst();
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @param db the database the table lives in
+	 * @param database the name of the attached database
+	 * @param table the table
+	 * @return the names of all columns in the table
+	 */
+	static List<String> getColumns(final SQLiteDatabase db,
+			final String database, final String table) {
+		List<String> columns = new ArrayList<String>();
+		Cursor c = db.rawQuery("PRAGMA " + database + ".table_info("
+				+ identifier(table) + ")", null);
+		try {
+			int nameIndex = c.getColumnIndexOrThrow("name");
+			while (c.moveToNext()) {
+				columns.add(c.getString(nameIndex));
+			}
+		} finally {
+			c.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the primary key columns for a table in key order. Tables
+	 * without a primary key are keyed on their rowid.
+	 * @param db the database the table lives in
+	 * @param table the table
+	 * @return the key columns
+	 */
+	private static List<String> getKeyColumns(final SQLiteDatabase db,
+			final String table) {
+		Map<Integer, String> byPosition = new HashMap<Integer, String>();
+		Cursor c = db.rawQuery("PRAGMA table_info(" + identifier(table) + ")",
+				null);
+		try {
+			int nameIndex = c.getColumnIndexOrThrow("name");
+			int pkIndex = c.getColumnIndexOrThrow("pk");
+			while (c.moveToNext()) {
+				int pk = c.getInt(pkIndex);
+				if (pk > 0) {
+					byPosition.put(pk, c.getString(nameIndex));
+				}
+			}
+		} finally {
+			c.close();
+		}
+		List<String> keys = new ArrayList<String>();
+		for (int i = 1; i <= byPosition.size(); i++) {
+			keys.add(byPosition.get(i));
+		}
+		if (keys.isEmpty()) {
+			keys.add("rowid");
+		}
+		return keys;
+	}
+
+	/**
+	 * @param name the name to quote
+	 * @return the name quoted as an SQL identifier
+	 */
+	static String identifier(final String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * @param value the value to quote
+	 * @return the value quoted as an SQL string literal
+	 */
+	static String literal(final String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * Writes a length prefixed UTF-8 string.
+	 * @param dos the stream to write to
+	 * @param value the string to write
+	 * @throws IOException if writing fails
+	 */
+	private static void writeString(final DataOutputStream dos,
+			final String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	/**
+	 * Reads a length prefixed UTF-8 string.
+	 * @param dis the stream to read from
+	 * @return the string
+	 * @throws IOException if reading fails
+	 */
+	private static String readString(final DataInputStream dis)
+			throws IOException {
+		byte[] bytes = new byte[dis.readInt()];
+		dis.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.util.FSUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded cache of the temporary read only checkouts of commits.
+ *
+ * Entries are keyed by the content of the commit so commits with the
+ * same tree share one checkout on disk. When the disk quota or the
+ * limit on open checkouts is exceeded the least recently used entries
+ * which are not in use are evicted. An entry is in use while it is
+ * pinned or while its checkout holds a database handle.
+ *
+ * Every materialization gets its own directory so an entry which is
+ * being evicted never shares files with a fresh checkout of the same
+ * content.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class CheckoutCache {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(CheckoutCache.class);
+
+	/**
+	 * An entry in the cache.
+	 */
+	private static final class Entry {
+		/**
+		 * The content key of the entry.
+		 */
+		private final String mKey;
+		/**
+		 * The directory holding the checkout.
+		 */
+		private final File mDirectory;
+		/**
+		 * The size of the files in the checkout.
+		 */
+		private final long mSize;
+		/**
+		 * The checkout object if one was requested.
+		 */
+		private VdbCheckoutImpl mCheckout;
+		/**
+		 * The number of pins on this entry.
+		 */
+		private int mPins;
+
+		/**
+		 * Construct an entry.
+		 * @param key the content key
+		 * @param directory the directory of the checkout
+		 * @param size the size of the files in the checkout
+		 */
+		Entry(final String key, final File directory, final long size) {
+			mKey = key;
+			mDirectory = directory;
+			mSize = size;
+		}
+	}
+
+	/**
+	 * The repository checkouts are made from.
+	 */
+	private final VdbRepositoryImpl mRepository;
+
+	/**
+	 * The entries in least recently used order.
+	 */
+	private final LinkedHashMap<String, Entry> mEntries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * The total size of all entries.
+	 */
+	private long mTotalSize;
+
+	/**
+	 * Counter used to name checkout directories.
+	 */
+	private int mSequence;
+
+	/**
+	 * Construct a cache for a repository.
+	 * @param repository the repository checkouts are made from
+	 */
+	CheckoutCache(final VdbRepositoryImpl repository) {
+		mRepository = repository;
+	}
+
+	/**
+	 * Returns the directory with a checkout of the given commit,
+	 * materializing it if required.
+	 * @param sha1 the commit to check out
+	 * @param pin true if the entry should be pinned
+	 * @return the directory with the checkout
+	 * @throws IOException if the checkout fails
+	 */
+	File getDirectory(final String sha1, final boolean pin)
+			throws IOException {
+		Entry entry = getEntry(sha1, pin);
+		trim();
+		return entry.mDirectory;
+	}
+
+	/**
+	 * Returns the read only checkout for the given commit. The entry is
+	 * pinned so the checkout is not evicted before the caller is done
+	 * with it, which it signals with {@link #unpin(VdbCheckoutImpl)}.
+	 * @param sha1 the commit to check out
+	 * @return the checkout
+	 * @throws IOException if the checkout fails
+	 */
+	VdbCheckoutImpl getCheckout(final String sha1) throws IOException {
+		Entry entry = getEntry(sha1, true);
+		VdbCheckoutImpl checkout;
+		synchronized (this) {
+			if (entry.mCheckout == null || entry.mCheckout.isDeleted()) {
+				entry.mCheckout = new VdbCheckoutImpl(mRepository, sha1,
+						entry.mDirectory, true);
+			}
+			checkout = entry.mCheckout;
+		}
+		trim();
+		return checkout;
+	}
+
+	/**
+	 * Removes a pin from the entry using the given directory.
+	 * @param directory the directory of the entry
+	 */
+	void unpin(final File directory) {
+		synchronized (this) {
+			for (Entry entry : mEntries.values()) {
+				if (entry.mDirectory.equals(directory)) {
+					if (entry.mPins > 0) {
+						entry.mPins--;
+					}
+					break;
+				}
+			}
+		}
+		trim();
+	}
+
+	/**
+	 * Removes a pin from the entry of a checkout returned by
+	 * {@link #getCheckout(String)}.
+	 * @param checkout the checkout
+	 */
+	void unpin(final VdbCheckoutImpl checkout) {
+		synchronized (this) {
+			for (Entry entry : mEntries.values()) {
+				if (entry.mCheckout == checkout) {
+					if (entry.mPins > 0) {
+						entry.mPins--;
+					}
+					break;
+				}
+			}
+		}
+		trim();
+	}
+
+	/**
+	 * Finds or creates the entry for the given commit.
+	 * @param sha1 the commit
+	 * @param pin true if the entry should be pinned
+	 * @return the entry
+	 * @throws IOException if the checkout fails
+	 */
+	private Entry getEntry(final String sha1, final boolean pin)
+			throws IOException {
+		String key = mRepository.getContentKey(sha1);
+		int sequence;
+		synchronized (this) {
+			Entry entry = mEntries.get(key);
+			if (entry != null && entry.mDirectory.isDirectory()) {
+				if (pin) {
+					entry.mPins++;
+				}
+				return entry;
+			}
+			if (entry != null) {
+				// Deleted behind our back.
+				remove(entry);
+			}
+			sequence = mSequence++;
+		}
+
+		// Materialize outside the lock. A racing thread may do the same,
+		// in which case the first one to finish wins.
+		File directory = mRepository.checkoutReference(
+				mRepository.getScratchName(key + "-" + sequence), sha1);
+		Entry created = new Entry(key, directory, sizeOf(directory));
+
+		synchronized (this) {
+			Entry entry = mEntries.get(key);
+			if (entry == null) {
+				entry = created;
+				mEntries.put(key, entry);
+				mTotalSize += entry.mSize;
+			} else {
+				FSUtil.removeDirectory(directory);
+			}
+			if (pin) {
+				entry.mPins++;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Removes an entry from the bookkeeping.
+	 * @param entry the entry to remove
+	 */
+	private void remove(final Entry entry) {
+		mEntries.remove(entry.mKey);
+		mTotalSize -= entry.mSize;
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache is within its
+	 * limits again or only entries in use remain. The most recently used
+	 * entry is never evicted.
+	 */
+	void trim() {
+		long maxSize = mRepository.getCheckoutCacheSize();
+		int maxCheckouts = mRepository.getCheckoutCacheHandles();
+		List<Entry> victims = new ArrayList<Entry>();
+		synchronized (this) {
+			int checkouts = 0;
+			for (Entry entry : mEntries.values()) {
+				if (entry.mCheckout != null) {
+					checkouts++;
+				}
+			}
+			Iterator<Entry> it = mEntries.values().iterator();
+			int remaining = mEntries.size();
+			while (it.hasNext() && remaining > 1
+					&& (mTotalSize > maxSize || checkouts > maxCheckouts)) {
+				Entry entry = it.next();
+				remaining--;
+				if (entry.mPins > 0) {
+					continue;
+				}
+				it.remove();
+				mTotalSize -= entry.mSize;
+				if (entry.mCheckout != null) {
+					checkouts--;
+				}
+				victims.add(entry);
+			}
+		}
+
+		for (Entry victim : victims) {
+			if (victim.mCheckout == null || victim.mCheckout.evict()) {
+				FSUtil.removeDirectory(victim.mDirectory);
+				LOG.debug("Evicted commit checkout: {}", victim.mDirectory);
+			} else {
+				// Still in use, put it back unless it was replaced. A
+				// replaced entry is left for the scratch cleanup.
+				synchronized (this) {
+					if (!mEntries.containsKey(victim.mKey)) {
+						mEntries.put(victim.mKey, victim);
+						mTotalSize += victim.mSize;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes and removes all entries.
+	 */
+	void clear() {
+		List<Entry> entries;
+		synchronized (this) {
+			entries = new ArrayList<Entry>(mEntries.values());
+			mEntries.clear();
+			mTotalSize = 0;
+		}
+		for (Entry entry : entries) {
+			if (entry.mCheckout != null) {
+				entry.mCheckout.close();
+			}
+		}
+	}
+
+	/**
+	 * Removes directories in the scratch area which do not belong to
+	 * any entry, such as the losers of a materialization race or
+	 * entries which could not be evicted. Directories younger than the
+	 * given age are kept since they may still be materializing.
+	 * @param minAgeMillis the minimum age of a directory to remove
+	 * @return the number of bytes freed
+	 */
+	long removeStale(final long minAgeMillis) {
+		File[] children = mRepository.getScratchDir().listFiles();
+		if (children == null) {
+			return 0;
+		}
+		List<File> live = new ArrayList<File>();
+		synchronized (this) {
+			for (Entry entry : mEntries.values()) {
+				live.add(entry.mDirectory.getAbsoluteFile());
+			}
+		}
+		long cutoff = System.currentTimeMillis() - minAgeMillis;
+		long freed = 0;
+		for (File child : children) {
+			if (child.isDirectory() && child.lastModified() < cutoff
+					&& !live.contains(child.getAbsoluteFile())) {
+				long size = sizeOf(child);
+				if (FSUtil.removeDirectory(child)) {
+					freed += size;
+					LOG.debug("Removed stale commit checkout: {}", child);
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * @param directory the directory to measure
+	 * @return the total size of the files in the directory
+	 */
+	private static long sizeOf(final File directory) {
+		long size = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+}
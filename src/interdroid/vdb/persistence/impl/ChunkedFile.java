@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a file in the object database as a tree of fixed size chunks
+ * instead of a single blob. Chunks are aligned to database pages so two
+ * versions of a database which differ in a few pages share all other
+ * chunks by object id.
+ *
+ * Chunks are named by their index in zero padded hex so the tree order
+ * is the order of the chunks in the file.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ChunkedFile {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ChunkedFile.class);
+
+	/**
+	 * The format used to name chunks.
+	 */
+	private static final String CHUNK_NAME_FORMAT = "%08x";
+
+	/**
+	 * No construction.
+	 */
+	private ChunkedFile() { }
+
+	/**
+	 * Rounds the requested chunk size up to a whole number of pages.
+	 * @param chunkSize the requested chunk size
+	 * @param pageSize the page size of the database
+	 * @return the chunk size to use or 0 if the file is not chunked
+	 */
+	static int alignChunkSize(final int chunkSize, final int pageSize) {
+		if (chunkSize <= 0 || pageSize <= 0) {
+			return chunkSize;
+		}
+		return ((chunkSize + pageSize - 1) / pageSize) * pageSize;
+	}
+
+	/**
+	 * Stores a file and appends it to the tree being built. If the chunk
+	 * size is zero or less the file is stored as a single blob.
+	 * Chunks which are already in the object database are not
+	 * written again.
+	 * @param tree the tree to append to
+	 * @param name the name of the entry in the tree
+	 * @param inserter the inserter to write objects with
+	 * @param reader the reader used to check for existing objects
+	 * @param file the file to store
+	 * @param chunkSize the size of each chunk
+	 * @param monitor the monitor to report each stored chunk to
+	 * @throws IOException if reading or writing fails
+	 */
+	static void append(final TreeFormatter tree, final String name,
+			final ObjectInserter inserter, final ObjectReader reader,
+			final File file, final int chunkSize,
+			final ProgressMonitor monitor) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			if (chunkSize <= 0) {
+				monitor.beginTask("Storing " + name, 1);
+				tree.append(name, FileMode.REGULAR_FILE,
+						inserter.insert(Constants.OBJ_BLOB, file.length(), in));
+				monitor.update(1);
+				return;
+			}
+			monitor.beginTask("Storing " + name,
+					(int) ((file.length() + chunkSize - 1) / chunkSize));
+
+			TreeFormatter chunks = new TreeFormatter();
+			byte[] buffer = new byte[chunkSize];
+			int index = 0;
+			int written = 0;
+			int length;
+			while ((length = readChunk(in, buffer)) > 0) {
+				ObjectId id = inserter.idFor(Constants.OBJ_BLOB,
+						buffer, 0, length);
+				if (!reader.has(id, Constants.OBJ_BLOB)) {
+					inserter.insert(Constants.OBJ_BLOB, buffer, 0, length);
+					written++;
+				}
+				chunks.append(String.format(CHUNK_NAME_FORMAT, index),
+						FileMode.REGULAR_FILE, id);
+				index++;
+				monitor.update(1);
+			}
+			tree.append(name, FileMode.TREE, inserter.insert(chunks));
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Stored " + name + " as " + index + " chunks, "
+						+ written + " new.");
+			}
+		} finally {
+			monitor.endTask();
+			in.close();
+		}
+	}
+
+	/**
+	 * Fills the buffer from the stream.
+	 * @param in the stream to read from
+	 * @param buffer the buffer to fill
+	 * @return the number of bytes read, less than the buffer size only
+	 * at the end of the stream
+	 * @throws IOException if reading fails
+	 */
+	private static int readChunk(final InputStream in, final byte[] buffer)
+			throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read == -1) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Writes a stored file back to disk, reassembling the chunks if the
+	 * file was stored as a tree.
+	 * @param reader the reader to read objects with
+	 * @param id the id of the blob or tree
+	 * @param mode the mode of the entry
+	 * @param target the file to write to
+	 * @throws IOException if reading or writing fails
+	 */
+	static void write(final ObjectReader reader, final ObjectId id,
+			final FileMode mode, final File target) throws IOException {
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			if (FileMode.TREE.equals(mode.getBits())) {
+				// Releasing the walk would release the caller's reader.
+				TreeWalk walk = new TreeWalk(reader);
+				walk.addTree(id);
+				while (walk.next()) {
+					reader.open(walk.getObjectId(0), Constants.OBJ_BLOB)
+					.copyTo(out);
+				}
+			} else {
+				reader.open(id, Constants.OBJ_BLOB).copyTo(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of the commit graph of a repository. For every
+ * commit the index holds the parents, the commit time and the generation
+ * number, so history listing and merge base queries can run without
+ * parsing commits from the object database.
+ *
+ * The index is kept in a file in the git directory. The file holds a
+ * header followed by one record per commit, where parents are stored
+ * as the index of their record. Since parents are always written before
+ * their children new commits are appended to the file. A truncated last
+ * record, as left behind by a crash, is dropped when the file is read.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+/* package */ final class CommitGraph {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(CommitGraph.class);
+
+	/**
+	 * The name of the index file in the git directory.
+	 */
+	/* package */ static final String FILE_NAME = "vdb-commit-graph";
+
+	/**
+	 * The magic number at the start of the file.
+	 */
+	private static final int MAGIC = 0x56434731;
+
+	/**
+	 * The version of the file format.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The size of the header in bytes.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The size of a record without its parents in bytes.
+	 */
+	private static final int RECORD_SIZE = Constants.OBJECT_ID_LENGTH + 9;
+
+	/**
+	 * The size of a parent entry in a record in bytes.
+	 */
+	private static final int PARENT_SIZE = 4;
+
+	/**
+	 * The maximum number of parents a record can hold.
+	 */
+	private static final int MAX_PARENTS = 255;
+
+	/**
+	 * The maximum number of commits a merge base can be computed for.
+	 */
+	private static final int MAX_TIPS = 64;
+
+	/**
+	 * A commit in the graph.
+	 */
+	/* package */ static final class Node extends ObjectId {
+		/**
+		 * The serial version of this class.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The position of this node in the file.
+		 */
+		private final int mIndex;
+
+		/**
+		 * The commit time in seconds since the epoch.
+		 */
+		private final int mCommitTime;
+
+		/**
+		 * The generation, one more than the highest parent generation.
+		 */
+		private final int mGeneration;
+
+		/**
+		 * The parents of this commit.
+		 */
+		private final Node[] mParents;
+
+		/**
+		 * Construct a node.
+		 * @param id the id of the commit
+		 * @param index the position of the node in the file
+		 * @param commitTime the commit time
+		 * @param parents the parents of the commit
+		 */
+		private Node(final AnyObjectId id, final int index,
+				final int commitTime, final Node[] parents) {
+			super(id);
+			mIndex = index;
+			mCommitTime = commitTime;
+			mParents = parents;
+			int generation = 0;
+			for (Node parent : parents) {
+				generation = Math.max(generation, parent.mGeneration);
+			}
+			mGeneration = generation + 1;
+		}
+
+		/**
+		 * @return the commit time in seconds since the epoch
+		 */
+		/* package */ int getCommitTime() {
+			return mCommitTime;
+		}
+
+		/**
+		 * @return the generation of the commit, 1 for a root commit
+		 */
+		/* package */ int getGeneration() {
+			return mGeneration;
+		}
+
+		/**
+		 * @return the number of parents
+		 */
+		/* package */ int getParentCount() {
+			return mParents.length;
+		}
+
+		/**
+		 * @param i the index of the parent
+		 * @return the parent
+		 */
+		/* package */ Node getParent(final int i) {
+			return mParents[i];
+		}
+	}
+
+	/**
+	 * Orders nodes the way a history is listed, newest first.
+	 */
+	private static final Comparator<Node> BY_TIME = new Comparator<Node>() {
+		@Override
+		public int compare(final Node a, final Node b) {
+			if (a.mCommitTime != b.mCommitTime) {
+				return a.mCommitTime > b.mCommitTime ? -1 : 1;
+			}
+			if (a.mGeneration != b.mGeneration) {
+				return a.mGeneration > b.mGeneration ? -1 : 1;
+			}
+			return b.mIndex - a.mIndex;
+		}
+	};
+
+	/**
+	 * Orders nodes so that a node always comes before its ancestors.
+	 */
+	private static final Comparator<Node> BY_GENERATION =
+			new Comparator<Node>() {
+		@Override
+		public int compare(final Node a, final Node b) {
+			if (a.mGeneration != b.mGeneration) {
+				return a.mGeneration > b.mGeneration ? -1 : 1;
+			}
+			return b.mIndex - a.mIndex;
+		}
+	};
+
+	/**
+	 * The file holding the index.
+	 */
+	private final File mFile;
+
+	/**
+	 * The nodes by commit id.
+	 */
+	private final ObjectIdSubclassMap<Node> mNodes =
+			new ObjectIdSubclassMap<Node>();
+
+	/**
+	 * The nodes in the order they are stored in the file.
+	 */
+	private final ArrayList<Node> mOrder = new ArrayList<Node>();
+
+	/**
+	 * The number of nodes which have been written to the file.
+	 */
+	private int mPersisted;
+
+	/**
+	 * True once the file has been read.
+	 */
+	private boolean mLoaded;
+
+	/**
+	 * Construct a commit graph stored in the given git directory.
+	 * @param gitDir the git directory of the repository
+	 */
+	/* package */ CommitGraph(final File gitDir) {
+		mFile = new File(gitDir, FILE_NAME);
+	}
+
+	/**
+	 * Returns the node for a commit, adding the commit and all of its
+	 * ancestors which are not yet known to the index. Only the commits
+	 * which are missing are parsed from the object database.
+	 * @param repo the repository to read commits from
+	 * @param commitId the commit to look up
+	 * @return the node for the commit
+	 * @throws IOException if reading the commits fails
+	 */
+	/* package */ synchronized Node get(final Repository repo,
+			final AnyObjectId commitId) throws IOException {
+		load();
+		Node node = mNodes.get(commitId);
+		if (node != null) {
+			return node;
+		}
+
+		RevWalk walk = new RevWalk(repo);
+		walk.setRetainBody(false);
+		try {
+			LinkedList<RevCommit> pending = new LinkedList<RevCommit>();
+			pending.addFirst(walk.parseCommit(commitId));
+			while (!pending.isEmpty()) {
+				RevCommit commit = pending.getFirst();
+				if (mNodes.contains(commit)) {
+					pending.removeFirst();
+					continue;
+				}
+				boolean ready = true;
+				for (RevCommit parent : commit.getParents()) {
+					if (!mNodes.contains(parent)) {
+						walk.parseHeaders(parent);
+						pending.addFirst(parent);
+						ready = false;
+					}
+				}
+				if (ready) {
+					pending.removeFirst();
+					add(commit);
+				}
+			}
+		} finally {
+			walk.release();
+		}
+		persist();
+		return mNodes.get(commitId);
+	}
+
+	/**
+	 * Adds every commit reachable from the given references which is
+	 * not yet in the index.
+	 * @param repo the repository to read commits from
+	 * @param tips the commits to add
+	 * @throws IOException if reading the commits fails
+	 */
+	/* package */ void update(final Repository repo,
+			final Iterable<? extends AnyObjectId> tips) throws IOException {
+		RevWalk walk = new RevWalk(repo);
+		try {
+			for (AnyObjectId tip : tips) {
+				// Tags are peeled, references to anything else are skipped.
+				RevObject object = walk.peel(walk.parseAny(tip));
+				if (object.getType() == Constants.OBJ_COMMIT) {
+					get(repo, object);
+				}
+			}
+		} finally {
+			walk.release();
+		}
+	}
+
+	/**
+	 * Lists a page of the history of a commit, newest first. Only the
+	 * commits up to the end of the page are visited.
+	 * @param tip the commit to list the history of
+	 * @param offset the number of commits to skip
+	 * @param limit the maximum number of commits to return
+	 * @return the commits in the page
+	 */
+	/* package */ List<Node> history(final Node tip, final int offset,
+			final int limit) {
+		List<Node> page = new ArrayList<Node>(Math.min(limit, 64));
+		PriorityQueue<Node> queue = new PriorityQueue<Node>(16, BY_TIME);
+		Set<Node> seen = new HashSet<Node>();
+		queue.add(tip);
+		seen.add(tip);
+		int skipped = 0;
+		while (!queue.isEmpty() && page.size() < limit) {
+			Node node = queue.poll();
+			if (skipped < offset) {
+				skipped++;
+			} else {
+				page.add(node);
+			}
+			for (Node parent : node.mParents) {
+				if (seen.add(parent)) {
+					queue.add(parent);
+				}
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Finds a best common ancestor of the given commits. Nodes are
+	 * visited in order of decreasing generation, so no node is visited
+	 * before all of its descendants reachable from the commits and the
+	 * first node reached from all commits is a merge base. Only nodes
+	 * with a generation at least that of the merge base are visited.
+	 * @param tips the commits to find the merge base of
+	 * @return the merge base or null if the commits share no history
+	 */
+	/* package */ Node mergeBase(final Node... tips) {
+		if (tips.length > MAX_TIPS) {
+			throw new IllegalArgumentException(
+					"Can not merge more than " + MAX_TIPS + " commits.");
+		}
+		final long all = tips.length == MAX_TIPS
+				? -1L : (1L << tips.length) - 1;
+		Map<Node, Long> reached = new HashMap<Node, Long>();
+		PriorityQueue<Node> queue =
+				new PriorityQueue<Node>(16, BY_GENERATION);
+		for (int i = 0; i < tips.length; i++) {
+			Long flags = reached.get(tips[i]);
+			if (flags == null) {
+				queue.add(tips[i]);
+				flags = 0L;
+			}
+			reached.put(tips[i], flags | (1L << i));
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			long flags = reached.get(node);
+			if (flags == all) {
+				return node;
+			}
+			for (Node parent : node.mParents) {
+				Long parentFlags = reached.get(parent);
+				if (parentFlags == null) {
+					queue.add(parent);
+					reached.put(parent, flags);
+				} else {
+					reached.put(parent, parentFlags | flags);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of commits in the index
+	 */
+	/* package */ synchronized int size() {
+		return mOrder.size();
+	}
+
+	/**
+	 * Adds a commit whose parents are all in the index.
+	 * @param commit the commit to add
+	 * @throws IOException if the commit has more parents than a record
+	 * can hold
+	 */
+	private void add(final RevCommit commit) throws IOException {
+		if (commit.getParentCount() > MAX_PARENTS) {
+			throw new IOException("Commit " + commit.name() + " has "
+					+ commit.getParentCount() + " parents, at most "
+					+ MAX_PARENTS + " can be indexed.");
+		}
+		Node[] parents = new Node[commit.getParentCount()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = mNodes.get(commit.getParent(i));
+		}
+		Node node = new Node(commit, mOrder.size(), commit.getCommitTime(),
+				parents);
+		mNodes.add(node);
+		mOrder.add(node);
+	}
+
+	/**
+	 * Reads the index file if it has not been read yet.
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if (!mFile.exists()) {
+			return;
+		}
+
+		long valid = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Unknown commit graph format.");
+			}
+			valid = HEADER_SIZE;
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			while (true) {
+				try {
+					in.readFully(raw);
+				} catch (EOFException e) {
+					break;
+				}
+				int commitTime = in.readInt();
+				in.readInt(); // The generation is recomputed.
+				Node[] parents = new Node[in.readUnsignedByte()];
+				for (int i = 0; i < parents.length; i++) {
+					int index = in.readInt();
+					if (index < 0 || index >= mOrder.size()) {
+						throw new IOException("Corrupt commit graph.");
+					}
+					parents[i] = mOrder.get(index);
+				}
+				Node node = new Node(ObjectId.fromRaw(raw), mOrder.size(),
+						commitTime, parents);
+				mNodes.add(node);
+				mOrder.add(node);
+				valid += RECORD_SIZE + PARENT_SIZE * parents.length;
+			}
+		} catch (EOFException e) {
+			LOG.warn("Dropping truncated commit graph record.");
+		} catch (IOException e) {
+			LOG.warn("Discarding unreadable commit graph.", e);
+			mNodes.clear();
+			mOrder.clear();
+			valid = 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing commit graph.", e);
+				}
+			}
+		}
+
+		mPersisted = mOrder.size();
+		if (valid == 0) {
+			if (!mFile.delete()) {
+				LOG.warn("Unable to delete commit graph.");
+			}
+		} else if (valid != mFile.length()) {
+			truncate(valid);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Loaded commit graph with " + mOrder.size()
+					+ " commits.");
+		}
+	}
+
+	/**
+	 * Cuts the file back to the last complete record.
+	 * @param length the length of the complete records
+	 */
+	private void truncate(final long length) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to truncate commit graph.", e);
+			mPersisted = 0;
+			if (!mFile.delete()) {
+				LOG.warn("Unable to delete commit graph.");
+			}
+		}
+	}
+
+	/**
+	 * Appends the nodes which have not been written yet to the file.
+	 * If writing fails the file is removed and written in full the
+	 * next time.
+	 */
+	private void persist() {
+		if (mPersisted == mOrder.size()) {
+			return;
+		}
+		boolean append = mPersisted > 0 && mFile.exists();
+		if (!append) {
+			mPersisted = 0;
+		}
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(mFile, append)));
+			if (!append) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			}
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int i = mPersisted; i < mOrder.size(); i++) {
+				Node node = mOrder.get(i);
+				node.copyRawTo(raw, 0);
+				out.write(raw);
+				out.writeInt(node.mCommitTime);
+				out.writeInt(node.mGeneration);
+				out.writeByte(node.mParents.length);
+				for (int p = 0; p < node.mParents.length; p++) {
+					out.writeInt(node.mParents[p].mIndex);
+				}
+			}
+			out.close();
+			out = null;
+			mPersisted = mOrder.size();
+		} catch (IOException e) {
+			LOG.warn("Unable to write commit graph.", e);
+			mPersisted = 0;
+			if (!mFile.delete()) {
+				LOG.warn("Unable to delete commit graph.");
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing commit graph.", e);
+				}
+			}
+		}
+	}
+}
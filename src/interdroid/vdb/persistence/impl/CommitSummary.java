@@ -0,0 +1,603 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+import interdroid.vdb.persistence.api.MergePreview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Summarizes the rows of a database by ranges of primary keys. Every
+ * range holds the number of rows in it and the exclusive or of their
+ * row stamps, so two versions of a table only differ in ranges where
+ * the summaries differ. Each commit carries the summary of its
+ * database, which lets diffs and merges skip unchanged ranges and lets
+ * a merge be previewed without opening any database.
+ *
+ * Only tables keyed on a single integer column are summarized. The
+ * summary of a checkout is kept in a table in its database and is
+ * brought up to date from the change log, so the work done for a
+ * commit is in proportion to the changes.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class CommitSummary {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(CommitSummary.class);
+
+	/**
+	 * The name of the table holding the summary of a checkout.
+	 */
+	static final String TABLE = ChangeLog.INTERNAL_PREFIX + "summary";
+
+	/**
+	 * The number of low key bits which are the same in a range.
+	 */
+	static final int RANGE_BITS = 10;
+
+	/**
+	 * The version of the summary format.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/** The index of the number of rows in a range. */
+	private static final int ROWS = 0;
+	/** The index of the hash of a range. */
+	private static final int HASH = 1;
+
+	/**
+	 * The ranges of every table by the key bits above
+	 * {@link #RANGE_BITS}.
+	 */
+	private final Map<String, SortedMap<Long, long[]>> mTables =
+			new HashMap<String, SortedMap<Long, long[]>>();
+
+	/**
+	 * Construct an empty summary.
+	 */
+	private CommitSummary() { }
+
+	/**
+	 * Brings the summary of a checkout up to date with all logged
+	 * changes. This has to run before the log is cleared, in the same
+	 * transaction the log is read in.
+	 * @param db the checkout database
+	 * @param create true to summarize tables which have no summary yet,
+	 * which stamps all their rows
+	 */
+	static void update(final SQLiteDatabase db, final boolean create) {
+		if (!ChangeLog.hasTable(db, ChangeLog.TABLE)) {
+			return;
+		}
+		if (!ChangeLog.hasTable(db, TABLE)) {
+			if (!create) {
+				return;
+			}
+			db.execSQL("CREATE TABLE " + TABLE + " (tbl TEXT NOT NULL,"
+					+ " bucket INTEGER NOT NULL, rows INTEGER NOT NULL,"
+					+ " hash INTEGER NOT NULL, PRIMARY KEY (tbl, bucket))");
+		}
+
+		Map<String, String> keys = new HashMap<String, String>();
+		for (String table : ChangeLog.getUserTables(db)) {
+			String key = getKey(db, table);
+			if (key == null) {
+				continue;
+			}
+			if (!isSummarized(db, table) && hasRows(db, table)) {
+				if (create) {
+					summarize(db, table, key);
+				}
+			} else {
+				keys.put(table, key);
+			}
+		}
+
+		// Collect the ranges holding logged rows
+		Map<String, Set<Long>> changed = new HashMap<String, Set<Long>>();
+		Set<String> unparsed = new HashSet<String>();
+		Cursor c = db.rawQuery("SELECT tbl, pk FROM " + ChangeLog.TABLE
+				+ " GROUP BY tbl, pk", null);
+		try {
+			while (c.moveToNext()) {
+				String table = c.getString(0);
+				String key = keys.get(table);
+				if (key == null || unparsed.contains(table)) {
+					continue;
+				}
+				String prefix = ChangeLog.identifier(key) + " = ";
+				String where = c.getString(1);
+				try {
+					if (!where.startsWith(prefix)) {
+						throw new NumberFormatException(where);
+					}
+					Set<Long> ranges = changed.get(table);
+					if (ranges == null) {
+						ranges = new HashSet<Long>();
+						changed.put(table, ranges);
+					}
+					ranges.add(Long.parseLong(where.substring(
+							prefix.length())) >> RANGE_BITS);
+				} catch (NumberFormatException e) {
+					// A key which is not stored as an integer.
+					unparsed.add(table);
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		for (String table : unparsed) {
+			changed.remove(table);
+			summarize(db, table, keys.get(table));
+		}
+		for (Map.Entry<String, Set<Long>> entry : changed.entrySet()) {
+			updateRanges(db, entry.getKey(), keys.get(entry.getKey()),
+					entry.getValue());
+		}
+	}
+
+	/**
+	 * @param db the database the table lives in
+	 * @param table the table
+	 * @return the key column of the table or null if it can not be
+	 * summarized
+	 */
+	private static String getKey(final SQLiteDatabase db,
+			final String table) {
+		String key = null;
+		Cursor c = db.rawQuery("PRAGMA table_info("
+				+ ChangeLog.identifier(table) + ")", null);
+		try {
+			int nameIndex = c.getColumnIndexOrThrow("name");
+			int typeIndex = c.getColumnIndexOrThrow("type");
+			int pkIndex = c.getColumnIndexOrThrow("pk");
+			while (c.moveToNext()) {
+				if (c.getInt(pkIndex) == 0) {
+					continue;
+				}
+				if (key != null || MergeHelper.affinity(c.getString(
+						typeIndex)) != DatabaseFieldType.INTEGER) {
+					return null;
+				}
+				key = c.getString(nameIndex);
+			}
+		} finally {
+			c.close();
+		}
+		return key;
+	}
+
+	/**
+	 * @param db the database to check
+	 * @param table the table
+	 * @return true if the summary has ranges for the table
+	 */
+	private static boolean isSummarized(final SQLiteDatabase db,
+			final String table) {
+		Cursor c = db.rawQuery("SELECT 1 FROM " + TABLE + " WHERE tbl = ?"
+				+ " LIMIT 1", new String[] {table});
+		try {
+			return c.moveToFirst();
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @param db the database to check
+	 * @param table the table
+	 * @return true if the table has rows
+	 */
+	private static boolean hasRows(final SQLiteDatabase db,
+			final String table) {
+		Cursor c = db.rawQuery("SELECT 1 FROM "
+				+ ChangeLog.identifier(table) + " LIMIT 1", null);
+		try {
+			return c.moveToFirst();
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Summarizes all rows of a table. Rows which were never stamped are
+	 * stamped first, which adds them to the change log.
+	 * @param db the database the table lives in
+	 * @param table the table
+	 * @param key the key column of the table
+	 */
+	private static void summarize(final SQLiteDatabase db,
+			final String table, final String key) {
+		String name = ChangeLog.identifier(table);
+		String stamp = ChangeLog.identifier(ChangeLog.STAMP_COLUMN);
+		ChangeLog.stampRows(db, table);
+		db.delete(TABLE, "tbl = ?", new String[] {table});
+
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE
+				+ " VALUES (?, ?, ?, ?)");
+		Cursor c = db.rawQuery("SELECT " + ChangeLog.identifier(key)
+				+ " >> " + RANGE_BITS + ", " + stamp + " FROM " + name
+				+ " ORDER BY 1", null);
+		int ranges = 0;
+		try {
+			boolean more = c.moveToFirst();
+			while (more) {
+				long range = c.getLong(0);
+				long rows = 0;
+				long hash = 0;
+				do {
+					rows++;
+					hash ^= c.getLong(1);
+					more = c.moveToNext();
+				} while (more && c.getLong(0) == range);
+				insertRange(insert, table, range, rows, hash);
+				ranges++;
+			}
+		} finally {
+			c.close();
+			insert.close();
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Summarized " + table + " in " + ranges + " ranges.");
+		}
+	}
+
+	/**
+	 * Recomputes the given ranges of a table.
+	 * @param db the database the table lives in
+	 * @param table the table
+	 * @param key the key column of the table
+	 * @param ranges the ranges to recompute
+	 */
+	private static void updateRanges(final SQLiteDatabase db,
+			final String table, final String key, final Set<Long> ranges) {
+		SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+				+ TABLE + " VALUES (?, ?, ?, ?)");
+		String stamps = "SELECT "
+				+ ChangeLog.identifier(ChangeLog.STAMP_COLUMN) + " FROM "
+				+ ChangeLog.identifier(table) + " WHERE "
+				+ ChangeLog.identifier(key) + " BETWEEN ? AND ?";
+		try {
+			for (Long range : ranges) {
+				String[] bounds = new String[] {
+						String.valueOf(range << RANGE_BITS),
+						String.valueOf((range << RANGE_BITS)
+								+ (1 << RANGE_BITS) - 1)};
+				long rows = 0;
+				long hash = 0;
+				Cursor c = db.rawQuery(stamps, bounds);
+				try {
+					while (c.moveToNext()) {
+						rows++;
+						hash ^= c.getLong(0);
+					}
+				} finally {
+					c.close();
+				}
+				if (rows == 0) {
+					db.delete(TABLE, "tbl = ? AND bucket = ?",
+							new String[] {table, String.valueOf(range)});
+				} else {
+					insertRange(insert, table, range, rows, hash);
+				}
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Stores a range in the summary table.
+	 * @param insert the statement inserting the range
+	 * @param table the table the range belongs to
+	 * @param range the range
+	 * @param rows the number of rows in the range
+	 * @param hash the hash of the range
+	 */
+	private static void insertRange(final SQLiteStatement insert,
+			final String table, final long range, final long rows,
+			final long hash) {
+		insert.bindString(1, table);
+		insert.bindLong(2, range);
+		insert.bindLong(3, rows);
+		insert.bindLong(4, hash);
+		insert.executeInsert();
+	}
+
+	/**
+	 * Reads the summary of a checkout. It has to be brought up to date
+	 * with {@link #update(SQLiteDatabase, boolean)} first.
+	 * @param db the checkout database
+	 * @return the summary
+	 */
+	static CommitSummary read(final SQLiteDatabase db) {
+		CommitSummary summary = new CommitSummary();
+		if (!ChangeLog.hasTable(db, TABLE)) {
+			return summary;
+		}
+		Cursor c = db.rawQuery("SELECT tbl, bucket, rows, hash FROM " + TABLE,
+				null);
+		try {
+			while (c.moveToNext()) {
+				summary.getRanges(c.getString(0)).put(c.getLong(1),
+						new long[] {c.getLong(2), c.getLong(3)});
+			}
+		} finally {
+			c.close();
+		}
+		return summary;
+	}
+
+	/**
+	 * Reads a summary stored in a commit.
+	 * @param in the stream to read from
+	 * @return the summary
+	 * @throws IOException if reading fails or the summary is corrupt
+	 */
+	static CommitSummary read(final InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		int version = dis.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported summary version: " + version);
+		}
+		if (dis.readInt() != RANGE_BITS) {
+			throw new IOException("Unsupported summary range size.");
+		}
+		CommitSummary summary = new CommitSummary();
+		int tables = dis.readInt();
+		for (int i = 0; i < tables; i++) {
+			SortedMap<Long, long[]> ranges = summary.getRanges(dis.readUTF());
+			int count = dis.readInt();
+			for (int j = 0; j < count; j++) {
+				ranges.put(dis.readLong(),
+						new long[] {dis.readLong(), dis.readLong()});
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Writes the summary so it can be stored in a commit.
+	 * @param out the stream to write to
+	 * @throws IOException if writing fails
+	 */
+	void write(final OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(FORMAT_VERSION);
+		dos.writeInt(RANGE_BITS);
+		dos.writeInt(mTables.size());
+		for (Map.Entry<String, SortedMap<Long, long[]>> table
+				: mTables.entrySet()) {
+			dos.writeUTF(table.getKey());
+			dos.writeInt(table.getValue().size());
+			for (Map.Entry<Long, long[]> range
+					: table.getValue().entrySet()) {
+				dos.writeLong(range.getKey());
+				dos.writeLong(range.getValue()[ROWS]);
+				dos.writeLong(range.getValue()[HASH]);
+			}
+		}
+		dos.flush();
+	}
+
+	/**
+	 * @param table the table
+	 * @return the ranges of the table, which are created if needed
+	 */
+	private SortedMap<Long, long[]> getRanges(final String table) {
+		SortedMap<Long, long[]> ranges = mTables.get(table);
+		if (ranges == null) {
+			ranges = new TreeMap<Long, long[]>();
+			mTables.put(table, ranges);
+		}
+		return ranges;
+	}
+
+	/**
+	 * @param table the table
+	 * @return true if the table is summarized
+	 */
+	boolean hasTable(final String table) {
+		return mTables.containsKey(table);
+	}
+
+	/**
+	 * Returns the ranges in which a table differs from another summary.
+	 * A table which is missing from one of the summaries differs in all
+	 * ranges of the other.
+	 * @param table the table
+	 * @param other the summary to compare with
+	 * @return the ranges which differ in ascending order
+	 */
+	SortedSet<Long> getChangedRanges(final String table,
+			final CommitSummary other) {
+		SortedMap<Long, long[]> mine = getRangesOrEmpty(table);
+		SortedMap<Long, long[]> theirs = other.getRangesOrEmpty(table);
+		SortedSet<Long> changed = new TreeSet<Long>();
+		for (Map.Entry<Long, long[]> range : mine.entrySet()) {
+			long[] otherRange = theirs.get(range.getKey());
+			if (otherRange == null
+					|| otherRange[ROWS] != range.getValue()[ROWS]
+					|| otherRange[HASH] != range.getValue()[HASH]) {
+				changed.add(range.getKey());
+			}
+		}
+		for (Long range : theirs.keySet()) {
+			if (!mine.containsKey(range)) {
+				changed.add(range);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param table the table
+	 * @return the ranges of the table or an empty map
+	 */
+	private SortedMap<Long, long[]> getRangesOrEmpty(final String table) {
+		SortedMap<Long, long[]> ranges = mTables.get(table);
+		if (ranges == null) {
+			return new TreeMap<Long, long[]>();
+		}
+		return ranges;
+	}
+
+	/**
+	 * Returns the most rows which can differ in a range between two
+	 * summaries.
+	 * @param table the table
+	 * @param other the summary to compare with
+	 * @param range the range
+	 * @return the bound on the changed rows
+	 */
+	private long getChangedRows(final String table,
+			final CommitSummary other, final Long range) {
+		long[] mine = getRangesOrEmpty(table).get(range);
+		long[] theirs = other.getRangesOrEmpty(table).get(range);
+		long rows = 0;
+		if (mine != null) {
+			rows += mine[ROWS];
+		}
+		if (theirs != null) {
+			rows += theirs[ROWS];
+		}
+		return Math.min(rows, 1 << RANGE_BITS);
+	}
+
+	/**
+	 * Previews a merge from the summaries of the commits involved.
+	 * Counts are upper bounds, since only whole ranges are compared.
+	 * @param base the summary of the merge base
+	 * @param ours the summary of our commit
+	 * @param theirs the summary of their commit
+	 * @return the preview
+	 */
+	static MergePreview preview(final CommitSummary base,
+			final CommitSummary ours, final CommitSummary theirs) {
+		Set<String> tables = new TreeSet<String>(base.mTables.keySet());
+		tables.addAll(ours.mTables.keySet());
+		tables.addAll(theirs.mTables.keySet());
+
+		MergePreview preview = new MergePreview();
+		for (String table : tables) {
+			SortedSet<Long> ourRanges = base.getChangedRanges(table, ours);
+			SortedSet<Long> theirRanges = base.getChangedRanges(table, theirs);
+			long ourRows = 0;
+			for (Long range : ourRanges) {
+				ourRows += base.getChangedRows(table, ours, range);
+			}
+			long theirRows = 0;
+			long conflicts = 0;
+			for (Long range : theirRanges) {
+				long rows = base.getChangedRows(table, theirs, range);
+				theirRows += rows;
+				if (ourRanges.contains(range)) {
+					conflicts += Math.min(rows,
+							base.getChangedRows(table, ours, range));
+				}
+			}
+			preview.addTable(table, ourRows, theirRows, conflicts);
+		}
+		return preview;
+	}
+
+	/**
+	 * Builds a condition selecting the rows in the given ranges.
+	 * Adjacent ranges are joined.
+	 * @param column the key column to test, ready for use in SQL
+	 * @param ranges the ranges in ascending order
+	 * @return the condition
+	 */
+	static String rangeCondition(final String column,
+			final SortedSet<Long> ranges) {
+		if (ranges.isEmpty()) {
+			return "0 == 1";
+		}
+		StringBuilder condition = new StringBuilder("(");
+		Long start = null;
+		Long end = null;
+		for (Long range : ranges) {
+			if (end != null && range == end + 1) {
+				end = range;
+				continue;
+			}
+			if (start != null) {
+				appendRange(condition, column, start, end);
+			}
+			start = range;
+			end = range;
+		}
+		appendRange(condition, column, start, end);
+		return condition.append(')').toString();
+	}
+
+	/**
+	 * Appends a BETWEEN test for a run of ranges.
+	 * @param condition the condition to append to
+	 * @param column the key column
+	 * @param start the first range in the run
+	 * @param end the last range in the run
+	 */
+	private static void appendRange(final StringBuilder condition,
+			final String column, final long start, final long end) {
+		if (condition.length() > 1) {
+			condition.append(" OR ");
+		}
+		condition.append(column).append(" BETWEEN ")
+		.append(start << RANGE_BITS).append(" AND ")
+		.append((end << RANGE_BITS) + (1 << RANGE_BITS) - 1);
+	}
+}
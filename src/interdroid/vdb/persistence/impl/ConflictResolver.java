@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.GenericContentProvider;
+import interdroid.vdb.content.avro.AvroEntityInfo;
+import interdroid.vdb.content.avro.AvroMetadata;
+import interdroid.vdb.content.metadata.EntityInfo;
+import interdroid.vdb.persistence.api.ConflictConfig;
+import interdroid.vdb.persistence.api.ConflictPolicy;
+import interdroid.vdb.persistence.api.ConflictSet;
+import interdroid.vdb.persistence.impl.MergeHelper.TableMetadata;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Applies the conflict policies chosen for a repository to the
+ * conflicts a merge left behind. Every policy resolves all conflicts of
+ * a table with a handful of statements, so the time taken hardly
+ * depends on the number of conflicts.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ConflictResolver {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ConflictResolver.class);
+
+	/**
+	 * The policies to apply.
+	 */
+	private final ConflictConfig mConfig;
+
+	/**
+	 * The time of our commit.
+	 */
+	private final long mOurTime;
+
+	/**
+	 * The time of their commit.
+	 */
+	private final long mTheirTime;
+
+	/**
+	 * Construct a resolver.
+	 * @param config the policies to apply
+	 * @param ourTime the time of our commit in milliseconds
+	 * @param theirTime the time of their commit in milliseconds
+	 */
+	ConflictResolver(final ConflictConfig config, final long ourTime,
+			final long theirTime) {
+		mConfig = config;
+		mOurTime = ourTime;
+		mTheirTime = theirTime;
+	}
+
+	/**
+	 * Reads the policies set in a schema with the
+	 * {@link ConflictConfig#SCHEMA_PROPERTY} property. Tables holding
+	 * arrays and maps use the policy of the record they belong to.
+	 * @param schema the schema or an empty string if there is none
+	 * @return the policies
+	 */
+	static ConflictConfig fromSchema(final String schema) {
+		ConflictConfig config = new ConflictConfig();
+		if (schema == null || schema.length() == 0) {
+			return config;
+		}
+		// Properties do not change the fingerprint, so read them from
+		// this exact text rather than from a shared cache entry.
+		Schema parsed = Schema.parse(schema);
+		String namespace = parsed.getNamespace();
+		for (EntityInfo entity : new AvroMetadata(parsed).getEntities()) {
+			String table = GenericContentProvider.escapeName(namespace,
+					entity.namespace(), entity.name());
+			for (EntityInfo owner = entity; owner != null;
+					owner = owner.parentEntity) {
+				String policy = getSchema(owner).getProp(
+						ConflictConfig.SCHEMA_PROPERTY);
+				if (policy != null) {
+					config.setPolicy(table, policy);
+					break;
+				}
+			}
+			Schema entitySchema = getSchema(entity);
+			if (entitySchema.getType() == Schema.Type.RECORD) {
+				for (Field field : entitySchema.getFields()) {
+					String policy = field.getProp(
+							ConflictConfig.SCHEMA_PROPERTY);
+					if (policy != null) {
+						config.setPolicy(table, field.name(), policy);
+					}
+				}
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * @param entity an entity built from an Avro schema
+	 * @return the schema of the entity
+	 */
+	private static Schema getSchema(final EntityInfo entity) {
+		return ((AvroEntityInfo) entity).getSchema();
+	}
+
+	/**
+	 * Resolves the conflicts in all conflict tables of the checkout.
+	 * Conflict tables which end up empty are dropped.
+	 * @param db the checkout database with the merged databases attached
+	 * @return the number of conflicts left
+	 */
+	int resolve(final SQLiteDatabase db) {
+		MergeHelper helper = new MergeHelper();
+		int remaining = 0;
+		for (String table : ChangeLog.getUserTables(db)) {
+			String conflicts = MergeHelper.CONFLICT_PREFIX + table;
+			if (!ChangeLog.hasTable(db, conflicts)) {
+				continue;
+			}
+			ConflictPolicy policy = createPolicy(mConfig.getPolicy(table));
+			if (policy != null) {
+				TableMetadata meta = helper.getTableMetadata(db, table);
+				int resolved = policy.resolve(db, new ConflictSet(table,
+						conflicts, meta.mKeyFields, meta.mNormalFields,
+						mConfig.getFieldPolicies(table), mOurTime,
+						mTheirTime));
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Resolved " + resolved + " conflicts in "
+							+ table + " with " + mConfig.getPolicy(table));
+				}
+			}
+			int left = count(db, conflicts);
+			if (left == 0) {
+				db.execSQL("DROP TABLE " + ChangeLog.identifier(conflicts));
+			}
+			remaining += left;
+		}
+		return remaining;
+	}
+
+	/**
+	 * @param name the name of a policy or a class implementing one
+	 * @return the policy or null if there is none or it can not be made
+	 */
+	private ConflictPolicy createPolicy(final String name) {
+		if (name == null) {
+			return null;
+		}
+		String side = resolveSide(name);
+		if (ConflictConfig.OURS.equals(side)) {
+			return new OursPolicy();
+		} else if (ConflictConfig.THEIRS.equals(side)) {
+			return new TheirsPolicy();
+		} else if (ConflictConfig.FIELD_MERGE.equals(name)) {
+			return new FieldMergePolicy();
+		}
+		try {
+			return (ConflictPolicy) Class.forName(name).newInstance();
+		} catch (ClassNotFoundException e) {
+			LOG.warn("Unknown conflict policy: {}", name);
+		} catch (InstantiationException e) {
+			LOG.warn("Unable to create conflict policy: {}", name);
+		} catch (IllegalAccessException e) {
+			LOG.warn("Unable to create conflict policy: {}", name);
+		} catch (ClassCastException e) {
+			LOG.warn("Not a conflict policy: {}", name);
+		}
+		return null;
+	}
+
+	/**
+	 * Turns last writer wins into the side with the latest commit.
+	 * @param policy the policy
+	 * @return the policy with the side filled in
+	 */
+	private String resolveSide(final String policy) {
+		if (ConflictConfig.LAST_WRITER_WINS.equals(policy)) {
+			if (mTheirTime > mOurTime) {
+				return ConflictConfig.THEIRS;
+			}
+			return ConflictConfig.OURS;
+		}
+		return policy;
+	}
+
+	/**
+	 * @param db the database to query
+	 * @param table the table to count
+	 * @return the number of rows in the table
+	 */
+	private static int count(final SQLiteDatabase db, final String table) {
+		SQLiteStatement stmt = db.compileStatement("SELECT COUNT(*) FROM "
+				+ ChangeLog.identifier(table));
+		try {
+			return (int) stmt.simpleQueryForLong();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Keeps our side, which the checkout already holds.
+	 */
+	private static final class OursPolicy implements ConflictPolicy {
+		@Override
+		public int resolve(final SQLiteDatabase db,
+				final ConflictSet conflicts) {
+			int resolved = count(db, conflicts.getConflictTable());
+			db.execSQL("DELETE FROM "
+					+ ChangeLog.identifier(conflicts.getConflictTable()));
+			return resolved;
+		}
+	}
+
+	/**
+	 * Replaces our side with theirs, deleting rows they deleted.
+	 */
+	private static final class TheirsPolicy implements ConflictPolicy {
+		@Override
+		public int resolve(final SQLiteDatabase db,
+				final ConflictSet conflicts) {
+			String name = ChangeLog.identifier(conflicts.getTable());
+			String list = ChangeLog.identifier(conflicts.getConflictTable());
+			StringBuilder columns = new StringBuilder();
+			for (String key : conflicts.getKeys()) {
+				appendColumn(columns, key);
+			}
+			for (String field : conflicts.getFields()) {
+				appendColumn(columns, field);
+			}
+			if (ChangeLog.getColumns(db, "main", conflicts.getTable())
+					.contains(ChangeLog.STAMP_COLUMN)
+					&& ChangeLog.getColumns(db, "theirs", conflicts.getTable())
+					.contains(ChangeLog.STAMP_COLUMN)) {
+				appendColumn(columns, ChangeLog.STAMP_COLUMN);
+			}
+
+			db.execSQL("DELETE FROM main." + name + " WHERE EXISTS"
+					+ " (SELECT 1 FROM " + list + " c WHERE "
+					+ conflicts.keyCondition("c", name) + " AND c."
+					+ ConflictSet.COL_THEIRS + " = 'DELETED')");
+			db.execSQL("INSERT OR REPLACE INTO main." + name + " ("
+					+ columns + ") SELECT " + columns + " FROM theirs."
+					+ name + " th WHERE EXISTS (SELECT 1 FROM " + list
+					+ " c WHERE " + conflicts.keyCondition("c", "th") + ")");
+			int resolved = count(db, conflicts.getConflictTable());
+			db.execSQL("DELETE FROM " + list);
+			return resolved;
+		}
+	}
+
+	/**
+	 * Merges rows changed on both sides field by field. A field changed
+	 * on one side only takes the value of that side. A field changed
+	 * differently on both sides takes the side given by its policy and
+	 * keeps the row in conflict if it has none.
+	 */
+	private final class FieldMergePolicy implements ConflictPolicy {
+		@Override
+		public int resolve(final SQLiteDatabase db,
+				final ConflictSet conflicts) {
+			String name = ChangeLog.identifier(conflicts.getTable());
+			String list = ChangeLog.identifier(conflicts.getConflictTable());
+			int before = count(db, conflicts.getConflictTable());
+			String sides = " FROM theirs." + name + " th LEFT JOIN base."
+					+ name + " b ON " + conflicts.keyCondition("b", "th");
+
+			StringBuilder set = new StringBuilder();
+			for (String field : conflicts.getFields()) {
+				String column = ChangeLog.identifier(field);
+				StringBuilder take = new StringBuilder();
+				take.append("th.").append(column).append(" IS NOT b.")
+				.append(column);
+				if (!ConflictConfig.THEIRS.equals(
+						resolveSide(conflicts.getFieldPolicy(field)))) {
+					take.append(" AND ").append(name).append('.')
+					.append(column).append(" IS b.").append(column);
+				}
+				if (set.length() > 0) {
+					set.append(", ");
+				}
+				set.append(column).append(" = (SELECT CASE WHEN ")
+				.append(take).append(" THEN th.").append(column)
+				.append(" ELSE ").append(name).append('.').append(column)
+				.append(" END").append(sides).append(" WHERE ")
+				.append(conflicts.keyCondition("th", name)).append(')');
+			}
+			if (set.length() > 0) {
+				db.execSQL("UPDATE main." + name + " SET " + set
+						+ " WHERE EXISTS (SELECT 1 FROM " + list + " c, theirs."
+						+ name + " th LEFT JOIN base." + name + " b ON "
+						+ conflicts.keyCondition("b", "th") + " WHERE "
+						+ conflicts.keyCondition("c", name) + " AND "
+						+ conflicts.keyCondition("th", name) + " AND "
+						+ bothExist("c") + " AND " + mergeable(conflicts, name) + ")");
+			}
+			// Merged rows now only differ in fields changed on one side.
+			db.execSQL("DELETE FROM " + list + " WHERE " + bothExist(list)
+					+ " AND EXISTS (SELECT 1 FROM main." + name + " m,"
+					+ " theirs." + name + " th LEFT JOIN base." + name
+					+ " b ON " + conflicts.keyCondition("b", "th") + " WHERE "
+					+ conflicts.keyCondition("m", list) + " AND "
+					+ conflicts.keyCondition("th", list) + " AND "
+					+ mergeable(conflicts, "m") + ")");
+			return before - count(db, conflicts.getConflictTable());
+		}
+
+		/**
+		 * Builds a condition which holds for rows where every field
+		 * without a policy was changed on at most one side or to the
+		 * same value on both sides.
+		 * @param conflicts the conflicts
+		 * @param ours the table or alias holding our row
+		 * @return the condition
+		 */
+		private String mergeable(final ConflictSet conflicts,
+				final String ours) {
+			StringBuilder condition = new StringBuilder("1");
+			for (String field : conflicts.getFields()) {
+				if (conflicts.getFieldPolicy(field) != null) {
+					continue;
+				}
+				String column = ChangeLog.identifier(field);
+				condition.append(" AND NOT (").append(ours).append('.')
+				.append(column).append(" IS NOT b.").append(column)
+				.append(" AND th.").append(column).append(" IS NOT b.")
+				.append(column).append(" AND ").append(ours).append('.')
+				.append(column).append(" IS NOT th.").append(column)
+				.append(')');
+			}
+			return condition.toString();
+		}
+	}
+
+	/**
+	 * @param alias the conflict table or its alias
+	 * @return a condition selecting conflicts where the row exists on
+	 * both sides
+	 */
+	private static String bothExist(final String alias) {
+		return alias + "." + ConflictSet.COL_OURS + " != 'DELETED' AND "
+				+ alias + "." + ConflictSet.COL_THEIRS + " != 'DELETED'";
+	}
+
+	/**
+	 * Appends a column to a comma separated list of columns.
+	 * @param columns the list to append to
+	 * @param column the column to append
+	 */
+	private static void appendColumn(final StringBuilder columns,
+			final String column) {
+		if (columns.length() > 0) {
+			columns.append(", ");
+		}
+		columns.append(ChangeLog.identifier(column));
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+
+import java.util.List;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Compares a key column of the current rows of two cursors the way
+ * SQLite sorts it, given the type of the column. Integers and reals are
+ * compared as primitives and text is copied into buffers owned by the
+ * comparator, so comparing keys does not allocate once the buffers
+ * have grown to the longest key. Cursors only hand out blobs as copies.
+ *
+ * Comparators for text keep state and may only be used by one thread.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+abstract class KeyComparator {
+	/**
+	 * The initial size of the buffers text is copied into.
+	 */
+	private static final int TEXT_BUFFER_SIZE = 64;
+
+	/**
+	 * Compares the non null values of a column.
+	 * @param ours the cursor on our row
+	 * @param theirs the cursor on their row
+	 * @param column the index of the column in both cursors
+	 * @return less than 0 if ours comes first, 0 if the values are equal
+	 * and more than 0 if theirs comes first
+	 */
+	abstract int compare(Cursor ours, Cursor theirs, int column);
+
+	/**
+	 * Builds the comparators for the columns of a key.
+	 * @param types the types of the key columns
+	 * @return the comparators in key order
+	 */
+	static KeyComparator[] forKey(final List<DatabaseFieldType> types) {
+		KeyComparator[] comparators = new KeyComparator[types.size()];
+		for (int i = 0; i < comparators.length; i++) {
+			comparators[i] = forType(types.get(i));
+		}
+		return comparators;
+	}
+
+	/**
+	 * @param type the type of a column
+	 * @return a comparator for the column
+	 */
+	static KeyComparator forType(final DatabaseFieldType type) {
+		switch (type) {
+		case INTEGER:
+			return new IntegerComparator();
+		case REAL_NUMBER:
+			return new RealComparator();
+		case BLOB:
+			return new BlobComparator();
+		default:
+			return new TextComparator();
+		}
+	}
+
+	/**
+	 * Compares the keys held in the first columns of two cursors. The
+	 * columns are compared in order, with NULL sorting first.
+	 * @param comparators the comparators for the key columns
+	 * @param ours the cursor on our row
+	 * @param theirs the cursor on their row
+	 * @return less than 0 if ours comes first, 0 if the keys are equal
+	 * and more than 0 if theirs comes first
+	 */
+	static int compareKeys(final KeyComparator[] comparators,
+			final Cursor ours, final Cursor theirs) {
+		for (int i = 0; i < comparators.length; i++) {
+			boolean ourNull = ours.isNull(i);
+			boolean theirNull = theirs.isNull(i);
+			int order;
+			if (ourNull || theirNull) {
+				order = (ourNull ? 0 : 1) - (theirNull ? 0 : 1);
+			} else {
+				order = comparators[i].compare(ours, theirs, i);
+			}
+			if (order != 0) {
+				return order;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares integer columns.
+	 */
+	private static final class IntegerComparator extends KeyComparator {
+		@Override
+		int compare(final Cursor ours, final Cursor theirs, final int column) {
+			long ourLong = ours.getLong(column);
+			long theirLong = theirs.getLong(column);
+			return ourLong < theirLong ? -1 : (ourLong == theirLong ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Compares real columns.
+	 */
+	private static final class RealComparator extends KeyComparator {
+		@Override
+		int compare(final Cursor ours, final Cursor theirs, final int column) {
+			return Double.compare(ours.getDouble(column),
+					theirs.getDouble(column));
+		}
+	}
+
+	/**
+	 * Compares text columns by code point, which is the order SQLite
+	 * sorts UTF-8 text in.
+	 */
+	private static final class TextComparator extends KeyComparator {
+		/** The buffer our text is copied into. */
+		private final CharArrayBuffer mOurs =
+				new CharArrayBuffer(TEXT_BUFFER_SIZE);
+		/** The buffer their text is copied into. */
+		private final CharArrayBuffer mTheirs =
+				new CharArrayBuffer(TEXT_BUFFER_SIZE);
+
+		@Override
+		int compare(final Cursor ours, final Cursor theirs, final int column) {
+			ours.copyStringToBuffer(column, mOurs);
+			theirs.copyStringToBuffer(column, mTheirs);
+			return compareText(mOurs.data, mOurs.sizeCopied,
+					mTheirs.data, mTheirs.sizeCopied);
+		}
+	}
+
+	/**
+	 * Compares blob columns as unsigned bytes, which is the order SQLite
+	 * sorts blobs in.
+	 */
+	private static final class BlobComparator extends KeyComparator {
+		@Override
+		int compare(final Cursor ours, final Cursor theirs, final int column) {
+			byte[] ourBytes = ours.getBlob(column);
+			byte[] theirBytes = theirs.getBlob(column);
+			int length = Math.min(ourBytes.length, theirBytes.length);
+			for (int i = 0; i < length; i++) {
+				int order = (ourBytes[i] & 0xff) - (theirBytes[i] & 0xff);
+				if (order != 0) {
+					return order;
+				}
+			}
+			return ourBytes.length - theirBytes.length;
+		}
+	}
+
+	/**
+	 * Compares UTF-16 text by code point.
+	 * @param ours our chars
+	 * @param ourLength the number of our chars
+	 * @param theirs their chars
+	 * @param theirLength the number of their chars
+	 * @return the order of the values
+	 */
+	static int compareText(final char[] ours, final int ourLength,
+			final char[] theirs, final int theirLength) {
+		int length = Math.min(ourLength, theirLength);
+		for (int i = 0; i < length; i++) {
+			char ourChar = ours[i];
+			char theirChar = theirs[i];
+			if (ourChar != theirChar) {
+				// Surrogates encode code points above all other chars.
+				boolean ourSurrogate = isSurrogate(ourChar);
+				if (ourSurrogate != isSurrogate(theirChar)) {
+					return ourSurrogate ? 1 : -1;
+				}
+				return ourChar - theirChar;
+			}
+		}
+		return ourLength - theirLength;
+	}
+
+	/**
+	 * @param c the char to check
+	 * @return true if the char is part of a surrogate pair
+	 */
+	private static boolean isSurrogate(final char c) {
+		return c >= Character.MIN_HIGH_SURROGATE
+				&& c <= Character.MAX_LOW_SURROGATE;
+	}
+}
@@ -30,25 +30,83 @@
  */
 package interdroid.vdb.persistence.impl;
 
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+import interdroid.vdb.persistence.api.ConflictSet;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Utility for assisting with a merge.
  *
+ * The automatic merge streams the differences between the base and
+ * both sides of each table in primary key order, see
+ * {@link ThreeWayDiffCursor}. Rows only changed on their side are
+ * applied to the checkout, rows only changed on our side are already
+ * there. Rows changed differently on both sides are left as they are on
+ * our side and recorded in a conflict table for the table. The work
+ * done is proportional to the number of changed rows. Changes are
+ * applied in chunks of a bounded size as they are found, so the memory
+ * used does not depend on the number of changed rows.
+ *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  *
  */
 public class MergeHelper {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(MergeHelper.class);
+
 	/**
 	 * The name of the column with a diff result.
 	 */
 	static final String COL_DIFF_RESULT = "diff_result";
 
+	/**
+	 * The prefix of the tables holding the conflicts of a merge. The rest
+	 * of the name is the name of the conflicting table.
+	 */
+	static final String CONFLICT_PREFIX =
+			ChangeLog.INTERNAL_PREFIX + "conflicts_";
+
+	/**
+	 * The column of a conflict table with the change on our side.
+	 */
+	static final String COL_OURS = ConflictSet.COL_OURS;
+
+	/**
+	 * The column of a conflict table with the change on their side.
+	 */
+	static final String COL_THEIRS = ConflictSet.COL_THEIRS;
+
 	/**
 	 * The checkout this merge helper is working in.
 	 */
@@ -57,7 +115,50 @@ public class MergeHelper {
 	/**
 	 * A cache of table metadata.
 	 */
-	private Map<String, TableMetadata> mMetadataCache;
+	private final Map<String, TableMetadata> mMetadataCache =
+			new HashMap<String, TableMetadata>();
+
+	/**
+	 * The summaries of the merged commits, used to skip unchanged
+	 * ranges of rows.
+	 */
+	private final Map<Database, CommitSummary> mSummaries =
+			new EnumMap<Database, CommitSummary>(Database.class);
+
+	/**
+	 * The number of changed keys collected before they are applied.
+	 */
+	private static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * The number of chunks each diff worker may have waiting to be
+	 * applied.
+	 */
+	private static final int CHUNKS_PER_WORKER = 2;
+
+	/**
+	 * The time in milliseconds to wait for a chunk before checking
+	 * whether the diff workers are done.
+	 */
+	private static final long CHUNK_POLL_MS = 100;
+
+	/**
+	 * The databases a merge diffs.
+	 */
+	private static final Database[] DIFF_DATABASES = {
+		Database.BASE, Database.OURS, Database.THEIRS};
+
+	/**
+	 * The files of the merged databases, used to open a connection for
+	 * every worker diffing a table.
+	 */
+	private final Map<Database, File> mFiles =
+			new EnumMap<Database, File>(Database.class);
+
+	/**
+	 * The number of tables diffed in parallel.
+	 */
+	private int mThreads = Runtime.getRuntime().availableProcessors();
 
 	/**
 	 * Construct a merge helper.
@@ -66,6 +167,42 @@ public class MergeHelper {
 		//        parentCheckout_ = checkout;
 	}
 
+	/**
+	 * Sets the summary of the commit in one of the databases. Diffs
+	 * between two summarized databases only look at the ranges of keys
+	 * in which the summaries differ.
+	 * @param database the database
+	 * @param summary the summary or null if there is none
+	 */
+	/* package */ final void setSummary(final Database database,
+			final CommitSummary summary) {
+		if (summary == null) {
+			mSummaries.remove(database);
+		} else {
+			mSummaries.put(database, summary);
+		}
+	}
+
+	/**
+	 * Sets the file of one of the merged databases. Tables are only
+	 * diffed in parallel when the files of the base, ours and theirs
+	 * databases are all known.
+	 * @param database the database
+	 * @param file the database file
+	 */
+	/* package */ final void setDatabaseFile(final Database database,
+			final File file) {
+		mFiles.put(database, file);
+	}
+
+	/**
+	 * Sets the number of tables diffed in parallel.
+	 * @param threads the number of workers, 1 to diff serially
+	 */
+	/* package */ final void setThreads(final int threads) {
+		mThreads = threads;
+	}
+
 	/**
 	 * The databases we need to do a merge.
 	 * @author nick &lt;palmer@cs.vu.nl&gt;
@@ -130,8 +267,13 @@ public class MergeHelper {
 		public final String mTableName;
 		/** The key fields in the table. */
 		public ArrayList<String> mKeyFields;
+		/** The types of the key fields, as given by their affinity. */
+		public ArrayList<DatabaseFieldType> mKeyTypes;
 		/** The data fields in the table. */
 		public ArrayList<String> mNormalFields;
+		/** Which databases hold row stamps for the table. */
+		public final Map<Database, Boolean> mStamped =
+				new EnumMap<Database, Boolean>(Database.class);
 
 		/**
 		 * Construct metadata for the given table.
@@ -141,10 +283,54 @@ public class MergeHelper {
 		public TableMetadata(final String tableName) {
 			mTableName = tableName;
 			mKeyFields = new ArrayList<String>();
+			mKeyTypes = new ArrayList<DatabaseFieldType>();
 			mNormalFields = new ArrayList<String>();
 		}
 	}
 
+	/**
+	 * A chunk of the changes a merge makes to one table. The keys are
+	 * found while diffing and applied to the checkout once the chunk is
+	 * full or the table is done.
+	 */
+	private static final class TableChanges {
+		/** The metadata of the table. */
+		private final TableMetadata mMeta;
+		/** The keys of rows to copy from their side. */
+		private final List<Object[]> mCopies = new ArrayList<Object[]>();
+		/** The keys of rows deleted on their side. */
+		private final List<Object[]> mDeletes = new ArrayList<Object[]>();
+		/** The keys of conflicting rows followed by the changes. */
+		private final List<Object[]> mConflicts = new ArrayList<Object[]>();
+
+		/**
+		 * Construct the changes for a table.
+		 * @param meta the metadata of the table
+		 */
+		private TableChanges(final TableMetadata meta) {
+			mMeta = meta;
+		}
+
+		/**
+		 * @return the number of keys in the chunk
+		 */
+		private int size() {
+			return mCopies.size() + mDeletes.size() + mConflicts.size();
+		}
+	}
+
+	/**
+	 * Receives the chunks of changes found while diffing a table.
+	 */
+	private interface ChangeSink {
+		/**
+		 * @param changes a chunk of changes
+		 * @throws InterruptedException if interrupted while waiting to
+		 * hand the chunk over
+		 */
+		void accept(TableChanges changes) throws InterruptedException;
+	}
+
 	/**
 	 * @param db the database the table lives in
 	 * @param tableName the name of the table
@@ -154,22 +340,25 @@ public class MergeHelper {
 			final SQLiteDatabase db, final String tableName) {
 		// TODO: (emilian) put the primary key in order
 		if (!mMetadataCache.containsKey(tableName)) {
-			Cursor c = db.rawQuery(
-					"PRAGMA table_info('" + tableName + "')", null);
+			Cursor c = db.rawQuery("PRAGMA table_info("
+					+ ChangeLog.identifier(tableName) + ")", null);
 			try {
 				int nameIndex = c.getColumnIndexOrThrow("name");
+				int typeIndex = c.getColumnIndexOrThrow("type");
 				int pkIndex = c.getColumnIndexOrThrow("pk");
 
 				TableMetadata meta = new TableMetadata(tableName);
-				c.moveToFirst();
-				do {
+				while (c.moveToNext()) {
 					String name = c.getString(nameIndex);
-					if (c.getInt(pkIndex) == 0) {
+					if (ChangeLog.STAMP_COLUMN.equals(name)) {
+						continue;
+					} else if (c.getInt(pkIndex) == 0) {
 						meta.mNormalFields.add(name);
 					} else {
 						meta.mKeyFields.add(name);
+						meta.mKeyTypes.add(affinity(c.getString(typeIndex)));
 					}
-				} while(c.moveToNext());
+				}
 
 				if (meta.mKeyFields.size() == 0) {
 					throw new IllegalStateException("The table " + tableName
@@ -183,6 +372,31 @@ public class MergeHelper {
 		return mMetadataCache.get(tableName);
 	}
 
+	/**
+	 * Returns the type values in a column are stored as, following the
+	 * affinity rules of SQLite. Columns with numeric affinity are
+	 * treated as real numbers.
+	 * @param declaredType the declared type of the column or null
+	 * @return the type of the column
+	 */
+	static DatabaseFieldType affinity(final String declaredType) {
+		if (declaredType == null) {
+			return DatabaseFieldType.BLOB;
+		}
+		String type = declaredType.toUpperCase(Locale.ENGLISH);
+		if (type.contains("INT")) {
+			return DatabaseFieldType.INTEGER;
+		}
+		if (type.contains("CHAR") || type.contains("CLOB")
+				|| type.contains("TEXT")) {
+			return DatabaseFieldType.TEXT;
+		}
+		if (type.length() == 0 || type.contains("BLOB")) {
+			return DatabaseFieldType.BLOB;
+		}
+		return DatabaseFieldType.REAL_NUMBER;
+	}
+
 	/**
 	 * Append all strings to the string builder.
 	 * @param sb the string builder to append to
@@ -214,22 +428,21 @@ public class MergeHelper {
 	private StringBuilder buildPkJoinQuery(final TableMetadata tableInfo,
 			final String tableOne, final String tableTwo, final String joinType,
 			final DiffResult state) {
-		// TODO: (emilian) field name escaping everywhere
 		StringBuilder qb = new StringBuilder("SELECT ");
 		for (int i = 0; i < tableInfo.mKeyFields.size(); ++i) {
-			String pkColumn = tableInfo.mKeyFields.get(i);
+			String pkColumn = ChangeLog.identifier(tableInfo.mKeyFields.get(i));
 			appendAll(qb, tableOne, ".", pkColumn, " AS ", pkColumn);
 			qb.append(", ");
 		}
 		for (int i = 0; i < tableInfo.mNormalFields.size(); ++i) {
-			String column = tableInfo.mNormalFields.get(i);
+			String column = ChangeLog.identifier(tableInfo.mNormalFields.get(i));
 			appendAll(qb, tableTwo, ".", column, " AS ", column);
 			qb.append(", ");
 		}
 		appendAll(qb, " '", state.name(), "' AS ", COL_DIFF_RESULT);
 		appendAll(qb, " FROM ", tableOne, " ", joinType, " ", tableTwo, " ON ");
 		for (int i = 0; i < tableInfo.mKeyFields.size(); ++i) {
-			String pkColumn = tableInfo.mKeyFields.get(i);
+			String pkColumn = ChangeLog.identifier(tableInfo.mKeyFields.get(i));
 			if (i > 0) {
 				qb.append(" AND ");
 			}
@@ -244,16 +457,19 @@ public class MergeHelper {
 	 * @param tableInfo the info on the table
 	 * @param tableOne the first table
 	 * @param tableTwo the second table
+	 * @param ranges the changed ranges of keys or null to look at all rows
 	 * @return an SQL query
 	 */
 	private String buildQueryDeleted(final TableMetadata tableInfo,
-			final String tableOne, final String tableTwo) {
+			final String tableOne, final String tableTwo,
+			final SortedSet<Long> ranges) {
 		StringBuilder qb = buildPkJoinQuery(tableInfo, tableOne, tableTwo,
 				"LEFT OUTER JOIN", DiffResult.DELETED);
 		// only need to test a single column from the second table primary key,
 		// either they will all be null or all non null
-		appendAll(qb, " WHERE ", tableTwo, ".", tableInfo.mKeyFields.get(0),
-				" IS NULL");
+		appendAll(qb, " WHERE ", tableTwo, ".",
+				ChangeLog.identifier(tableInfo.mKeyFields.get(0)), " IS NULL");
+		appendRanges(qb, tableInfo, tableOne, ranges);
 
 		return qb.toString();
 	}
@@ -263,45 +479,117 @@ public class MergeHelper {
 	 * @param tableInfo the information on the table
 	 * @param tableOne the first table
 	 * @param tableTwo the second table
+	 * @param ranges the changed ranges of keys or null to look at all rows
 	 * @return an SQL query
 	 */
 	private String buildQueryInserted(final TableMetadata tableInfo,
-			final String tableOne, final String tableTwo) {
+			final String tableOne, final String tableTwo,
+			final SortedSet<Long> ranges) {
 		// the inserted rows are deleted if comparing the other way round
 		StringBuilder qb = buildPkJoinQuery(tableInfo, tableTwo, tableOne,
 				"LEFT OUTER JOIN", DiffResult.INSERTED);
-		appendAll(qb, " WHERE ", tableOne, ".", tableInfo.mKeyFields.get(0),
-				" IS NULL");
+		appendAll(qb, " WHERE ", tableOne, ".",
+				ChangeLog.identifier(tableInfo.mKeyFields.get(0)), " IS NULL");
+		appendRanges(qb, tableInfo, tableTwo, ranges);
 		return qb.toString();
 	}
 
 	/**
-	 * Build a query for tiems that have been modified.
+	 * Build a query for tiems that have been modified. When both tables
+	 * hold row stamps rows are compared by their stamp alone. Only rows
+	 * which have not been stamped yet are compared column by column.
 	 * @param tableInfo the information on the table
 	 * @param tableOne the first table
 	 * @param tableTwo the second table
+	 * @param stamped true if both tables hold row stamps
+	 * @param ranges the changed ranges of keys or null to look at all rows
 	 * @return an SQL query
 	 */
 	private String buildQueryModified(final TableMetadata tableInfo,
-			final String tableOne, final String tableTwo) {
+			final String tableOne, final String tableTwo,
+			final boolean stamped, final SortedSet<Long> ranges) {
 		StringBuilder qb = buildPkJoinQuery(tableInfo, tableOne, tableTwo,
 				"INNER JOIN", DiffResult.MODIFIED);
 		// we use this to have a valid query when we have no normal fields, it
 		// will return 0 rows but have valid metadata.
-		appendAll(qb, " WHERE 0 == 1");
+		StringBuilder changed = new StringBuilder("0 == 1");
 		for (int i = 0; i < tableInfo.mNormalFields.size(); ++i) {
-			String normalColumn = tableInfo.mNormalFields.get(i);
-			appendAll(qb, " OR ", tableOne, ".", normalColumn, " != ", tableTwo,
-					".", normalColumn);
-			appendAll(qb, " OR ", tableOne, ".", normalColumn, " IS NULL AND ",
-					tableTwo, ".", normalColumn, " IS NOT NULL");
-			appendAll(qb, " OR ", tableOne, ".", normalColumn,
-					" IS NOT NULL AND ", tableTwo, ".", normalColumn,
-					" IS NULL");
+			String normalColumn =
+					ChangeLog.identifier(tableInfo.mNormalFields.get(i));
+			appendAll(changed, " OR ", tableOne, ".", normalColumn,
+					" IS NOT ", tableTwo, ".", normalColumn);
+		}
+		if (stamped) {
+			String stamp = ChangeLog.identifier(ChangeLog.STAMP_COLUMN);
+			appendAll(qb, " WHERE CASE WHEN ", tableOne, ".", stamp,
+					" IS NULL OR ", tableTwo, ".", stamp, " IS NULL THEN ",
+					changed.toString(), " ELSE ", tableOne, ".", stamp,
+					" != ", tableTwo, ".", stamp, " END");
+		} else {
+			appendAll(qb, " WHERE (", changed.toString(), ")");
 		}
+		appendRanges(qb, tableInfo, tableOne, ranges);
 		return qb.toString();
 	}
 
+	/**
+	 * Restricts a query to the given ranges of keys.
+	 * @param qb the query to append to
+	 * @param tableInfo the information on the table
+	 * @param table the table the key is taken from
+	 * @param ranges the ranges or null to look at all rows
+	 */
+	private void appendRanges(final StringBuilder qb,
+			final TableMetadata tableInfo, final String table,
+			final SortedSet<Long> ranges) {
+		if (ranges != null) {
+			appendAll(qb, " AND ", CommitSummary.rangeCondition(table + "."
+					+ ChangeLog.identifier(tableInfo.mKeyFields.get(0)),
+					ranges));
+		}
+	}
+
+	/**
+	 * @param tableInfo the information on the table
+	 * @param from the from database
+	 * @param to the to database
+	 * @return the ranges of keys in which the table differs or null if
+	 * the summaries can not tell
+	 */
+	private SortedSet<Long> getChangedRanges(final TableMetadata tableInfo,
+			final Database from, final Database to) {
+		CommitSummary fromSummary = mSummaries.get(from);
+		CommitSummary toSummary = mSummaries.get(to);
+		if (fromSummary == null || toSummary == null
+				|| tableInfo.mKeyFields.size() != 1
+				|| !fromSummary.hasTable(tableInfo.mTableName)
+				|| !toSummary.hasTable(tableInfo.mTableName)) {
+			return null;
+		}
+		return fromSummary.getChangedRanges(tableInfo.mTableName, toSummary);
+	}
+
+	/**
+	 * @param db the database to work in
+	 * @param tableInfo the information on the table
+	 * @param database the database to check
+	 * @return true if the table holds row stamps in the database
+	 */
+	private boolean isStamped(final SQLiteDatabase db,
+			final TableMetadata tableInfo, final Database database) {
+		Boolean stamped = tableInfo.mStamped.get(database);
+		if (stamped == null) {
+			String name = database.name().toLowerCase(Locale.ENGLISH);
+			if (database == Database.MASTER) {
+				name = "main";
+			}
+			stamped = ChangeLog.getColumns(db, name, tableInfo.mTableName)
+					.contains(ChangeLog.STAMP_COLUMN);
+			tableInfo.mStamped.put(database, stamped);
+		}
+		return stamped;
+	}
+
 	/**
 	 * Construct a diff2 cursor.
 	 * @param db the database to work in
@@ -313,18 +601,21 @@ public class MergeHelper {
 	public final Cursor diff2(final SQLiteDatabase db, final String table,
 			final Database from, final Database to) {
 		TableMetadata tableInfo = getTableMetadata(db, table);
-		String fullFrom = from.mPrefix + table;
-		String fullTo = to.mPrefix + table;
+		String fullFrom = from.mPrefix + ChangeLog.identifier(table);
+		String fullTo = to.mPrefix + ChangeLog.identifier(table);
+		SortedSet<Long> ranges = getChangedRanges(tableInfo, from, to);
 
 		StringBuilder qb = new StringBuilder();
-		qb.append(buildQueryDeleted(tableInfo, fullFrom, fullTo));
+		qb.append(buildQueryDeleted(tableInfo, fullFrom, fullTo, ranges));
 		qb.append(" UNION ");
-		qb.append(buildQueryInserted(tableInfo, fullFrom, fullTo));
+		qb.append(buildQueryInserted(tableInfo, fullFrom, fullTo, ranges));
 		qb.append(" UNION ");
-		qb.append(buildQueryModified(tableInfo, fullFrom, fullTo));
+		qb.append(buildQueryModified(tableInfo, fullFrom, fullTo,
+				isStamped(db, tableInfo, from) && isStamped(db, tableInfo, to),
+				ranges));
 		qb.append(" ORDER BY ");
 		for (int i = 0; i < tableInfo.mKeyFields.size(); ++i) {
-			String pkColumn = tableInfo.mKeyFields.get(i);
+			String pkColumn = ChangeLog.identifier(tableInfo.mKeyFields.get(i));
 			if (i > 0) {
 				qb.append(", ");
 			}
@@ -344,4 +635,507 @@ public class MergeHelper {
 			final String table) {
 		return new ThreeWayDiffCursor(this, db, table);
 	}
+
+	/**
+	 * Merges their changes into the checkout database, which holds our
+	 * side of the merge. Conflicts found by an earlier merge are dropped
+	 * first. This should run in a transaction on the checkout database
+	 * with the base, ours and theirs databases attached.
+	 *
+	 * Each table is diffed and the changes found are applied to the
+	 * checkout in chunks of at most {@link #CHUNK_SIZE} keys, so only a
+	 * few chunks are held at any time. When the files of the merged
+	 * databases are known the tables are diffed in parallel, each on a
+	 * connection of its own, while this thread applies the chunks they
+	 * hand over. Otherwise they are diffed one after the other on the
+	 * checkout database.
+	 * @param db the checkout database
+	 * @return the number of conflicting rows
+	 * @throws IOException if the tables differ between the databases
+	 */
+	public final int merge(final SQLiteDatabase db) throws IOException {
+		dropConflictTables(db);
+		List<String> tables = ChangeLog.getUserTables(db);
+		for (String table : tables) {
+			checkLayout(db, table);
+			// Workers only read the cached metadata while chunks are
+			// applied, so everything is looked up now.
+			TableMetadata meta = getTableMetadata(db, table);
+			for (Database database : Database.values()) {
+				isStamped(db, meta, database);
+			}
+		}
+
+		int threads = Math.min(mThreads, tables.size());
+		if (threads > 1 && mFiles.size() == DIFF_DATABASES.length) {
+			return mergeParallel(db, tables, threads);
+		}
+		final int[] conflicts = {0};
+		ChangeSink apply = new ChangeSink() {
+			public void accept(final TableChanges changes) {
+				conflicts[0] += applyTable(db, changes);
+			}
+		};
+		try {
+			for (String table : tables) {
+				diffTable(db, table, apply);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		return conflicts[0];
+	}
+
+	/**
+	 * Diffs the tables on a pool of workers and applies the chunks of
+	 * changes they find on this thread. The workers block while the
+	 * queue of chunks waiting to be applied is full.
+	 * @param db the checkout database
+	 * @param tables the tables to diff
+	 * @param threads the number of workers
+	 * @return the number of conflicting rows
+	 * @throws IOException if a database can not be opened
+	 */
+	private int mergeParallel(final SQLiteDatabase db,
+			final List<String> tables, final int threads)
+					throws IOException {
+		final BlockingQueue<TableChanges> queue =
+				new ArrayBlockingQueue<TableChanges>(
+						threads * CHUNKS_PER_WORKER);
+		final ChangeSink handOver = new ChangeSink() {
+			public void accept(final TableChanges changes)
+					throws InterruptedException {
+				queue.put(changes);
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "Merge diff");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final String table : tables) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException,
+					InterruptedException {
+						SQLiteDatabase conn = openDiffConnection();
+						try {
+							diffTable(conn, table, handOver);
+						} finally {
+							conn.close();
+						}
+						return null;
+					}
+				}));
+			}
+			int conflicts = 0;
+			boolean done = false;
+			while (!done) {
+				TableChanges changes = queue.poll(CHUNK_POLL_MS,
+						TimeUnit.MILLISECONDS);
+				if (changes != null) {
+					conflicts += applyTable(db, changes);
+					continue;
+				}
+				done = true;
+				for (Future<Void> future : futures) {
+					done &= future.isDone();
+				}
+			}
+			// Chunks handed over before the last worker finished.
+			for (TableChanges changes = queue.poll(); changes != null;
+					changes = queue.poll()) {
+				conflicts += applyTable(db, changes);
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			return conflicts;
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Opens a read only connection with the merged databases attached
+	 * under the same names as in the checkout. Attached databases are
+	 * opened with the flags of the main database, so the base database
+	 * is opened and then attached again under its own name.
+	 * @return the connection
+	 * @throws IOException if a database can not be opened
+	 */
+	private SQLiteDatabase openDiffConnection() throws IOException {
+		SQLiteDatabase conn;
+		try {
+			conn = SQLiteDatabase.openDatabase(
+					mFiles.get(Database.BASE).getAbsolutePath(), null,
+					SQLiteDatabase.OPEN_READONLY);
+		} catch (SQLiteException e) {
+			throw new IOException("Unable to open the base database: "
+					+ e.getMessage());
+		}
+		try {
+			for (Database database : DIFF_DATABASES) {
+				conn.execSQL("ATTACH DATABASE " + ChangeLog.literal(
+						mFiles.get(database).getAbsolutePath()) + " AS "
+						+ database.name().toLowerCase(Locale.ENGLISH));
+			}
+		} catch (SQLiteException e) {
+			conn.close();
+			throw new IOException("Unable to attach the merged databases: "
+					+ e.getMessage());
+		}
+		return conn;
+	}
+
+	/**
+	 * Finds the changes a merge makes to a single table and hands them
+	 * to a sink in chunks. This only reads the base, ours and theirs
+	 * databases.
+	 * @param db the database the merged databases are attached to
+	 * @param table the table to diff
+	 * @param sink the sink receiving the chunks of changes
+	 * @throws InterruptedException if interrupted while handing over
+	 * a chunk
+	 */
+	private void diffTable(final SQLiteDatabase db, final String table,
+			final ChangeSink sink) throws InterruptedException {
+		TableMetadata meta = getTableMetadata(db, table);
+		String name = ChangeLog.identifier(table);
+		StringBuilder same = new StringBuilder();
+		for (String field : meta.mNormalFields) {
+			String column = ChangeLog.identifier(field);
+			appendAll(same, " AND o.", column, " IS t.", column);
+		}
+
+		SQLiteStatement compare = db.compileStatement("SELECT COUNT(*) FROM ours."
+				+ name + " o, theirs." + name + " t WHERE "
+				+ keyCondition(meta, "o.") + " AND " + keyCondition(meta, "t.")
+				+ same);
+		TableChanges changes = new TableChanges(meta);
+		ThreeWayDiffCursor diff = diff3(db, table);
+		try {
+			for (boolean more = diff.moveToFirst(); more;
+					more = diff.moveToNext()) {
+				DiffResult ours = diff.getStateOurs();
+				DiffResult theirs = diff.getStateTheirs();
+				if (theirs == DiffResult.SAME) {
+					// Only changed on our side, which the checkout holds.
+					continue;
+				}
+				Cursor row = diff.getRowCursor();
+				if (ours == DiffResult.SAME) {
+					if (theirs == DiffResult.DELETED) {
+						changes.mDeletes.add(readKey(meta, row, 0));
+					} else {
+						changes.mCopies.add(readKey(meta, row, 0));
+					}
+				} else if (ours == DiffResult.DELETED
+						&& theirs == DiffResult.DELETED) {
+					// Deleted on both sides.
+					continue;
+				} else if (ours != DiffResult.DELETED
+						&& theirs != DiffResult.DELETED
+						&& isSame(compare, meta, row)) {
+					// The same change on both sides.
+					continue;
+				} else {
+					Object[] conflict = readKey(meta, row, 2);
+					conflict[meta.mKeyFields.size()] = ours.name();
+					conflict[meta.mKeyFields.size() + 1] = theirs.name();
+					changes.mConflicts.add(conflict);
+				}
+				if (changes.size() >= CHUNK_SIZE) {
+					sink.accept(changes);
+					changes = new TableChanges(meta);
+				}
+			}
+		} finally {
+			diff.close();
+			compare.close();
+		}
+		if (changes.size() > 0) {
+			sink.accept(changes);
+		}
+	}
+
+	/**
+	 * Applies a chunk of the changes found for a table to the checkout.
+	 * @param db the checkout database
+	 * @param changes the chunk of changes to the table
+	 * @return the number of conflicting rows
+	 */
+	private int applyTable(final SQLiteDatabase db,
+			final TableChanges changes) {
+		TableMetadata meta = changes.mMeta;
+		String name = ChangeLog.identifier(meta.mTableName);
+		StringBuilder columns = new StringBuilder();
+		for (String key : meta.mKeyFields) {
+			appendColumn(columns, key);
+		}
+		for (String field : meta.mNormalFields) {
+			appendColumn(columns, field);
+		}
+		if (isStamped(db, meta, Database.MASTER)
+				&& isStamped(db, meta, Database.THEIRS)) {
+			// Keep their stamp so the row compares equal to theirs.
+			appendColumn(columns, ChangeLog.STAMP_COLUMN);
+		}
+
+		if (!changes.mCopies.isEmpty()) {
+			SQLiteStatement copy = db.compileStatement(
+					"INSERT OR REPLACE INTO main." + name + " (" + columns
+					+ ") SELECT " + columns + " FROM theirs." + name
+					+ " WHERE " + keyCondition(meta, ""));
+			try {
+				execute(copy, changes.mCopies);
+			} finally {
+				copy.close();
+			}
+		}
+		if (!changes.mDeletes.isEmpty()) {
+			SQLiteStatement delete = db.compileStatement("DELETE FROM main."
+					+ name + " WHERE " + keyCondition(meta, ""));
+			try {
+				execute(delete, changes.mDeletes);
+			} finally {
+				delete.close();
+			}
+		}
+		if (!changes.mConflicts.isEmpty()) {
+			SQLiteStatement conflict = createConflictTable(db, meta);
+			try {
+				execute(conflict, changes.mConflicts);
+			} finally {
+				conflict.close();
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Merged chunk of " + meta.mTableName + ": "
+					+ (changes.mCopies.size() + changes.mDeletes.size())
+					+ " rows applied, " + changes.mConflicts.size()
+					+ " conflicts");
+		}
+		return changes.mConflicts.size();
+	}
+
+	/**
+	 * Checks that a table has the same columns in all merged databases.
+	 * The order of the columns and the row stamps do not matter since
+	 * all statements name their columns.
+	 * @param db the checkout database
+	 * @param table the table to check
+	 * @throws IOException if the table differs
+	 */
+	private void checkLayout(final SQLiteDatabase db, final String table)
+			throws IOException {
+		Set<String> columns = new HashSet<String>(
+				ChangeLog.getColumns(db, "main", table));
+		columns.remove(ChangeLog.STAMP_COLUMN);
+		for (Database other : new Database[] {Database.BASE,
+				Database.THEIRS}) {
+			String name = other.name().toLowerCase(Locale.ENGLISH);
+			Set<String> otherColumns = new HashSet<String>(
+					ChangeLog.getColumns(db, name, table));
+			otherColumns.remove(ChangeLog.STAMP_COLUMN);
+			if (!columns.equals(otherColumns)) {
+				throw new IOException("Table " + table + " differs in "
+						+ name + ", the schemas have to be merged first.");
+			}
+		}
+	}
+
+	/**
+	 * Appends a column to a comma separated list of columns.
+	 * @param columns the list to append to
+	 * @param column the column to append
+	 */
+	private static void appendColumn(final StringBuilder columns,
+			final String column) {
+		if (columns.length() > 0) {
+			columns.append(", ");
+		}
+		columns.append(ChangeLog.identifier(column));
+	}
+
+	/**
+	 * Builds a condition matching the key columns to the numbered
+	 * parameters ?1 to ?n.
+	 * @param meta the metadata of the table
+	 * @param prefix the prefix for the columns
+	 * @return the condition
+	 */
+	private static String keyCondition(final TableMetadata meta,
+			final String prefix) {
+		StringBuilder condition = new StringBuilder();
+		for (int i = 0; i < meta.mKeyFields.size(); i++) {
+			if (i > 0) {
+				condition.append(" AND ");
+			}
+			condition.append(prefix);
+			condition.append(ChangeLog.identifier(meta.mKeyFields.get(i)));
+			condition.append(" = ?");
+			condition.append(i + 1);
+		}
+		return condition.toString();
+	}
+
+	/**
+	 * Binds the key of the current row of a cursor to a statement.
+	 * @param stmt the statement to bind to
+	 * @param meta the metadata of the table
+	 * @param row the cursor with the key columns first
+	 * @param offset the number of parameters before the key
+	 */
+	static void bindKeys(final SQLiteStatement stmt, final TableMetadata meta,
+			final Cursor row, final int offset) {
+		for (int i = 0; i < meta.mKeyFields.size(); i++) {
+			int index = offset + i + 1;
+			if (row.isNull(i)) {
+				stmt.bindNull(index);
+				continue;
+			}
+			switch (meta.mKeyTypes.get(i)) {
+			case INTEGER:
+				stmt.bindLong(index, row.getLong(i));
+				break;
+			case REAL_NUMBER:
+				stmt.bindDouble(index, row.getDouble(i));
+				break;
+			case BLOB:
+				stmt.bindBlob(index, row.getBlob(i));
+				break;
+			default:
+				stmt.bindString(index, row.getString(i));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads the key of the current row of a cursor.
+	 * @param meta the metadata of the table
+	 * @param row the cursor with the key columns first
+	 * @param extra the number of extra values to leave room for
+	 * @return the values of the key followed by room for the extras
+	 */
+	private static Object[] readKey(final TableMetadata meta,
+			final Cursor row, final int extra) {
+		Object[] values = new Object[meta.mKeyFields.size() + extra];
+		for (int i = 0; i < meta.mKeyFields.size(); i++) {
+			if (row.isNull(i)) {
+				continue;
+			}
+			switch (meta.mKeyTypes.get(i)) {
+			case INTEGER:
+				values[i] = row.getLong(i);
+				break;
+			case REAL_NUMBER:
+				values[i] = row.getDouble(i);
+				break;
+			case BLOB:
+				values[i] = row.getBlob(i);
+				break;
+			default:
+				values[i] = row.getString(i);
+				break;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Executes a statement once for every set of values.
+	 * @param stmt the statement to execute
+	 * @param rows the values to bind, in parameter order
+	 */
+	private static void execute(final SQLiteStatement stmt,
+			final List<Object[]> rows) {
+		for (Object[] values : rows) {
+			for (int i = 0; i < values.length; i++) {
+				Object value = values[i];
+				if (value == null) {
+					stmt.bindNull(i + 1);
+				} else if (value instanceof Long) {
+					stmt.bindLong(i + 1, (Long) value);
+				} else if (value instanceof Double) {
+					stmt.bindDouble(i + 1, (Double) value);
+				} else if (value instanceof byte[]) {
+					stmt.bindBlob(i + 1, (byte[]) value);
+				} else {
+					stmt.bindString(i + 1, value.toString());
+				}
+			}
+			stmt.execute();
+		}
+	}
+
+	/**
+	 * @param compare the statement comparing ours and theirs for a key
+	 * @param meta the metadata of the table
+	 * @param row the cursor with the key
+	 * @return true if both sides hold the same row
+	 */
+	private static boolean isSame(final SQLiteStatement compare,
+			final TableMetadata meta, final Cursor row) {
+		bindKeys(compare, meta, row, 0);
+		return compare.simpleQueryForLong() > 0;
+	}
+
+	/**
+	 * Creates the conflict table for a table unless an earlier chunk of
+	 * the merge did. It holds the key of every conflicting row with the
+	 * changes made on both sides.
+	 * @param db the checkout database
+	 * @param meta the metadata of the conflicting table
+	 * @return a statement inserting a conflict
+	 */
+	private static SQLiteStatement createConflictTable(final SQLiteDatabase db,
+			final TableMetadata meta) {
+		String conflicts = ChangeLog.identifier(
+				CONFLICT_PREFIX + meta.mTableName);
+		StringBuilder keys = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (String key : meta.mKeyFields) {
+			appendColumn(keys, key);
+			values.append("?, ");
+		}
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + conflicts + " (" + keys
+				+ ", " + COL_OURS + " TEXT NOT NULL, " + COL_THEIRS
+				+ " TEXT NOT NULL, PRIMARY KEY (" + keys + "))");
+		return db.compileStatement("INSERT INTO " + conflicts + " VALUES ("
+				+ values + "?, ?)");
+	}
+
+	/**
+	 * Drops the conflict tables left by a merge.
+	 * @param db the checkout database
+	 */
+	static void dropConflictTables(final SQLiteDatabase db) {
+		List<String> tables = new ArrayList<String>();
+		Cursor c = db.rawQuery("SELECT name FROM sqlite_master"
+				+ " WHERE type = 'table' AND name LIKE ? ESCAPE '\\'",
+				new String[] {CONFLICT_PREFIX.replace("_", "\\_") + "%"});
+		try {
+			while (c.moveToNext()) {
+				tables.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		for (String table : tables) {
+			db.execSQL("DROP TABLE " + ChangeLog.identifier(table));
+		}
+	}
 }
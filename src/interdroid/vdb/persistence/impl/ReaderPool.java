@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A bounded pool of read only connections to the database of a
+ * checkout. Connections are opened on demand and kept open until the
+ * pool is closed. Handing out a connection only takes a permit and
+ * polls a lock free queue so readers never contend on a monitor.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ReaderPool {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ReaderPool.class);
+
+	/**
+	 * The path of the database.
+	 */
+	private final String mPath;
+
+	/**
+	 * The permits limiting the number of connections.
+	 */
+	private final Semaphore mPermits;
+
+	/**
+	 * The timeout in seconds to wait for a connection.
+	 */
+	private final int mTimeout;
+
+	/**
+	 * The open connections which are not in use.
+	 */
+	private final ConcurrentLinkedQueue<SQLiteDatabase> mIdle =
+			new ConcurrentLinkedQueue<SQLiteDatabase>();
+
+	/**
+	 * A flag indicating the pool was closed.
+	 */
+	private volatile boolean mClosed;
+
+	/**
+	 * Construct a pool.
+	 * @param database the database file
+	 * @param size the maximum number of connections
+	 * @param timeout the timeout in seconds to wait for a connection
+	 */
+	ReaderPool(final File database, final int size, final int timeout) {
+		mPath = database.getAbsolutePath();
+		mPermits = new Semaphore(size);
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Takes a connection from the pool, opening one if none is idle.
+	 * @return the connection
+	 */
+	SQLiteDatabase acquire() {
+		try {
+			if (!mPermits.tryAcquire(mTimeout, TimeUnit.SECONDS)) {
+				throw new RuntimeException(
+						"Timeout waiting for a reader connection.");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (mClosed) {
+			mPermits.release();
+			throw new IllegalStateException("Reader pool closed.");
+		}
+		SQLiteDatabase db = mIdle.poll();
+		if (db != null) {
+			return db;
+		}
+		try {
+			LOG.debug("Opening reader connection to {}", mPath);
+			return SQLiteDatabase.openDatabase(mPath,
+					null /* cursor factory */,
+					SQLiteDatabase.OPEN_READONLY
+					| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		} catch (RuntimeException e) {
+			mPermits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a connection taken with {@link #acquire()} back.
+	 * @param db the connection
+	 */
+	void release(final SQLiteDatabase db) {
+		mIdle.offer(db);
+		if (mClosed) {
+			closeIdle();
+		}
+		mPermits.release();
+	}
+
+	/**
+	 * Closes the pool. Idle connections are closed now, connections
+	 * in use are closed when they are given back.
+	 */
+	void close() {
+		mClosed = true;
+		closeIdle();
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	private void closeIdle() {
+		SQLiteDatabase db;
+		while ((db = mIdle.poll()) != null) {
+			db.close();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.persistence.api.MaintenanceReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.GC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs and prunes the object database of a repository in the
+ * background and removes temporary checkouts which are no longer used.
+ *
+ * Every commit stores new database blobs as loose objects. Once enough
+ * of them have piled up they are packed with a delta window and depth
+ * suited to large, mostly similar binaries. The run works on its own
+ * handle to the repository and never takes the lock of a checkout, so
+ * commits and reads carry on while it runs.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+class RepositoryMaintenance {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(RepositoryMaintenance.class);
+
+	/**
+	 * The git configuration section for packing.
+	 */
+	private static final String PACK_SECTION = "pack";
+
+	/**
+	 * The number of objects considered as delta base. Consecutive
+	 * versions of a database chunk are very similar but may be far apart
+	 * in the sort order so a wider window than the git default is used.
+	 */
+	private static final int DEFAULT_PACK_WINDOW = 32;
+
+	/**
+	 * The maximum length of a delta chain. This is kept short since
+	 * checkouts read every chunk of a database.
+	 */
+	private static final int DEFAULT_PACK_DEPTH = 16;
+
+	/**
+	 * The memory the delta window may use, kept small for phones.
+	 */
+	private static final long DEFAULT_PACK_WINDOW_MEMORY = 16L * 1024 * 1024;
+
+	/**
+	 * The number of threads used for delta compression.
+	 */
+	private static final int DEFAULT_PACK_THREADS = 1;
+
+	/**
+	 * The repository we maintain.
+	 */
+	private final VdbRepositoryImpl mRepository;
+
+	/**
+	 * The number of commits since the last check.
+	 */
+	private int mCommits;
+
+	/**
+	 * The pending run or null if none is pending.
+	 */
+	private Future<MaintenanceReport> mPending;
+
+	/**
+	 * The executor runs happen on or null if not yet started.
+	 */
+	private ExecutorService mExecutor;
+
+	/**
+	 * The report of the last run which did any work.
+	 */
+	private volatile MaintenanceReport mLastReport;
+
+	/**
+	 * Construct the maintenance for a repository.
+	 * @param repository the repository to maintain
+	 */
+	RepositoryMaintenance(final VdbRepositoryImpl repository) {
+		mRepository = repository;
+	}
+
+	/**
+	 * Records a commit and schedules a check once enough commits
+	 * have been made since the last one.
+	 */
+	final void onCommit() {
+		int interval = mRepository.getMaintenanceCommitInterval();
+		synchronized (this) {
+			if (interval <= 0 || ++mCommits < interval) {
+				return;
+			}
+		}
+		schedule(false);
+	}
+
+	/**
+	 * Schedules a maintenance run unless one is already pending.
+	 * @param force true to run even if the thresholds are not reached
+	 * @return the future result of the run
+	 */
+	final synchronized Future<MaintenanceReport> schedule(
+			final boolean force) {
+		if (mPending != null && !mPending.isDone()) {
+			return mPending;
+		}
+		mCommits = 0;
+		if (mExecutor == null) {
+			mExecutor = Executors.newSingleThreadExecutor(
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread thread = new Thread(r, "Maintenance-"
+									+ mRepository.getName());
+							thread.setDaemon(true);
+							thread.setPriority(Thread.MIN_PRIORITY);
+							return thread;
+						}
+					});
+		}
+		mPending = mExecutor.submit(new Callable<MaintenanceReport>() {
+			@Override
+			public MaintenanceReport call() throws Exception {
+				return run(force);
+			}
+		});
+		return mPending;
+	}
+
+	/**
+	 * @return the report of the last run which did any work or null
+	 */
+	final MaintenanceReport getLastReport() {
+		return mLastReport;
+	}
+
+	/**
+	 * Stops the executor. A run in progress is left to finish since it
+	 * works on its own handle to the repository.
+	 */
+	final synchronized void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+		mPending = null;
+	}
+
+	/**
+	 * Performs a maintenance run.
+	 * @param force true to run even if the thresholds are not reached
+	 * @return the report of the run or null if there was nothing to do
+	 * @throws IOException if packing fails
+	 */
+	private MaintenanceReport run(final boolean force) throws IOException {
+		long start = System.currentTimeMillis();
+		long expire = mRepository.getMaintenancePruneExpire();
+		long scratchBytes = mRepository.removeStaleCheckouts(expire);
+
+		FileRepository repo = (FileRepository) new RepositoryBuilder()
+		.setGitDir(mRepository.getGitRepository().getDirectory())
+		.setMustExist(true)
+		.build();
+		try {
+			tune(repo.getConfig());
+			GC gc = new GC(repo);
+			gc.setExpireAgeMillis(expire);
+			GC.RepoStatistics before = gc.getStatistics();
+			if (!force && before.numberOfLooseObjects
+					< mRepository.getMaintenanceLooseObjects()
+					&& before.numberOfPackFiles
+					< mRepository.getMaintenancePackFiles()) {
+				LOG.debug("No maintenance needed for {}: {} loose, {} packs",
+						new Object[] {mRepository.getName(),
+						before.numberOfLooseObjects,
+						before.numberOfPackFiles});
+				return null;
+			}
+
+			try {
+				gc.gc();
+			} catch (ParseException e) {
+				throw new IOException("Invalid prune expiry: "
+						+ e.getMessage());
+			}
+			gc.prunePacked();
+
+			GC.RepoStatistics after = gc.getStatistics();
+			MaintenanceReport report = new MaintenanceReport(
+					before.sizeOfLooseObjects + before.sizeOfPackedObjects,
+					after.sizeOfLooseObjects + after.sizeOfPackedObjects,
+					scratchBytes, before.numberOfLooseObjects,
+					after.numberOfLooseObjects, after.numberOfPackFiles,
+					System.currentTimeMillis() - start);
+			mLastReport = report;
+			LOG.info("Maintenance of {}: {}", mRepository.getName(), report);
+			return report;
+		} finally {
+			repo.close();
+		}
+	}
+
+	/**
+	 * Applies the pack settings for database blobs to the given
+	 * configuration, leaving settings made by the user alone. The
+	 * configuration is not saved.
+	 * @param config the configuration to tune
+	 */
+	private static void tune(final Config config) {
+		setDefault(config, PACK_SECTION, "window", DEFAULT_PACK_WINDOW);
+		setDefault(config, PACK_SECTION, "depth", DEFAULT_PACK_DEPTH);
+		setDefault(config, PACK_SECTION, "threads", DEFAULT_PACK_THREADS);
+		if (config.getString(PACK_SECTION, null, "windowmemory") == null) {
+			config.setLong(PACK_SECTION, null, "windowmemory",
+					DEFAULT_PACK_WINDOW_MEMORY);
+		}
+	}
+
+	/**
+	 * Sets a value unless the configuration already has one.
+	 * @param config the configuration
+	 * @param section the section of the key
+	 * @param name the name of the key
+	 * @param value the value to set
+	 */
+	private static void setDefault(final Config config, final String section,
+			final String name, final int value) {
+		if (config.getString(section, null, name) == null) {
+			config.setInt(section, null, name, value);
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.avro.SchemaCache;
+import interdroid.vdb.persistence.api.MigrationReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.avro.Schema;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Migrates the database of a checkout to a new schema while the old
+ * database keeps serving reads and writes.
+ *
+ * The new database is built next to the old one and every table is
+ * copied over in batches of rows, each in its own short transaction.
+ * Rows written while the copy runs are found through the
+ * {@link ChangeLog} and copied again in catch up rounds. Only the last
+ * catch up round and the switch to the new database run with the
+ * checkout locked.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class SchemaMigration implements Callable<MigrationReport> {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SchemaMigration.class);
+
+	/**
+	 * The name of the new database while it is built.
+	 */
+	/* package */ static final String UPDATE_FILE =
+			"up_" + VdbCheckoutImpl.SQLITEDB;
+
+	/**
+	 * The maximum number of catch up rounds run without the lock.
+	 */
+	private static final int MAX_CATCH_UP_ROUNDS = 8;
+
+	/**
+	 * The checkout being migrated.
+	 */
+	private final VdbCheckoutImpl mCheckout;
+
+	/**
+	 * The directory of the checkout.
+	 */
+	private final File mDirectory;
+
+	/**
+	 * The schema to migrate to.
+	 */
+	private final Schema mSchema;
+
+	/**
+	 * The monitor to report progress to.
+	 */
+	private final ProgressMonitor mMonitor;
+
+	/**
+	 * The number of rows copied per transaction.
+	 */
+	private final int mBatchSize;
+
+	/**
+	 * The columns to copy for every table in both databases.
+	 */
+	private final Map<String, String> mColumns =
+			new LinkedHashMap<String, String>();
+
+	/**
+	 * The connection to the new database, with the old one attached.
+	 */
+	private SQLiteDatabase mDb;
+
+	/**
+	 * The file holding the new database.
+	 */
+	private File mUpdateFile;
+
+	/**
+	 * The sequence number of the last change which was caught up.
+	 */
+	private long mLastSeq;
+
+	/**
+	 * The number of rows copied in batches.
+	 */
+	private long mRowsCopied;
+
+	/**
+	 * The number of rows copied in catch up rounds.
+	 */
+	private long mRowsCaughtUp;
+
+	/**
+	 * Construct a migration.
+	 * @param checkout the checkout to migrate
+	 * @param directory the directory of the checkout
+	 * @param schema the schema to migrate to
+	 * @param monitor the monitor to report progress to
+	 * @param batchSize the number of rows copied per transaction
+	 */
+	/* package */ SchemaMigration(final VdbCheckoutImpl checkout,
+			final File directory, final Schema schema,
+			final ProgressMonitor monitor, final int batchSize) {
+		mCheckout = checkout;
+		mDirectory = directory;
+		mSchema = schema;
+		mMonitor = monitor;
+		mBatchSize = Math.max(1, batchSize);
+	}
+
+	@Override
+	public MigrationReport call() throws IOException {
+		long start = System.currentTimeMillis();
+		File updateFile = new File(mDirectory, UPDATE_FILE);
+		mUpdateFile = updateFile;
+		deleteDatabase(updateFile);
+
+		mLastSeq = mCheckout.beginMigration();
+		boolean switched = false;
+		long locked = 0;
+		try {
+			mDb = SQLiteDatabase.openOrCreateDatabase(updateFile, null);
+			// The file is thrown away if anything goes wrong before the
+			// switch, which makes it durable before it is moved in place.
+			mDb.execSQL("PRAGMA synchronous = OFF");
+			SchemaCache.get(mSchema).getInitializer().onCreate(mDb);
+			// Copy the row stamps too, so the rows do not all look
+			// modified to the next diff against an older commit.
+			ChangeLog.addStampColumns(mDb);
+			mDb.execSQL("ATTACH DATABASE " + ChangeLog.literal(
+					new File(mDirectory, VdbCheckoutImpl.SQLITEDB)
+					.getAbsolutePath()) + " AS old");
+
+			planCopy();
+			mMonitor.start(mColumns.size() + 2);
+			for (Map.Entry<String, String> table : mColumns.entrySet()) {
+				copyTable(table.getKey(), table.getValue());
+			}
+
+			mMonitor.beginTask("Catching up", ProgressMonitor.UNKNOWN);
+			for (int round = 0; round < MAX_CATCH_UP_ROUNDS; round++) {
+				checkCancelled();
+				if (catchUp() < mBatchSize) {
+					break;
+				}
+			}
+			mMonitor.endTask();
+
+			mMonitor.beginTask("Switching database", 1);
+			long lockStart = System.currentTimeMillis();
+			mCheckout.switchDatabase(this, updateFile, mSchema);
+			locked = System.currentTimeMillis() - lockStart;
+			switched = true;
+			mMonitor.update(1);
+			mMonitor.endTask();
+		} finally {
+			if (!switched) {
+				close();
+				deleteDatabase(updateFile);
+				mCheckout.abortMigration();
+			}
+		}
+
+		MigrationReport report = new MigrationReport(mColumns.size(),
+				mRowsCopied, mRowsCaughtUp,
+				System.currentTimeMillis() - start, locked);
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Migrated " + mDirectory + ": " + report);
+		}
+		return report;
+	}
+
+	/**
+	 * Runs the last catch up round, flushes the new database to disk and
+	 * closes it. Called by the checkout with the database locked, just
+	 * before it is replaced.
+	 * @throws IOException if the database can not be flushed
+	 */
+	/* package */ void finish() throws IOException {
+		// The file is about to replace the live database.
+		mDb.execSQL("PRAGMA synchronous = FULL");
+		catchUp();
+		sync(mUpdateFile);
+		close();
+	}
+
+	/**
+	 * Forces the contents of a file to disk.
+	 * @param file the file to flush
+	 * @throws IOException if the file can not be flushed
+	 */
+	private static void sync(final File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Decides which columns to copy for each table, which are the columns
+	 * present in both the old and the new table.
+	 */
+	private void planCopy() {
+		for (String table : ChangeLog.getUserTables(mDb)) {
+			List<String> oldColumns = getColumns("old", table);
+			if (oldColumns.isEmpty()) {
+				continue;
+			}
+			Set<String> retained = new HashSet<String>(oldColumns);
+			StringBuilder columns = new StringBuilder();
+			for (String column : getColumns("main", table)) {
+				if (retained.contains(column)) {
+					if (columns.length() > 0) {
+						columns.append(", ");
+					}
+					columns.append(ChangeLog.identifier(column));
+				}
+			}
+			if (columns.length() > 0) {
+				mColumns.put(table, columns.toString());
+			}
+		}
+	}
+
+	/**
+	 * Copies a table in batches of rows ordered by row id.
+	 * @param table the table to copy
+	 * @param columns the columns to copy
+	 * @throws IOException if the migration was cancelled
+	 */
+	private void copyTable(final String table, final String columns)
+			throws IOException {
+		String name = ChangeLog.identifier(table);
+		SQLiteStatement count = mDb.compileStatement(
+				"SELECT COUNT(*) FROM old." + name);
+		SQLiteStatement bound = mDb.compileStatement(
+				"SELECT IFNULL(MAX(rowid), ?1) FROM (SELECT rowid FROM old."
+				+ name + " WHERE rowid > ?1 ORDER BY rowid LIMIT "
+				+ mBatchSize + ")");
+		SQLiteStatement copy = mDb.compileStatement(
+				"INSERT OR REPLACE INTO main." + name + " (" + columns
+				+ ") SELECT " + columns + " FROM old." + name
+				+ " WHERE rowid > ? AND rowid <= ?");
+		SQLiteStatement changes = mDb.compileStatement("SELECT changes()");
+		try {
+			mMonitor.beginTask("Copying " + table,
+					(int) Math.min(Integer.MAX_VALUE,
+							count.simpleQueryForLong()));
+			long last = Long.MIN_VALUE;
+			while (true) {
+				checkCancelled();
+				mDb.beginTransaction();
+				try {
+					bound.bindLong(1, last);
+					long next = bound.simpleQueryForLong();
+					if (next == last) {
+						mDb.setTransactionSuccessful();
+						break;
+					}
+					copy.bindLong(1, last);
+					copy.bindLong(2, next);
+					copy.execute();
+					int rows = (int) changes.simpleQueryForLong();
+					mRowsCopied += rows;
+					mMonitor.update(rows);
+					last = next;
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+			}
+			mMonitor.endTask();
+		} finally {
+			count.close();
+			bound.close();
+			copy.close();
+			changes.close();
+		}
+	}
+
+	/**
+	 * Copies the rows which were written since the last round again.
+	 * @return the number of rows copied
+	 */
+	private int catchUp() {
+		String query = "SELECT seq, tbl, pk FROM old." + ChangeLog.TABLE
+				+ " WHERE seq > " + mLastSeq
+				+ " UNION SELECT seq, tbl, pk FROM old."
+				+ ChangeLog.MIGRATION_TABLE + " WHERE seq > " + mLastSeq
+				+ " ORDER BY seq";
+		Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+		Cursor c = mDb.rawQuery(query, null);
+		try {
+			while (c.moveToNext()) {
+				mLastSeq = Math.max(mLastSeq, c.getLong(0));
+				String table = c.getString(1);
+				if (mColumns.containsKey(table)) {
+					String where = c.getString(2);
+					rows.put(table + '\0' + where,
+							new String[] {table, where});
+				}
+			}
+		} finally {
+			c.close();
+		}
+		if (rows.isEmpty()) {
+			return 0;
+		}
+
+		mDb.beginTransaction();
+		try {
+			for (String[] row : rows.values()) {
+				String name = ChangeLog.identifier(row[0]);
+				String columns = mColumns.get(row[0]);
+				mDb.execSQL("DELETE FROM main." + name + " WHERE " + row[1]);
+				mDb.execSQL("INSERT INTO main." + name + " (" + columns
+						+ ") SELECT " + columns + " FROM old." + name
+						+ " WHERE " + row[1]);
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		mRowsCaughtUp += rows.size();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Caught up " + rows.size() + " rows.");
+		}
+		return rows.size();
+	}
+
+	/**
+	 * Lists the columns of a table.
+	 * @param database the name of the attached database
+	 * @param table the table
+	 * @return the columns, empty if the table does not exist
+	 */
+	private List<String> getColumns(final String database,
+			final String table) {
+		List<String> columns = new ArrayList<String>();
+		Cursor c = mDb.rawQuery("PRAGMA " + database + ".table_info("
+				+ ChangeLog.identifier(table) + ")", null);
+		try {
+			int name = c.getColumnIndexOrThrow("name");
+			while (c.moveToNext()) {
+				columns.add(c.getString(name));
+			}
+		} finally {
+			c.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * @throws IOException if the migration was cancelled
+	 */
+	private void checkCancelled() throws IOException {
+		if (mMonitor.isCancelled()) {
+			throw new IOException("Migration cancelled.");
+		}
+	}
+
+	/**
+	 * Closes the connection to the new database.
+	 */
+	private void close() {
+		if (mDb != null) {
+			try {
+				mDb.execSQL("DETACH DATABASE old");
+			} catch (RuntimeException e) {
+				LOG.debug("Old database was not attached.");
+			}
+			mDb.close();
+			mDb = null;
+		}
+	}
+
+	/**
+	 * Removes a database file and its journals.
+	 * @param file the database file
+	 */
+	/* package */ static void deleteDatabase(final File file) {
+		if (file.exists() && !file.delete()) {
+			LOG.warn("Error deleting: {}", file);
+		}
+		deleteJournals(file);
+	}
+
+	/**
+	 * Removes the journals of a database file.
+	 * @param file the database file
+	 */
+	/* package */ static void deleteJournals(final File file) {
+		String[] suffixes = {"-journal", "-wal", "-shm"};
+		for (String suffix : suffixes) {
+			File remove = new File(file.getPath() + suffix);
+			if (remove.exists() && !remove.delete()) {
+				LOG.warn("Error deleting: {}", remove);
+			}
+		}
+	}
+}
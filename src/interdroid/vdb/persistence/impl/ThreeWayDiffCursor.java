@@ -40,6 +40,11 @@ import android.database.sqlite.SQLiteDatabase;
 /**
  * A cursor for managing a three way diff.
  *
+ * The cursor walks the differences of ours and theirs against the base
+ * side by side. Both are sorted by primary key, so every key which
+ * changed on either side is visited once, in key order, while only the
+ * current row of each side is held.
+ *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  *
  */
@@ -48,6 +53,10 @@ public class ThreeWayDiffCursor {
 	 * The metadata for the table.
 	 */
 	private TableMetadata mTableInfo;
+	/**
+	 * The comparators for the key columns, built once for the table.
+	 */
+	private KeyComparator[] mKeyComparators;
 	/**
 	 * Cursor for theirs vs base.
 	 */
@@ -92,6 +101,7 @@ public class ThreeWayDiffCursor {
 	public ThreeWayDiffCursor(final MergeHelper helper, final SQLiteDatabase db,
 			final String table) {
 		mTableInfo = helper.getTableMetadata(db, table);
+		mKeyComparators = KeyComparator.forKey(mTableInfo.mKeyTypes);
 		mTheirs = helper.diff2(db, table, Database.BASE, Database.THEIRS);
 		mOurs = helper.diff2(db, table, Database.BASE, Database.OURS);
 		mIndexOursDiffState = mOurs.getColumnIndexOrThrow(
@@ -101,7 +111,8 @@ public class ThreeWayDiffCursor {
 	}
 
 	/**
-	 * Looks for the smallest primary key in the two cursors.
+	 * Looks for the smallest primary key in the two cursors. A side
+	 * which does not have a row with that key did not change it.
 	 */
 	private void pickSmallestRow() {
 		boolean haveTheirs = !mTheirs.isAfterLast()
@@ -113,36 +124,39 @@ public class ThreeWayDiffCursor {
 			return;
 		}
 		if (haveTheirs && haveOurs) {
-			/**
-			 * Since we are merging, we have to iterate on the pk columns in the
-			 * same order as the ORDER BY statement in
-			 * {@link MergeHelper#diff2}.
-			 **/
-			for (int i = 0; i < mTableInfo.mKeyFields.size(); ++i) {
-				// TODO: (emilian) rewrite me with strings too
-				long ourLong = mOurs.getLong(i);
-				long theirLong = mTheirs.getLong(i);
-
-				if (ourLong < theirLong) {
-					haveTheirs = false;
-					break;
-				}
-				if (theirLong < ourLong) {
-					haveOurs = false;
-					break;
-				}
+			int order = compareKeys();
+			if (order < 0) {
+				haveTheirs = false;
+			} else if (order > 0) {
+				haveOurs = false;
 			}
 		}
 		if (haveOurs) {
-			mRowStateOurs = DiffResult.SAME;
-			mRowStateTheirs = DiffResult.SAME;
-		} else {
+			mRow = mOurs;
 			mRowStateOurs = DiffResult.valueOf(
-					mTheirs.getString(mIndexOursDiffState));
+					mOurs.getString(mIndexOursDiffState));
+		} else {
+			mRow = mTheirs;
+			mRowStateOurs = DiffResult.SAME;
+		}
+		if (haveTheirs) {
 			mRowStateTheirs = DiffResult.valueOf(
 					mTheirs.getString(mIndexTheirsDiffState));
+		} else {
+			mRowStateTheirs = DiffResult.SAME;
 		}
+	}
 
+	/**
+	 * Compares the keys of the current rows of both sides. Since we are
+	 * merging, we have to iterate on the pk columns in the same order as
+	 * the ORDER BY statement in {@link MergeHelper#diff2}, and compare
+	 * the values the way SQLite sorts them.
+	 * @return less than 0 if ours comes first, 0 if the keys are equal
+	 * and more than 0 if theirs comes first
+	 */
+	private int compareKeys() {
+		return KeyComparator.compareKeys(mKeyComparators, mOurs, mTheirs);
 	}
 
 	/**
@@ -174,6 +188,7 @@ public class ThreeWayDiffCursor {
 		if (!DiffResult.SAME.equals(mRowStateTheirs)) {
 			mTheirs.moveToNext();
 		}
+		pickSmallestRow();
 		if (mRow != null) {
 			return true;
 		}
@@ -206,6 +221,15 @@ public class ThreeWayDiffCursor {
 		return mRowStateOurs;
 	}
 
+	/**
+	 * @return the cursor holding the primary key of the current row in
+	 * its first columns.
+	 */
+	public final Cursor getRowCursor() {
+		checkValidRow();
+		return mRow;
+	}
+
 	/**
 	 * @return their side cursor
 	 */
@@ -219,4 +243,13 @@ public class ThreeWayDiffCursor {
 	public final Cursor getOursCursor() {
 		return mOurs;
 	}
+
+	/**
+	 * Closes the cursors of both sides.
+	 */
+	public final void close() {
+		mRow = null;
+		mTheirs.close();
+		mOurs.close();
+	}
 }
@@ -30,15 +30,20 @@
  */
 package interdroid.vdb.persistence.impl;
 
-import interdroid.vdb.content.DatabaseInitializer;
-import interdroid.vdb.content.avro.AvroContentProvider;
-import interdroid.vdb.content.metadata.Metadata;
+import interdroid.util.FSUtil;
+import interdroid.vdb.content.avro.SchemaCache;
+import interdroid.vdb.content.avro.SchemaEvolutionValidator;
+import interdroid.vdb.persistence.api.CommitCallback;
+import interdroid.vdb.persistence.api.ConflictConfig;
 import interdroid.vdb.persistence.api.DirtyCheckoutException;
 import interdroid.vdb.persistence.api.MergeInProgressException;
 import interdroid.vdb.persistence.api.MergeInfo;
+import interdroid.vdb.persistence.api.MergePreview;
+import interdroid.vdb.persistence.api.MigrationReport;
 import interdroid.vdb.persistence.api.VdbCheckout;
 import interdroid.vdb.persistence.api.VdbInitializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -46,21 +51,34 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.avro.Schema;
-import org.eclipse.jgit.api.AddCommand;
-import org.eclipse.jgit.api.CommitCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.NoFilepatternException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,7 +110,23 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	/**
 	 * The name of the file we store the schema in.
 	 */
-	private static final String SCHEMA_FILE = "schema";
+	static final String SCHEMA_FILE = "schema";
+
+	/**
+	 * The name of the change set stored in commits which are not
+	 * full snapshots.
+	 */
+	static final String CHANGESET = "changeset";
+
+	/**
+	 * The name of the summary of the database stored in commits.
+	 */
+	static final String SUMMARY = "summary";
+
+	/**
+	 * The size of the buffer used for reading files.
+	 */
+	private static final int BUFFER_SIZE = 8192;
 
 	/**
 	 * The prefix for a branch reference.
@@ -101,7 +135,17 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	/**
 	 * The name of the database file.
 	 */
-	private static final String SQLITEDB = "sqlite.db";
+	static final String SQLITEDB = "sqlite.db";
+	/**
+	 * The name of the file marking a checkout which still shares the
+	 * database of the commit it was created from. It holds the sha1
+	 * of that commit.
+	 */
+	static final String BASE_FILE = "BASE";
+	/**
+	 * The name of the temporary copy of the database made for a snapshot.
+	 */
+	private static final String SNAPSHOT_FILE = "snapshot.tmp";
 	/**
 	 * The name of the merge info file.
 	 */
@@ -131,15 +175,34 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	/**
 	 * The current merge state of this checkout.
 	 */
-	private MergeInfo mMergeInfo;
+	private volatile MergeInfo mMergeInfo;
+	/**
+	 * The database for this checkout. This is the only connection
+	 * used for writing.
+	 */
+	private volatile SQLiteDatabase mDb;
 	/**
-	 * The database for this checkout.
+	 * The pool of reader connections or null if reads share mDb.
 	 */
-	private SQLiteDatabase mDb;
+	private volatile ReaderPool mReaders;
+	/**
+	 * A flag indicating the database uses a write ahead log.
+	 */
+	private boolean mWal;
+	/**
+	 * The connections handed out to the current thread, most recent last.
+	 */
+	private final ThreadLocal<LinkedList<Lease>> mLeases =
+			new ThreadLocal<LinkedList<Lease>>() {
+		@Override
+		protected LinkedList<Lease> initialValue() {
+			return new LinkedList<Lease>();
+		}
+	};
 	/**
 	 * A flag indicating this checkout was deleted.
 	 */
-	private boolean mDeleted;
+	private volatile boolean mDeleted;
 	/**
 	 * A flag indicating this checkout is read only.
 	 */
@@ -152,12 +215,97 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	 *
 	 * Instead - the read lock is used for accessing the database both
 	 * for ro or rw modes, while the write lock is used for exclusively
-	 * locking the checkout directory for commits.
+	 * locking the checkout directory while the database file is copied
+	 * or replaced.
 	 */
 	private final ReentrantReadWriteLock mLock
 	= new ReentrantReadWriteLock();
 
-	private SQLiteDatabase mUpdateDb;
+	/**
+	 * The running or last migration of this checkout.
+	 */
+	private FutureTask<MigrationReport> mMigration;
+
+	/**
+	 * Guards the cached schema.
+	 */
+	private final Object mSchemaLock = new Object();
+
+	/**
+	 * The contents of the schema file or null if not read yet.
+	 */
+	private byte[] mSchemaBytes;
+
+	/**
+	 * The schema as text.
+	 */
+	private String mSchemaText;
+
+	/**
+	 * The blob id of the schema file.
+	 */
+	private ObjectId mSchemaId;
+
+	/**
+	 * The fingerprint of the schema, as used by {@link SchemaCache}.
+	 */
+	private long mSchemaFingerprint;
+
+	/**
+	 * The scheduler for automatic commits or null if read only.
+	 */
+	private final AutoCommitScheduler mAutoCommit;
+
+	/**
+	 * Guards the pending asynchronous commit.
+	 */
+	private final Object mAsyncCommitLock = new Object();
+
+	/**
+	 * Serializes commits and the operations which move the database away
+	 * from the head while a commit is stored. This is taken before the
+	 * monitor of the checkout.
+	 */
+	private final Object mCommitLock = new Object();
+
+	/**
+	 * The last asynchronous commit requested on this checkout.
+	 */
+	private AsyncCommit mAsyncCommit;
+
+	/**
+	 * The commit checkout a lazy checkout reads from, if it is open.
+	 */
+	private File mSharedBase;
+
+	/**
+	 * The commit checkouts attached for a merge.
+	 */
+	private final List<File> mMergeCheckouts = new ArrayList<File>();
+
+	/**
+	 * A connection handed out by {@link #getDatabase(boolean)}.
+	 */
+	private static final class Lease {
+		/**
+		 * The connection.
+		 */
+		private final SQLiteDatabase mConnection;
+		/**
+		 * The pool to give the connection back to or null.
+		 */
+		private final ReaderPool mPool;
+
+		/**
+		 * Construct a lease.
+		 * @param connection the connection
+		 * @param pool the pool to give the connection back to or null
+		 */
+		Lease(final SQLiteDatabase connection, final ReaderPool pool) {
+			mConnection = connection;
+			mPool = pool;
+		}
+	}
 
 	/**
 	 * Construct a checkout.
@@ -177,11 +325,31 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	 */
 	public VdbCheckoutImpl(final VdbRepositoryImpl parentRepo,
 			final String checkoutName, final boolean readOnly) {
+		this(parentRepo, checkoutName,
+				new File(parentRepo.getRepositoryDir(), checkoutName),
+				readOnly);
+	}
+
+	/**
+	 * Construct a checkout living in the given directory.
+	 * @param parentRepo the repository for this checkout
+	 * @param checkoutName the name of the checkout
+	 * @param directory the directory holding the checkout
+	 * @param readOnly is this checkout read only
+	 */
+	/* package */ VdbCheckoutImpl(final VdbRepositoryImpl parentRepo,
+			final String checkoutName, final File directory,
+			final boolean readOnly) {
 		mVdbRepository = parentRepo;
 		mCheckoutName = checkoutName;
-		mDirectory = new File(parentRepo.getRepositoryDir(), checkoutName);
-		mGitRepository = parentRepo.getGitRepository(checkoutName);
+		mDirectory = directory;
+		mGitRepository = parentRepo.getGitRepository();
 		mReadOnly = readOnly;
+		if (readOnly) {
+			mAutoCommit = null;
+		} else {
+			mAutoCommit = new AutoCommitScheduler(this, parentRepo);
+		}
 
 		if (!mDirectory.isDirectory()) { // assume it's already checked out
 			throw new RuntimeException("Not checked out yet.");
@@ -198,33 +366,89 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	 * @throws MergeInProgressException if the merge is not complete
 	 */
 	@Override
-	public final synchronized void commit(final String authorName,
+	public final void commit(final String authorName,
 			final String authorEmail, final String msg)
 					throws IOException, MergeInProgressException {
+		commit(authorName, authorEmail, msg, NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Commit the current state to the repository, reporting progress.
+	 * @param authorName the name of the author
+	 * @param authorEmail the email for the author
+	 * @param msg the message for this commit
+	 * @param monitor the monitor to report progress to
+	 * @return the id of the new commit or of the current head if there
+	 * was nothing to commit
+	 * @throws IOException if reading or writing fails
+	 * @throws MergeInProgressException if the merge is not complete
+	 */
+	/* package */ final ObjectId commit(final String authorName,
+			final String authorEmail, final String msg,
+			final ProgressMonitor monitor)
+					throws IOException, MergeInProgressException {
 		checkDeletedState();
 		checkReadOnly();
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("commit on " + mCheckoutName);
 		}
 
-		if (mMergeInfo != null && !mMergeInfo.isResolved()) {
-			throw new MergeInProgressException();
-		}
+		return commitImpl(authorName, authorEmail, msg, monitor);
+	}
 
-		try {
-			if (!mLock.writeLock().tryLock(LOCK_TIMEOUT, TimeUnit.SECONDS)) {
-				throw new RuntimeException(
-						"Timeout waiting for the locked database for commit.");
+	@Override
+	public final Future<ObjectId> commitAsync(final String authorName,
+			final String authorEmail, final String msg,
+			final ProgressMonitor monitor, final CommitCallback callback) {
+		checkDeletedState();
+		checkReadOnly();
+		synchronized (mAsyncCommitLock) {
+			if (mAsyncCommit != null && mAsyncCommit.join(authorName,
+					authorEmail, msg, monitor, callback)) {
+				LOG.debug("Joined pending commit on {}", mCheckoutName);
+				return mAsyncCommit;
 			}
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+			ProgressMonitor progress = monitor;
+			if (progress == null) {
+				progress = NullProgressMonitor.INSTANCE;
+			}
+			mAsyncCommit = new AsyncCommit(this, authorName, authorEmail,
+					msg, progress);
+			mAsyncCommit.join(authorName, authorEmail, msg, progress,
+					callback);
+			mVdbRepository.getCommitExecutor().execute(mAsyncCommit);
+			return mAsyncCommit;
 		}
+	}
 
-		try {
-			commitImpl(authorName, authorEmail, msg);
-		} finally {
-			mLock.writeLock().unlock();
+	@Override
+	public final void markDirty(final int rows, final long bytes) {
+		checkDeletedState();
+		if (mAutoCommit != null) {
+			mAutoCommit.onWrite(rows, bytes);
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds between the first write and the
+	 * commit for the last automatic commit of this checkout
+	 */
+	public final long getLastAutoCommitLag() {
+		if (mAutoCommit == null) {
+			return 0;
+		}
+		return mAutoCommit.getLastCommitLag();
+	}
+
+	/**
+	 * @return the number of rows in the last automatic commit of
+	 * this checkout
+	 */
+	public final int getLastAutoCommitBatchSize() {
+		if (mAutoCommit == null) {
+			return 0;
 		}
+		return mAutoCommit.getLastBatchSize();
 	}
 
 	/**
@@ -238,59 +462,414 @@ public class VdbCheckoutImpl implements VdbCheckout {
 
 	/**
 	 * The implementation of the commit operation.
+	 *
+	 * Commits normally store only the rows changed since the parent
+	 * commit as a change set next to the schema, and reuse the database
+	 * object of the parent. A full snapshot of the database is stored
+	 * for the first commit, whenever the schema changes, for merges and
+	 * once the chain of change sets reaches the snapshot interval.
+	 *
+	 * Reads and writes carry on while the commit is made. Only the
+	 * capture of the change set or the copy of the database file is
+	 * isolated from writers, the objects are then written and the
+	 * branch is moved without holding any lock on the database.
+	 * The checkout itself is only held for the capture and for moving
+	 * the branch, so it stays usable while the objects are stored.
+	 *
 	 * @param authorName the name of the author
 	 * @param authorEmail the authors email
 	 * @param msg the commit message
+	 * @param monitor the monitor to report progress to
+	 * @return the id of the new commit or of the current head if there
+	 * was nothing to commit
 	 * @throws IOException if reading or writing fails
 	 * @throws MergeInProgressException if a merge is not resolved
 	 */
-	private synchronized void commitImpl(final String authorName,
-			final String authorEmail, final String msg)
+	private ObjectId commitImpl(final String authorName,
+			final String authorEmail, final String msg,
+			final ProgressMonitor monitor)
 					throws IOException, MergeInProgressException {
+		synchronized (mCommitLock) {
+			PersonIdent author = new PersonIdent(authorName, authorEmail);
+			ObjectInserter inserter = mGitRepository.newObjectInserter();
+			RevWalk revWalk = mVdbRepository.acquireRevWalk();
+			File copy = null;
+			try {
+				ObjectId headId = null;
+				RevCommit parent = null;
+				ObjectId theirs = null;
+				byte[] schema;
+				ObjectId schemaId;
+				int pageSize = 0;
+				ByteArrayOutputStream changes = null;
+				ByteArrayOutputStream summary = new ByteArrayOutputStream();
+				long mark;
+
+				// Capture what is committed while holding the checkout.
+				synchronized (this) {
+					checkDeletedState();
+					if (mMergeInfo != null && !mMergeInfo.isResolved()) {
+						throw new MergeInProgressException();
+					}
+					Ref head = mGitRepository.getRef(
+							BRANCH_REF_PREFIX + mCheckoutName);
+					if (head != null) {
+						headId = head.getObjectId();
+					}
+					if (isLazy()) {
+						LOG.debug("Nothing to commit on {}", mCheckoutName);
+						return headId;
+					}
+
+					openDatabase();
+
+					schema = getSchemaBytes();
+					schemaId = getSchemaId();
+					if (headId != null) {
+						parent = revWalk.parseCommit(headId);
+					}
+					if (!isDirty(revWalk, parent, schemaId)) {
+						LOG.debug("Nothing to commit on {}", mCheckoutName);
+						return headId;
+					}
+					if (mMergeInfo != null) {
+						theirs = ObjectId.fromString(mMergeInfo.getTheirs());
+					}
+
+					if (needsSnapshot(revWalk, parent, schemaId)) {
+						copy = new File(mDirectory, SNAPSHOT_FILE);
+						monitor.beginTask("Copying database",
+								ProgressMonitor.UNKNOWN);
+						mark = copyDatabase(copy, summary);
+						monitor.endTask();
+						pageSize = (int) mDb.getPageSize();
+					} else {
+						changes = new ByteArrayOutputStream();
+						monitor.beginTask("Capturing changes",
+								ProgressMonitor.UNKNOWN);
+						mark = captureChanges(changes, summary);
+						monitor.endTask();
+					}
+				}
+
+				// Store the objects without holding the checkout.
+				inserter.insert(Constants.OBJ_BLOB, schema);
+				TreeFormatter tree = new TreeFormatter();
+				if (copy != null) {
+					tree.append(SCHEMA_FILE, FileMode.REGULAR_FILE, schemaId);
+					ChunkedFile.append(tree, SQLITEDB, inserter,
+							revWalk.getObjectReader(), copy,
+							ChunkedFile.alignChunkSize(
+									mVdbRepository.getChunkSize(),
+									pageSize), monitor);
+				} else {
+					TreeWalk dbEntry = TreeWalk.forPath(
+							revWalk.getObjectReader(), SQLITEDB,
+							parent.getTree());
+					if (dbEntry == null) {
+						throw new IOException(
+								"Parent commit has no database.");
+					}
+					tree.append(CHANGESET, FileMode.REGULAR_FILE,
+							inserter.insert(Constants.OBJ_BLOB,
+									changes.toByteArray()));
+					tree.append(SCHEMA_FILE, FileMode.REGULAR_FILE, schemaId);
+					tree.append(SQLITEDB, dbEntry.getFileMode(0),
+							dbEntry.getObjectId(0));
+				}
+				tree.append(SUMMARY, FileMode.REGULAR_FILE,
+						inserter.insert(Constants.OBJ_BLOB,
+								summary.toByteArray()));
+
+				CommitBuilder commit = new CommitBuilder();
+				commit.setTreeId(inserter.insert(tree));
+				if (parent != null) {
+					if (theirs != null) {
+						commit.setParentIds(parent, theirs);
+					} else {
+						commit.setParentId(parent);
+					}
+				}
+				commit.setAuthor(author);
+				commit.setCommitter(author);
+				commit.setMessage(msg);
+				ObjectId commitId = inserter.insert(commit);
+				inserter.flush();
+
+				// Move the branch while holding the checkout again.
+				synchronized (this) {
+					updateBranch(headId, commitId, author, msg, monitor);
+
+					// The changes are now safely stored in the commit.
+					openDatabase();
+					ChangeLog.clear(mDb, mark);
+					if (!mReadOnly) {
+						ChangeLog.install(mDb);
+					}
+
+					if (mMergeInfo != null) {
+						// successfully committed the merge, get back to
+						// normal mode. Readers use the attached databases
+						// during a merge.
+						lockExclusive();
+						try {
+							mMergeInfo = null;
+							saveMergeInfo();
+							detachMergeDatabases();
+						} finally {
+							mLock.writeLock().unlock();
+						}
+					}
+				}
+
+				mVdbRepository.onCommit(commitId);
+
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Succesfully committed revision "
+							+ commitId.getName() + " on branch "
+							+ mCheckoutName);
+				}
+				return commitId;
+			} finally {
+				mVdbRepository.releaseRevWalk(revWalk);
+				inserter.release();
+				if (copy != null && !copy.delete()) {
+					LOG.warn("Error deleting: {}", copy);
+				}
+			}
+		}
+	}
 
-		if (mMergeInfo != null && !mMergeInfo.isResolved()) {
-			throw new MergeInProgressException();
+	/**
+	 * Moves the branch of this checkout to a new commit.
+	 * @param headId the commit the branch is expected at or null
+	 * @param commitId the new commit
+	 * @param author the author of the commit
+	 * @param msg the commit message
+	 * @param monitor the monitor to report progress to
+	 * @throws IOException if the branch can not be moved
+	 */
+	private void updateBranch(final ObjectId headId, final ObjectId commitId,
+			final PersonIdent author, final String msg,
+			final ProgressMonitor monitor) throws IOException {
+		monitor.beginTask("Updating branch", 1);
+		RefUpdate update = mGitRepository.updateRef(
+				BRANCH_REF_PREFIX + mCheckoutName);
+		update.setNewObjectId(commitId);
+		if (headId != null) {
+			update.setExpectedOldObjectId(headId);
+		} else {
+			update.setExpectedOldObjectId(ObjectId.zeroId());
 		}
+		update.setRefLogIdent(author);
+		update.setRefLogMessage("commit: " + msg, false);
+		RefUpdate.Result result = update.update();
+		if (result != RefUpdate.Result.NEW
+				&& result != RefUpdate.Result.FAST_FORWARD
+				&& result != RefUpdate.Result.FORCED) {
+			throw new IOException("Unable to update branch "
+					+ mCheckoutName + ": " + result);
+		}
+		monitor.update(1);
+		monitor.endTask();
+	}
 
-		Git git = new Git(mGitRepository);
-		CommitCommand commit = git.commit();
-		AddCommand add = git.add();
-		add.addFilepattern(SQLITEDB);
-		add.addFilepattern(SCHEMA_FILE);
-		commit.setMessage(msg);
+	/**
+	 * Captures the changes logged so far as a change set. This runs in
+	 * a transaction so the change set matches the returned mark exactly.
+	 * Other writers are only held back while the change set is read.
+	 * @param out the stream to write the change set to
+	 * @param summary the stream to write the summary of the database to
+	 * @return the mark of the last change in the change set
+	 * @throws IOException if writing the change set fails
+	 */
+	private long captureChanges(final OutputStream out,
+			final OutputStream summary) throws IOException {
+		mDb.beginTransaction();
 		try {
-			add.call();
-		} catch (NoFilepatternException e) {
-			throw new IOException();
-		} catch (GitAPIException e) {
-		    throw new IOException();
-		}
-		PersonIdent author = new PersonIdent(authorName, authorEmail);
-		commit.setAuthor(author);
-		commit.setCommitter(author);
-		RevCommit revision;
+			CommitSummary.update(mDb, true);
+			long mark = ChangeLog.getMark(mDb);
+			int rows = ChangeLog.write(mDb, mark, out);
+			CommitSummary.read(mDb).write(summary);
+			mDb.setTransactionSuccessful();
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Committing change set of " + rows + " rows.");
+			}
+			return mark;
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Copies the database file for a snapshot. Access to the database is
+	 * only blocked while the file is copied, the copy is then stored
+	 * without holding any lock.
+	 * @param copy the file to copy the database to
+	 * @param summary the stream to write the summary of the database to
+	 * @return the mark of the last change in the copy
+	 * @throws IOException if copying fails
+	 */
+	private long copyDatabase(final File copy, final OutputStream summary)
+			throws IOException {
+		lockExclusive();
 		try {
-			revision = commit.call();
-			RefUpdate update = mGitRepository.updateRef(mCheckoutName);
-			update.setNewObjectId(revision);
-			update.setRefLogIdent(author);
-			update.setRefLogMessage(msg, false);
-			update.update();
-		} catch (Exception e) {
-			throw new IOException(e.getMessage());
+			mDb.beginTransaction();
+			try {
+				CommitSummary.update(mDb, true);
+				CommitSummary.read(mDb).write(summary);
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+			if (mWal) {
+				WriteAheadLog.checkpoint(mDb);
+			}
+			long mark = ChangeLog.getMark(mDb);
+			FSUtil.copyFile(new File(mDirectory, SQLITEDB), copy);
+			return mark;
+		} finally {
+			mLock.writeLock().unlock();
 		}
+	}
 
-		if (mMergeInfo != null) {
-			// successfully committed the merge, get back to normal mode
-			mMergeInfo = null;
-			saveMergeInfo();
-			detachMergeDatabases();
+	/**
+	 * Takes the write lock of the checkout, which keeps everybody else
+	 * away from the database.
+	 */
+	private void lockExclusive() {
+		try {
+			if (!mLock.writeLock().tryLock(LOCK_TIMEOUT, TimeUnit.SECONDS)) {
+				throw new RuntimeException(
+						"Timeout waiting for the locked database for commit.");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Checks if the database or schema differ from the given commit.
+	 * This only looks at the change log and the small schema file so it
+	 * is cheap regardless of the size of the database.
+	 * @param revWalk the walk to read objects with
+	 * @param head the commit to compare with or null
+	 * @param schemaId the id of the current schema
+	 * @return true if there is something to commit
+	 * @throws IOException if reading the commit fails
+	 */
+	private boolean isDirty(final RevWalk revWalk, final RevCommit head,
+			final ObjectId schemaId) throws IOException {
+		if (head == null || mMergeInfo != null
+				|| !ChangeLog.hasTable(mDb, ChangeLog.TABLE)
+				|| ChangeLog.hasChanges(mDb)) {
+			return true;
 		}
+		return !schemaId.equals(VdbRepositoryImpl.findEntry(
+				revWalk.getObjectReader(), head, SCHEMA_FILE));
+	}
 
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("Succesfully committed revision "
-					+ revision.getName().toString() + " on branch "
-					+ mCheckoutName);
+	@Override
+	public final synchronized boolean isDirty() throws IOException {
+		checkDeletedState();
+		if (mReadOnly || isLazy()) {
+			return false;
+		}
+		openDatabase();
+		Ref head = mGitRepository.getRef(BRANCH_REF_PREFIX + mCheckoutName);
+		if (head == null || head.getObjectId() == null) {
+			return true;
+		}
+		RevWalk revWalk = mVdbRepository.acquireRevWalk();
+		try {
+			return isDirty(revWalk, revWalk.parseCommit(head.getObjectId()),
+					getSchemaId());
+		} finally {
+			mVdbRepository.releaseRevWalk(revWalk);
+		}
+	}
+
+	/**
+	 * Decides if the next commit must store a full snapshot of the
+	 * database instead of a change set.
+	 * @param revWalk the walk to parse commits with
+	 * @param parent the parent of the new commit or null
+	 * @param schemaId the id of the schema for the new commit
+	 * @return true if a snapshot is required
+	 * @throws IOException if reading the history fails
+	 */
+	private boolean needsSnapshot(final RevWalk revWalk,
+			final RevCommit parent, final ObjectId schemaId)
+					throws IOException {
+		if (parent == null || mMergeInfo != null
+				|| !ChangeLog.hasTable(mDb, ChangeLog.TABLE)) {
+			return true;
+		}
+		int interval = mVdbRepository.getSnapshotInterval();
+		if (interval <= 1) {
+			return true;
+		}
+
+		ObjectReader reader = revWalk.getObjectReader();
+		if (!schemaId.equals(VdbRepositoryImpl.findEntry(reader, parent,
+				SCHEMA_FILE))) {
+			return true;
+		}
+
+		// Count the change sets since the last snapshot.
+		int chain = 0;
+		RevCommit current = parent;
+		while (current != null && chain < interval - 1) {
+			if (VdbRepositoryImpl.findEntry(reader, current,
+					CHANGESET) == null) {
+				break;
+			}
+			chain++;
+			if (current.getParentCount() > 0) {
+				current = revWalk.parseCommit(current.getParent(0));
+			} else {
+				current = null;
+			}
+		}
+		return chain >= interval - 1;
+	}
+
+	/**
+	 * Reads a file into memory.
+	 * @param file the file to read
+	 * @return the contents of the file
+	 * @throws IOException if reading fails
+	 */
+	private static byte[] readFile(final File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out =
+					new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a file.
+	 * @param file the file to write
+	 * @param contents the contents of the file
+	 * @throws IOException if writing fails
+	 */
+	private static void writeFile(final File file, final byte[] contents)
+			throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(contents);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
 		}
 	}
 
@@ -355,20 +934,56 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	}
 
 	/**
-	 * Opens the database.
+	 * Opens the database. The database is only published once it is
+	 * fully set up since readers do not synchronize on the checkout.
+	 *
+	 * Writable databases are switched to write ahead logging, which lets
+	 * a pool of reader connections run next to the writer. Databases
+	 * which are never written can always be read from a pool.
 	 */
 	private synchronized void openDatabase() {
-		if (mDb == null) {
-			mDb = SQLiteDatabase.openDatabase(
-					new File(mDirectory, SQLITEDB).getAbsolutePath(),
+		if (mDb != null) {
+			return;
+		}
+		SQLiteDatabase db;
+		File file;
+		boolean pooled;
+		if (isLazy()) {
+			// Share the database of the base commit until the first write
+			try {
+				mSharedBase = mVdbRepository.acquireCommit(readBase());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			file = new File(mSharedBase, SQLITEDB);
+			db = SQLiteDatabase.openDatabase(file.getAbsolutePath(),
+					null /* cursor factory */,
+					SQLiteDatabase.OPEN_READONLY);
+			pooled = true;
+		} else {
+			file = new File(mDirectory, SQLITEDB);
+			db = SQLiteDatabase.openDatabase(file.getAbsolutePath(),
 					null /* cursor factory */,
 					SQLiteDatabase.OPEN_READWRITE);
+			if (mReadOnly) {
+				pooled = true;
+			} else {
+				ChangeLog.install(db);
+				mWal = WriteAheadLog.enable(db);
+				pooled = mWal;
+			}
 			try {
-				attachMergeDatabases();
+				attachMergeDatabases(db);
 			} catch (IOException e) {
+				db.close();
 				throw new RuntimeException(e);
 			}
 		}
+		int readers = mVdbRepository.getReaderConnections();
+		if (pooled && readers > 0) {
+			mReaders = new ReaderPool(file, readers, LOCK_TIMEOUT);
+		}
+		mDb = db;
 	}
 
 	/**
@@ -378,72 +993,216 @@ public class VdbCheckoutImpl implements VdbCheckout {
 		mDb.execSQL("DETACH DATABASE base");
 		mDb.execSQL("DETACH DATABASE ours");
 		mDb.execSQL("DETACH DATABASE theirs");
+		releaseMergeCheckouts();
+	}
+
+	/**
+	 * Releases the commit checkouts pinned for a merge.
+	 */
+	private void releaseMergeCheckouts() {
+		for (File checkout : mMergeCheckouts) {
+			mVdbRepository.releaseCommit(checkout);
+		}
+		mMergeCheckouts.clear();
+	}
+
+	/**
+	 * Closes the database and releases the commit checkouts it uses.
+	 */
+	private synchronized void closeDatabase() {
+		SQLiteDatabase db = mDb;
+		mDb = null;
+		if (mReaders != null) {
+			mReaders.close();
+			mReaders = null;
+		}
+		mWal = false;
+		if (db != null) {
+			db.close();
+		}
+		releaseMergeCheckouts();
+		if (mSharedBase != null) {
+			mVdbRepository.releaseCommit(mSharedBase);
+			mSharedBase = null;
+		}
 	}
 
 	/**
 	 * Attaches the merge databases.
+	 * @param db the database to attach them to
 	 * @throws IOException if reading or writing fail.
 	 */
-	private synchronized void attachMergeDatabases() throws IOException {
-		openDatabase();
-
+	private synchronized void attachMergeDatabases(final SQLiteDatabase db)
+			throws IOException {
 		MergeInfo mergeInfo = getMergeInfo();
 		if (mergeInfo != null) {
 
+			releaseMergeCheckouts();
 			File baseCheckout =
-					mVdbRepository.checkoutCommit(mergeInfo.getBase());
+					mVdbRepository.acquireCommit(mergeInfo.getBase());
+			mMergeCheckouts.add(baseCheckout);
 			File oursCheckout =
-					mVdbRepository.checkoutCommit(mergeInfo.getOurs());
+					mVdbRepository.acquireCommit(mergeInfo.getOurs());
+			mMergeCheckouts.add(oursCheckout);
 			File theirsCheckout =
-					mVdbRepository.checkoutCommit(mergeInfo.getTheirs());
+					mVdbRepository.acquireCommit(mergeInfo.getTheirs());
+			mMergeCheckouts.add(theirsCheckout);
 
-			mDb.execSQL("ATTACH DATABASE '"
+			db.execSQL("ATTACH DATABASE '"
 					+ new File(baseCheckout, SQLITEDB).getAbsolutePath()
 					+ "' AS base");
-			mDb.execSQL("ATTACH DATABASE '"
+			db.execSQL("ATTACH DATABASE '"
 					+ new File(oursCheckout, SQLITEDB).getAbsolutePath()
 					+ "' AS ours");
-			mDb.execSQL("ATTACH DATABASE '"
+			db.execSQL("ATTACH DATABASE '"
 					+ new File(theirsCheckout, SQLITEDB).getAbsolutePath()
 					+ "' AS theirs");
 		}
 	}
 
 	/**
-	 * Returns the database, opening if necessary. This operation
-	 * grabs the read lock for the database.
-	 * @return the database
+	 * Returns a database connection, opening the database if necessary.
+	 * This operation grabs the read lock for the database but does not
+	 * synchronize on the checkout once the database is open.
+	 *
+	 * Writes and reads during a merge use the single writer connection.
+	 * Other reads take a connection from the reader pool if there is
+	 * one. A thread which already holds a connection keeps using it so
+	 * it sees its own uncommitted writes.
+	 * @param write true if the connection will be written to
+	 * @return the connection
 	 */
-	private synchronized SQLiteDatabase getDatabase() {
-		openDatabase();
-		try {
-			if (mLock.readLock().tryLock(LOCK_TIMEOUT, TimeUnit.SECONDS)) {
-				return mDb;
+	private SQLiteDatabase getDatabase(final boolean write) {
+		LinkedList<Lease> leases = mLeases.get();
+		while (true) {
+			if (mDb == null) {
+				openDatabase();
 			}
-		} catch (InterruptedException e) {
-			LOG.warn("Ignoring interupted exception: ", e);
+			try {
+				if (!mLock.readLock().tryLock(LOCK_TIMEOUT,
+						TimeUnit.SECONDS)) {
+					throw new RuntimeException(
+							"Timeout waiting for the locked database.");
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			SQLiteDatabase db = mDb;
+			if (db == null) {
+				// Closed while we were waiting for the lock.
+				mLock.readLock().unlock();
+				continue;
+			}
+			ReaderPool readers = mReaders;
+			if (write || readers == null || mMergeInfo != null) {
+				leases.add(new Lease(db, null));
+				return db;
+			}
+			if (!leases.isEmpty()) {
+				db = leases.getLast().mConnection;
+				leases.add(new Lease(db, null));
+				return db;
+			}
+			try {
+				db = readers.acquire();
+			} catch (RuntimeException e) {
+				mLock.readLock().unlock();
+				throw e;
+			}
+			leases.add(new Lease(db, readers));
+			return db;
 		}
-		throw new RuntimeException("Timeout waiting for the locked database.");
 	}
 
 	@Override
-	public final synchronized SQLiteDatabase getReadOnlyDatabase()
+	public final SQLiteDatabase getReadOnlyDatabase()
 			throws IOException {
 		checkDeletedState();
-		return getDatabase();
+		return getDatabase(false);
 	}
 
 	@Override
-	public final synchronized SQLiteDatabase getReadWriteDatabase()
+	public final SQLiteDatabase getReadWriteDatabase()
 			throws IOException {
 		checkDeletedState();
 		checkReadOnly();
-		return getDatabase();
+		if (isLazy()) {
+			copyOnWrite();
+		}
+		return getDatabase(true);
+	}
+
+	/**
+	 * @return true if this checkout still shares the database of the
+	 * commit it was created from
+	 */
+	private boolean isLazy() {
+		return new File(mDirectory, BASE_FILE).exists();
+	}
+
+	/**
+	 * @return the sha1 of the commit a lazy checkout is based on
+	 * @throws IOException if the marker can not be read
+	 */
+	private String readBase() throws IOException {
+		return new String(readFile(new File(mDirectory, BASE_FILE)),
+				"US-ASCII").trim();
+	}
+
+	/**
+	 * Gives a lazy checkout its own copy of the database so it can be
+	 * written to. This takes the write lock so nobody is using the
+	 * shared database while it is replaced.
+	 * @throws IOException if copying the database fails
+	 */
+	private synchronized void copyOnWrite() throws IOException {
+		if (!isLazy()) {
+			return;
+		}
+		try {
+			if (!mLock.writeLock().tryLock(LOCK_TIMEOUT, TimeUnit.SECONDS)) {
+				throw new RuntimeException(
+						"Timeout waiting for the locked database for copy.");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			String base = readBase();
+			closeDatabase();
+			File baseDir = mVdbRepository.acquireCommit(base);
+			File dbFile = new File(mDirectory, SQLITEDB);
+			try {
+				FSUtil.copyFile(new File(baseDir, SQLITEDB), dbFile);
+			} finally {
+				mVdbRepository.releaseCommit(baseDir);
+			}
+			if (!new File(mDirectory, BASE_FILE).delete()) {
+				if (!dbFile.delete()) {
+					LOG.warn("Error deleting: {}", dbFile);
+				}
+				throw new IOException("Unable to remove base marker in "
+						+ mDirectory);
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Copied database of " + base + " into "
+						+ mCheckoutName + " on first write.");
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
 	}
 
 	@Override
-	public final synchronized void releaseDatabase() {
+	public final void releaseDatabase() {
 		checkDeletedState();
+		LinkedList<Lease> leases = mLeases.get();
+		if (!leases.isEmpty()) {
+			Lease lease = leases.removeLast();
+			if (lease.mPool != null) {
+				lease.mPool.release(lease.mConnection);
+			}
+		}
 		mLock.readLock().unlock();
 	}
 
@@ -513,44 +1272,163 @@ public class VdbCheckoutImpl implements VdbCheckout {
 		if (mMergeInfo == null) {
 			throw new IllegalStateException("Branch was not in merge mode.");
 		}
+		openDatabase();
+		lockExclusive();
+		try {
+			MergeHelper.dropConflictTables(mDb);
+		} finally {
+			mLock.writeLock().unlock();
+		}
 		mMergeInfo.setResolved();
 		saveMergeInfo();
 	}
 
 	@Override
-	public final synchronized void revert() throws IOException {
+	public final void revert() throws IOException {
+		synchronized (mCommitLock) {
+			revertLocked();
+		}
+	}
+
+	/**
+	 * Reverts the checkout once no commit is being stored.
+	 * @throws IOException if the last commit can not be read
+	 */
+	private synchronized void revertLocked() throws IOException {
 		checkDeletedState();
+		checkReadOnly();
+		checkMigration();
+		if (isLazy()) {
+			// Nothing was written since the checkout.
+			return;
+		}
+		Ref head = mGitRepository.getRef(BRANCH_REF_PREFIX + mCheckoutName);
+		if (head == null) {
+			throw new RuntimeException("No such reference.");
+		}
+
+		boolean sameSchema;
+		RevWalk revWalk = mVdbRepository.acquireRevWalk();
 		try {
-			Runtime.getRuntime().exec(new String[] {"rm", "-r",
-					mDirectory.getAbsolutePath()}).waitFor();
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Interrupt not allowed.");
+			sameSchema = getSchemaId().equals(VdbRepositoryImpl.findEntry(
+					revWalk.getObjectReader(),
+					revWalk.parseCommit(head.getObjectId()), SCHEMA_FILE));
+		} finally {
+			mVdbRepository.releaseRevWalk(revWalk);
+		}
+
+		if (sameSchema) {
+			revertRows(head.getObjectId());
+		} else {
+			revertAll(head.getObjectId());
+		}
+	}
+
+	/**
+	 * Reverts the rows logged since the last commit in place. The
+	 * database stays open, so connections handed out stay valid.
+	 * @param headId the last commit
+	 * @throws IOException if the last commit can not be read
+	 */
+	private void revertRows(final ObjectId headId) throws IOException {
+		openDatabase();
+		File headDir = mVdbRepository.acquireCommit(headId.getName());
+		try {
+			lockExclusive();
+			try {
+				mDb.execSQL("ATTACH DATABASE " + ChangeLog.literal(
+						new File(headDir, SQLITEDB).getAbsolutePath())
+						+ " AS head");
+				int rows;
+				try {
+					mDb.beginTransaction();
+					try {
+						rows = ChangeLog.revert(mDb, "head");
+						if (mMergeInfo != null) {
+							MergeHelper.dropConflictTables(mDb);
+						}
+						mDb.setTransactionSuccessful();
+					} finally {
+						mDb.endTransaction();
+					}
+				} finally {
+					mDb.execSQL("DETACH DATABASE head");
+				}
+				if (mMergeInfo != null) {
+					mMergeInfo = null;
+					saveMergeInfo();
+					detachMergeDatabases();
+				}
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Reverted " + rows + " rows of "
+							+ mCheckoutName);
+				}
+			} finally {
+				mLock.writeLock().unlock();
+			}
+		} finally {
+			mVdbRepository.releaseCommit(headDir);
 		}
-		mVdbRepository.checkoutBranch(mCheckoutName);
-		mMergeInfo = null;
+	}
+
+	/**
+	 * Reverts the whole checkout by pointing it back at the last commit.
+	 * This is used when the schema changed since the last commit, which
+	 * means the change log does not cover all changes.
+	 * @param headId the last commit
+	 * @throws IOException if the checkout can not be reset
+	 */
+	private void revertAll(final ObjectId headId) throws IOException {
+		lockExclusive();
+		try {
+			closeDatabase();
+			if (mMergeInfo != null) {
+				mMergeInfo = null;
+				saveMergeInfo();
+			}
+			File dbFile = new File(mDirectory, SQLITEDB);
+			SchemaMigration.deleteDatabase(dbFile);
+			mVdbRepository.resetCheckout(mDirectory, headId);
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		invalidateSchema();
+		LOG.debug("Reset {} to {}", mCheckoutName, headId);
 	}
 
 	@Override
-	public final synchronized void startMerge(final String theirSha1)
+	public final void startMerge(final String theirSha1)
+			throws MergeInProgressException, DirtyCheckoutException,
+			IOException {
+		synchronized (mCommitLock) {
+			startMergeLocked(theirSha1);
+		}
+	}
+
+	/**
+	 * Starts a merge once no commit is being stored.
+	 * @param theirSha1 the sha1 of the commit to merge with
+	 * @throws MergeInProgressException if a merge is already running
+	 * @throws DirtyCheckoutException if the checkout has changes
+	 * @throws IOException if reading or writing fails
+	 */
+	private synchronized void startMergeLocked(final String theirSha1)
 			throws MergeInProgressException, DirtyCheckoutException,
 			IOException {
 		checkDeletedState();
+		checkMigration();
 		if (mMergeInfo != null) {
 			throw new MergeInProgressException();
 		}
 
-		// TODO: throw DirtyCheckoutException
+		if (isDirty()) {
+			throw new DirtyCheckoutException();
+		}
+		copyOnWrite();
 
 		MergeInfo info;
 		try {
-			AnyObjectId theirCommit = mGitRepository.resolve(theirSha1);
-			AnyObjectId ourCommit = mGitRepository.getRef(BRANCH_REF_PREFIX
-					+ mCheckoutName).getObjectId();
-			String baseCommit = mVdbRepository.getMergeBase(theirCommit,
-					ourCommit).getId().getName();
-
-			info = new MergeInfo(baseCommit,
-					theirCommit.getName(), ourCommit.getName());
+			info = createMergeInfo(theirSha1);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -560,7 +1438,170 @@ public class VdbCheckoutImpl implements VdbCheckout {
 		// state in case part of the above operations fail.
 		mMergeInfo = info;
 		saveMergeInfo();
-		attachMergeDatabases();
+		if (mDb == null) {
+			openDatabase();
+		} else {
+			attachMergeDatabases(mDb);
+		}
+		autoMerge();
+	}
+
+	/**
+	 * Finds the commits taking part in a merge with the given commit.
+	 * @param theirSha1 the sha1 of their commit
+	 * @return the merge information
+	 * @throws IOException if reading the commits fails
+	 */
+	private MergeInfo createMergeInfo(final String theirSha1)
+			throws IOException {
+		AnyObjectId theirCommit = mGitRepository.resolve(theirSha1);
+		AnyObjectId ourCommit = mGitRepository.getRef(BRANCH_REF_PREFIX
+				+ mCheckoutName).getObjectId();
+		String baseCommit = mVdbRepository.getMergeBase(theirCommit,
+				ourCommit).getId().getName();
+
+		return new MergeInfo(baseCommit,
+				theirCommit.getName(), ourCommit.getName());
+	}
+
+	@Override
+	public final MergePreview previewMerge(final String theirSha1)
+			throws IOException {
+		checkDeletedState();
+		MergeInfo info = createMergeInfo(theirSha1);
+		CommitSummary base = mVdbRepository.readSummary(info.getBase());
+		CommitSummary ours = mVdbRepository.readSummary(info.getOurs());
+		CommitSummary theirs = mVdbRepository.readSummary(info.getTheirs());
+		if (base == null || ours == null || theirs == null) {
+			return null;
+		}
+		return CommitSummary.preview(base, ours, theirs);
+	}
+
+	/**
+	 * Builds the resolver for conflicts left by a merge from the policies
+	 * in the schema and those set for the repository.
+	 * @return the resolver or null if no policies are set
+	 * @throws IOException if reading the schema or commits fails
+	 */
+	private ConflictResolver createConflictResolver() throws IOException {
+		ConflictConfig config = ConflictResolver.fromSchema(getSchema());
+		config.addAll(mVdbRepository.getConflictConfig());
+		if (config.isEmpty()) {
+			return null;
+		}
+		RevWalk revWalk = mVdbRepository.acquireRevWalk();
+		try {
+			return new ConflictResolver(config,
+					getCommitTime(revWalk, mMergeInfo.getOurs()),
+					getCommitTime(revWalk, mMergeInfo.getTheirs()));
+		} finally {
+			mVdbRepository.releaseRevWalk(revWalk);
+		}
+	}
+
+	/**
+	 * @param revWalk the walk to parse the commit with
+	 * @param sha1 the sha1 of the commit
+	 * @return the time of the commit in milliseconds
+	 * @throws IOException if reading the commit fails
+	 */
+	private static long getCommitTime(final RevWalk revWalk,
+			final String sha1) throws IOException {
+		return revWalk.parseCommit(ObjectId.fromString(sha1)).getCommitTime()
+				* 1000L;
+	}
+
+	/**
+	 * Merges their changes into the checkout in one transaction. The
+	 * conflicts left are resolved with the configured policies. The
+	 * merge is resolved if there are no conflicts. A merge which can not
+	 * be done automatically is left to be resolved by hand.
+	 */
+	private void autoMerge() {
+		long start = System.currentTimeMillis();
+		int conflicts;
+		MergeHelper helper = new MergeHelper();
+		try {
+			helper.setSummary(MergeHelper.Database.BASE,
+					mVdbRepository.readSummary(mMergeInfo.getBase()));
+			helper.setSummary(MergeHelper.Database.OURS,
+					mVdbRepository.readSummary(mMergeInfo.getOurs()));
+			helper.setSummary(MergeHelper.Database.THEIRS,
+					mVdbRepository.readSummary(mMergeInfo.getTheirs()));
+		} catch (IOException e) {
+			LOG.warn("Unable to read summaries, diffing all rows: {}",
+					e.getMessage());
+			helper = new MergeHelper();
+		}
+		ConflictResolver resolver;
+		try {
+			resolver = createConflictResolver();
+		} catch (IOException e) {
+			LOG.warn("Unable to read conflict policies: {}", e.getMessage());
+			resolver = null;
+		}
+		// The checkouts were pinned in this order when attaching them.
+		MergeHelper.Database[] attached = {MergeHelper.Database.BASE,
+				MergeHelper.Database.OURS, MergeHelper.Database.THEIRS};
+		for (int i = 0; i < mMergeCheckouts.size(); i++) {
+			helper.setDatabaseFile(attached[i],
+					new File(mMergeCheckouts.get(i), SQLITEDB));
+		}
+		lockExclusive();
+		try {
+			mDb.beginTransaction();
+			try {
+				conflicts = helper.merge(mDb);
+				if (conflicts > 0 && resolver != null) {
+					conflicts = resolver.resolve(mDb);
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to merge automatically: {}", e.getMessage());
+			return;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		mMergeInfo.setConflicts(conflicts);
+		if (conflicts == 0) {
+			mMergeInfo.setResolved();
+		}
+		saveMergeInfo();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Merged " + mMergeInfo.getTheirs() + " into "
+					+ mCheckoutName + " in "
+					+ (System.currentTimeMillis() - start) + " ms with "
+					+ conflicts + " conflicts");
+		}
+	}
+
+	/**
+	 * @return true if this checkout was deleted or evicted
+	 */
+	/* package */ final boolean isDeleted() {
+		return mDeleted;
+	}
+
+	/**
+	 * Evicts this checkout from the cache of commit checkouts if it
+	 * is not in use. An evicted checkout behaves as a deleted one.
+	 * @return true if the checkout was evicted
+	 */
+	/* package */ final synchronized boolean evict() {
+		if (!mLock.writeLock().tryLock()) {
+			return false;
+		}
+		try {
+			mDeleted = true;
+			close();
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		return true;
 	}
 
 	/**
@@ -606,6 +1647,9 @@ public class VdbCheckoutImpl implements VdbCheckout {
 
 		try {
 			mDeleted = true;
+			if (mAutoCommit != null) {
+				mAutoCommit.cancel();
+			}
 			doDelete(mDirectory);
 		} catch (IOException e) {
 			throw new RuntimeException("Could not delete checkout.", e);
@@ -617,97 +1661,360 @@ public class VdbCheckoutImpl implements VdbCheckout {
 
 	@Override
 	public final String getSchema() throws IOException {
-		LOG.debug("Getting schema from file: {} {}", mDirectory, SCHEMA_FILE);
+		synchronized (mSchemaLock) {
+			loadSchema();
+			return mSchemaText;
+		}
+	}
+
+	@Override
+	public final long getSchemaFingerprint() throws IOException {
+		synchronized (mSchemaLock) {
+			loadSchema();
+			return mSchemaFingerprint;
+		}
+	}
+
+	/**
+	 * @return the contents of the schema file
+	 * @throws IOException if reading the schema fails
+	 */
+	private byte[] getSchemaBytes() throws IOException {
+		synchronized (mSchemaLock) {
+			loadSchema();
+			return mSchemaBytes;
+		}
+	}
+
+	/**
+	 * @return the blob id of the schema file
+	 * @throws IOException if reading the schema fails
+	 */
+	private ObjectId getSchemaId() throws IOException {
+		synchronized (mSchemaLock) {
+			loadSchema();
+			return mSchemaId;
+		}
+	}
+
+	/**
+	 * Reads the schema file unless it has been read since it last
+	 * changed. Must be called holding the schema lock.
+	 * @throws IOException if reading the schema fails
+	 */
+	private void loadSchema() throws IOException {
+		if (mSchemaBytes != null) {
+			return;
+		}
 		File schema = new File(mDirectory, SCHEMA_FILE);
+		LOG.debug("Getting schema from file: {}", schema);
 		if (!schema.canRead()) {
 			throw new RuntimeException("Unable to read schema file");
 		}
-		FileInputStream in = null;
-		StringBuffer schemaBuffer = new StringBuffer();
+		setSchema(readFile(schema));
+	}
+
+	/**
+	 * Sets the cached schema to the given contents of the schema file.
+	 * Must be called holding the schema lock.
+	 * @param schema the contents of the schema file
+	 * @throws IOException if the schema can not be decoded
+	 */
+	private void setSchema(final byte[] schema) throws IOException {
+		String text = new String(schema, "utf8");
+		long fingerprint = 0;
+		if (text.length() > 0) {
+			fingerprint = SchemaCache.get(text).getFingerprint();
+		}
+		mSchemaText = text;
+		mSchemaFingerprint = fingerprint;
+		mSchemaId = new ObjectInserter.Formatter().idFor(
+				Constants.OBJ_BLOB, schema);
+		mSchemaBytes = schema;
+	}
+
+	/**
+	 * Drops the cached schema so it is read again on next use.
+	 */
+	private void invalidateSchema() {
+		synchronized (mSchemaLock) {
+			mSchemaBytes = null;
+			mSchemaText = null;
+			mSchemaId = null;
+		}
+	}
+
+	@Override
+	public final void updateDatabase(final Schema newSchema)
+			throws IOException {
 		try {
-			in = new FileInputStream(schema);
-			int chr;
-			while ((chr = in.read()) != -1) {
-				schemaBuffer.append((char) chr);
-			}
-		} finally {
-			if (in != null) {
-				in.close();
+			updateDatabaseAsync(newSchema, null).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupt not allowed.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
 			}
+			throw new RuntimeException(e.getCause());
 		}
-		LOG.debug("Read schema: {}", schemaBuffer);
-		return schemaBuffer.toString();
 	}
 
-	private SQLiteDatabase getUpdateDatabase() throws IOException {
-		if (mUpdateDb == null) {
-			mUpdateDb = SQLiteDatabase.openDatabase(
-					new File(mDirectory, "up_" + SQLITEDB).getAbsolutePath(),
-					null /* cursor factory */,
-					SQLiteDatabase.OPEN_READWRITE);
+	@Override
+	public final synchronized Future<MigrationReport> updateDatabaseAsync(
+			final Schema newSchema, final ProgressMonitor monitor)
+					throws IOException {
+		checkDeletedState();
+		checkReadOnly();
+		checkMigration();
+		if (mMergeInfo != null) {
+			throw new IllegalStateException(
+					"Can not migrate while a merge is in progress.");
+		}
+		copyOnWrite();
+
+		FutureTask<MigrationReport> altered = alterDatabase(newSchema);
+		if (altered != null) {
+			return altered;
+		}
+
+		ProgressMonitor progress = monitor;
+		if (progress == null) {
+			progress = NullProgressMonitor.INSTANCE;
 		}
-		return mUpdateDb;
+		mMigration = new FutureTask<MigrationReport>(new SchemaMigration(
+				this, mDirectory, newSchema, progress,
+				mVdbRepository.getMigrationBatchSize()));
+		Thread thread = new Thread(mMigration, "Migration-"
+				+ mVdbRepository.getName() + "-" + mCheckoutName);
+		thread.setDaemon(true);
+		thread.start();
+		return mMigration;
 	}
 
-	private void finishUpdate(SQLiteDatabase db, String newSchema)
+	/**
+	 * Updates the database in place if the new schema only adds fields,
+	 * enumeration symbols or tables to the current one. This only takes as
+	 * long as adding the columns and creating the tables, regardless of
+	 * the number of rows.
+	 * @param newSchema the schema to update to
+	 * @return the finished migration or null if the database has to be
+	 * copied
+	 * @throws IOException if the schema file can not be written
+	 */
+	private FutureTask<MigrationReport> alterDatabase(final Schema newSchema)
 			throws IOException {
-		File upDbFile = new File(mUpdateDb.getPath());
-		File currentDbFile =
-				new File(mDirectory, SQLITEDB);
+		String current = getSchema();
+		if (current.length() == 0) {
+			return null;
+		}
+		SchemaCache.Entry oldEntry = SchemaCache.get(current);
+		SchemaCache.Entry newEntry = SchemaCache.get(newSchema);
+		SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
+		if (!validator.validateProjection(newEntry.getSchema(),
+				oldEntry.getSchema()) || !validator.isAdditive()) {
+			return null;
+		}
 
-		if (!currentDbFile.delete()) {
-			throw new RuntimeException("Unable to delete current.");
+		long start = System.currentTimeMillis();
+		byte[] schemaBytes = newSchema.toString().getBytes("utf8");
+		File schemaCopy = new File(mDirectory, SCHEMA_FILE + ".tmp");
+		writeFile(schemaCopy, schemaBytes);
+		int tables;
+		long locked;
+		openDatabase();
+		try {
+			long lockStart = System.currentTimeMillis();
+			lockExclusive();
+			try {
+				tables = alterTables(newEntry, oldEntry, schemaCopy);
+			} finally {
+				mLock.writeLock().unlock();
+				locked = System.currentTimeMillis() - lockStart;
+			}
+		} finally {
+			if (schemaCopy.exists() && !schemaCopy.delete()) {
+				LOG.warn("Error deleting: {}", schemaCopy);
+			}
+		}
+		if (tables < 0) {
+			LOG.debug("Schema change needs a copy of the database.");
+			return null;
 		}
-		if (!upDbFile.renameTo(currentDbFile)) {
-			throw new RuntimeException("Unable to move file in place.");
+		synchronized (mSchemaLock) {
+			setSchema(schemaBytes);
 		}
 
-		File schemaFile = new File(mDirectory, SCHEMA_FILE);
-		if (!schemaFile.canWrite()) {
-			throw new RuntimeException("Unable to write schema file");
+		MigrationReport report = new MigrationReport(tables, 0, 0,
+				System.currentTimeMillis() - start, locked);
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Altered " + mDirectory + ": " + report);
 		}
+		FutureTask<MigrationReport> done = new FutureTask<MigrationReport>(
+				new Runnable() {
+					public void run() {
+						// Already done.
+					}
+				}, report);
+		done.run();
+		return done;
+	}
 
-		FileOutputStream fos = new FileOutputStream(schemaFile);
-		fos.write(newSchema.getBytes("utf8"));
-		fos.close();
-		db.close();
+	/**
+	 * Alters the tables in one transaction and switches the schema file
+	 * once that transaction is committed, so the schema file never
+	 * describes tables which were not changed. If the schema file can
+	 * not be switched the tables are left altered, which is harmless
+	 * since altering them again skips the columns they already have.
+	 * Must be called with the checkout locked.
+	 * @param newEntry the new schema
+	 * @param oldEntry the current schema
+	 * @param schemaCopy the file holding the new schema
+	 * @return the number of tables changed or -1 if the database has to
+	 * be copied instead
+	 * @throws IOException if the schema file can not be switched
+	 */
+	private int alterTables(final SchemaCache.Entry newEntry,
+			final SchemaCache.Entry oldEntry, final File schemaCopy)
+					throws IOException {
+		int tables;
+		mDb.beginTransaction();
+		try {
+			tables = newEntry.getInitializer().updateInPlace(mDb,
+					oldEntry.getMetadata());
+			if (tables >= 0) {
+				ChangeLog.install(mDb);
+				mDb.setTransactionSuccessful();
+			}
+		} finally {
+			mDb.endTransaction();
+		}
+		if (tables >= 0
+				&& !schemaCopy.renameTo(new File(mDirectory, SCHEMA_FILE))) {
+			throw new IOException("Unable to write schema file");
+		}
+		return tables;
 	}
 
-	@Override
-	public void updateDatabase(Schema newSchema) throws IOException {
-		// Get the database
-		SQLiteDatabase updateDb = getUpdateDatabase();
+	/**
+	 * Throws if a migration of this checkout is running.
+	 */
+	private synchronized void checkMigration() {
+		if (mMigration != null && !mMigration.isDone()) {
+			throw new IllegalStateException("A migration is running.");
+		}
+	}
 
-		// Build the initializer for the update db.
-		Metadata updateMetadata =
-				AvroContentProvider.makeMetadata(newSchema);
-		DatabaseInitializer initializer =
-				new DatabaseInitializer(newSchema.getNamespace(),
-						updateMetadata, newSchema.toString());
+	/**
+	 * Called by a migration before it starts copying. From here on the
+	 * change log keeps the entries the migration needs to catch up.
+	 * @return the mark of the last change before the migration
+	 */
+	/* package */ final synchronized long beginMigration() {
+		openDatabase();
+		return ChangeLog.beginMigration(mDb);
+	}
 
-		// Fill in the schema for the updated database.
-		initializer.onCreate(updateDb);
+	/**
+	 * Called by a migration which failed or was cancelled.
+	 */
+	/* package */ final void abortMigration() {
+		SQLiteDatabase db = getDatabase(true);
+		try {
+			ChangeLog.endMigration(db);
+		} finally {
+			releaseDatabase();
+		}
+	}
 
-		// Now attach the old database
-		updateDb.execSQL("ATTACH DATABASE '"
-				+ new File(mDirectory, SQLITEDB).getAbsolutePath()
-				+ "' AS old");
+	/**
+	 * Replaces the database with the migrated one. The checkout is locked
+	 * while the migration catches up for the last time and the files are
+	 * switched.
+	 * @param migration the migration which built the database
+	 * @param updateFile the migrated database
+	 * @param schema the schema of the migrated database
+	 * @throws IOException if the files can not be switched
+	 */
+	/* package */ final void switchDatabase(
+			final SchemaMigration migration, final File updateFile,
+			final Schema schema) throws IOException {
+		synchronized (mCommitLock) {
+			switchDatabaseLocked(migration, updateFile, schema);
+		}
+	}
 
-		// Now copy all the data over.
-		Metadata masterMetadata =
-				AvroContentProvider.makeMetadata(Schema.parse(getSchema()));
-		initializer.updateCopy(updateDb, masterMetadata);
+	/**
+	 * Replaces the database once no commit is being stored.
+	 * @param migration the migration which built the database
+	 * @param updateFile the migrated database
+	 * @param schema the schema of the migrated database
+	 * @throws IOException if the files can not be switched
+	 */
+	private synchronized void switchDatabaseLocked(
+			final SchemaMigration migration, final File updateFile,
+			final Schema schema) throws IOException {
+		byte[] schemaBytes = schema.toString().getBytes("utf8");
+		File schemaFile = new File(mDirectory, SCHEMA_FILE);
+		File schemaCopy = new File(mDirectory, SCHEMA_FILE + ".tmp");
+		writeFile(schemaCopy, schemaBytes);
 
-		// Now finish
-		finishUpdate(updateDb, newSchema.toString());
+		try {
+			switchFiles(migration, updateFile, schemaCopy, schemaFile);
+		} finally {
+			if (schemaCopy.exists() && !schemaCopy.delete()) {
+				LOG.warn("Error deleting: {}", schemaCopy);
+			}
+		}
+		synchronized (mSchemaLock) {
+			setSchema(schemaBytes);
+		}
+	}
 
-		updateDb.close();
+	/**
+	 * Switches the database and schema files with the checkout locked.
+	 * @param migration the migration which built the database
+	 * @param updateFile the migrated database
+	 * @param schemaCopy the file holding the new schema
+	 * @param schemaFile the schema file of the checkout
+	 * @throws IOException if the files can not be switched
+	 */
+	private void switchFiles(final SchemaMigration migration,
+			final File updateFile, final File schemaCopy,
+			final File schemaFile) throws IOException {
+		lockExclusive();
+		try {
+			migration.finish();
+			closeDatabase();
+			File dbFile = new File(mDirectory, SQLITEDB);
+			// Switch the schema first, so the new database is never
+			// left with the old schema.
+			byte[] oldSchema = readFile(schemaFile);
+			if (!schemaCopy.renameTo(schemaFile)) {
+				throw new IOException("Unable to write schema file");
+			}
+			// Journals left by the old database must not be applied
+			// to the new one.
+			SchemaMigration.deleteJournals(dbFile);
+			if (!updateFile.renameTo(dbFile)) {
+				writeFile(schemaFile, oldSchema);
+				throw new IOException("Unable to move file in place.");
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
 	}
 
 	/**
-	 * Close the underlying database.
+	 * Close the underlying database. Read only commit checkouts are
+	 * temporary and their files are removed as well.
 	 */
-	public void close() {
-		mDb.close();
+	public synchronized void close() {
+		if (mAutoCommit != null) {
+			mAutoCommit.cancel();
+		}
+		closeDatabase();
+		if (mReadOnly && !FSUtil.removeDirectory(mDirectory)) {
+			LOG.warn("Error deleting: {}", mDirectory);
+		}
 	}
 }
@@ -30,7 +30,13 @@
  */
 package interdroid.vdb.persistence.impl;
 
+import interdroid.util.FSUtil;
+import interdroid.vdb.content.avro.SchemaCache;
 import interdroid.vdb.content.avro.SchemaEvolutionValidator;
+import interdroid.vdb.persistence.api.AutoCommitPolicy;
+import interdroid.vdb.persistence.api.ConflictConfig;
+import interdroid.vdb.persistence.api.CommitInfo;
+import interdroid.vdb.persistence.api.MaintenanceReport;
 import interdroid.vdb.persistence.api.RemoteInfo;
 import interdroid.vdb.persistence.api.VdbCheckout;
 import interdroid.vdb.persistence.api.VdbInitializer;
@@ -38,20 +44,30 @@ import interdroid.vdb.persistence.api.VdbRepository;
 import interdroid.vdb.transport.SmartSocketsTransport;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.avro.Schema;
-import org.eclipse.jgit.dircache.DirCacheCheckout;
-import org.eclipse.jgit.errors.CheckoutConflictException;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
@@ -61,16 +77,18 @@ import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.database.sqlite.SQLiteDatabase;
+
 /**
  * The implementation of a repository in the system.
  *
@@ -106,6 +124,44 @@ public class VdbRepositoryImpl implements VdbRepository {
 	private final Map<String, VdbCheckoutImpl> mCheckouts
 	= new HashMap<String, VdbCheckoutImpl>();
 
+	/**
+	 * The pool of walks used for reading history.
+	 */
+	private final LinkedList<RevWalk> mWalkPool = new LinkedList<RevWalk>();
+
+	/**
+	 * The index of the commit graph used for history and merge bases.
+	 */
+	private final CommitGraph mCommitGraph;
+
+	/**
+	 * The background maintenance of the object database.
+	 */
+	private final RepositoryMaintenance mMaintenance =
+			new RepositoryMaintenance(this);
+
+	/**
+	 * The cache of read only commit checkouts.
+	 */
+	private final CheckoutCache mCheckoutCache = new CheckoutCache(this);
+	/**
+	 * The policy for automatic commits.
+	 */
+	private volatile AutoCommitPolicy mAutoCommitPolicy =
+			AutoCommitPolicy.DISABLED;
+	/**
+	 * The policies for resolving merge conflicts.
+	 */
+	private volatile ConflictConfig mConflictConfig = new ConflictConfig();
+	/**
+	 * The executor automatic commits run on. Created on first use.
+	 */
+	private ScheduledExecutorService mAutoCommitExecutor;
+	/**
+	 * The executor asynchronous commits run on. Created on first use.
+	 */
+	private ExecutorService mCommitExecutor;
+
 	/**
 	 * The prefix for a branch reference.
 	 */
@@ -125,6 +181,120 @@ public class VdbRepositoryImpl implements VdbRepository {
 	 */
 	private static final String PREF_IS_PUBLIC = "ispublic";
 
+	/**
+	 * The snapshot interval preference for this repository.
+	 */
+	private static final String PREF_SNAPSHOT_INTERVAL = "snapshotinterval";
+
+	/**
+	 * The maximum number of walks kept in the pool.
+	 */
+	private static final int WALK_POOL_SIZE = 4;
+
+	/**
+	 * The key for the number of commits between maintenance checks.
+	 */
+	private static final String PREF_MAINTENANCE_COMMITS =
+			"maintenancecommits";
+
+	/**
+	 * The default number of commits between maintenance checks.
+	 */
+	private static final int DEFAULT_MAINTENANCE_COMMITS = 32;
+
+	/**
+	 * The key for the number of loose objects which triggers maintenance.
+	 */
+	private static final String PREF_MAINTENANCE_LOOSE = "maintenanceloose";
+
+	/**
+	 * The default number of loose objects which triggers maintenance.
+	 */
+	private static final int DEFAULT_MAINTENANCE_LOOSE = 256;
+
+	/**
+	 * The key for the number of pack files which triggers maintenance.
+	 */
+	private static final String PREF_MAINTENANCE_PACKS = "maintenancepacks";
+
+	/**
+	 * The default number of pack files which triggers maintenance.
+	 */
+	private static final int DEFAULT_MAINTENANCE_PACKS = 8;
+
+	/**
+	 * The key for the age in seconds unused objects and temporary
+	 * checkouts must reach before maintenance removes them.
+	 */
+	private static final String PREF_MAINTENANCE_EXPIRE = "maintenanceexpire";
+
+	/**
+	 * The default age in seconds before unused files are removed.
+	 */
+	private static final long DEFAULT_MAINTENANCE_EXPIRE = 60 * 60;
+
+	/**
+	 * The key for the number of reader connections per checkout.
+	 */
+	private static final String PREF_READER_CONNECTIONS = "readerconnections";
+
+	/**
+	 * The key for the number of rows copied per batch by a migration.
+	 */
+	private static final String PREF_MIGRATION_BATCH = "migrationbatch";
+
+	/**
+	 * The default number of rows copied per batch by a migration.
+	 */
+	private static final int DEFAULT_MIGRATION_BATCH = 1000;
+
+	/**
+	 * The upper bound of the default number of reader connections.
+	 */
+	private static final int MAX_DEFAULT_READER_CONNECTIONS = 4;
+
+	/**
+	 * The directory holding temporary commit checkouts.
+	 */
+	private static final String SCRATCH_DIR = ".scratch";
+
+	/**
+	 * The checkout cache size preference for this repository.
+	 */
+	private static final String PREF_CHECKOUT_CACHE_SIZE =
+			"checkoutcachesize";
+
+	/**
+	 * The default size of the checkout cache in bytes.
+	 */
+	private static final long DEFAULT_CHECKOUT_CACHE_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * The checkout cache handle limit preference for this repository.
+	 */
+	private static final String PREF_CHECKOUT_CACHE_HANDLES =
+			"checkoutcachehandles";
+
+	/**
+	 * The default number of open commit checkouts.
+	 */
+	private static final int DEFAULT_CHECKOUT_CACHE_HANDLES = 4;
+
+	/**
+	 * The default number of commits between full database snapshots.
+	 */
+	private static final int DEFAULT_SNAPSHOT_INTERVAL = 16;
+
+	/**
+	 * The chunk size preference for this repository.
+	 */
+	private static final String PREF_CHUNK_SIZE = "chunksize";
+
+	/**
+	 * The default size of database chunks in bytes.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
 	/**
 	 * Construct a new repository and initialize it.
 	 * @param name the name of the repo
@@ -138,6 +308,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 		mRepoDir = repoDir;
 		mName = name;
 		mInitializer = initializer;
+		mCommitGraph = new CommitGraph(new File(repoDir, ".git"));
 
 		initializeRepository();
 	}
@@ -152,36 +323,52 @@ public class VdbRepositoryImpl implements VdbRepository {
 	/**
 	 * @return the underlying git repository for this repository.
 	 */
-	public final Repository getGitRepository() {
+	public final synchronized Repository getGitRepository() {
 		if (mGitRepo == null) {
-			mGitRepo = getGitRepository(null);
+			RepositoryBuilder builder = new RepositoryBuilder();
+			builder.setGitDir(new File(mRepoDir, ".git"));
+			builder.setBare();
+			try {
+				mGitRepo = builder.build();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 		return mGitRepo;
 	}
 
 	/**
-	 * This gives an underlying git repository where the working directory
-	 * has been set to the given directory.
-	 *
-	 * @param workingDir the working directory for the repository
-	 * @return the underlying git repository with the given dir as work tree
+	 * Takes a {@link RevWalk} from the pool of this repository. The walk
+	 * keeps its object reader between uses but no parsed objects.
+	 * It must be given back with {@link #releaseRevWalk(RevWalk)}.
+	 * @return a walk ready for use
 	 */
-	public final Repository getGitRepository(final String workingDir) {
-		RepositoryBuilder builder = new RepositoryBuilder();
-		builder.setWorkTree(mRepoDir);
-		builder.setGitDir(new File(mRepoDir, ".git"));
-		if (workingDir == null) {
-			builder.setBare();
-		} else {
-			builder.setWorkTree(new File(mRepoDir, workingDir));
+	/* package */ final RevWalk acquireRevWalk() {
+		synchronized (mWalkPool) {
+			if (!mWalkPool.isEmpty()) {
+				return mWalkPool.removeFirst();
+			}
 		}
-		Repository repo;
-		try {
-			repo = builder.build();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		return new RevWalk(getGitRepository());
+	}
+
+	/**
+	 * Gives a walk taken with {@link #acquireRevWalk()} back to the pool.
+	 * The objects parsed by the walk are dropped so pooled walks do not
+	 * hold on to the commits and trees of earlier users.
+	 * @param walk the walk to give back
+	 */
+	/* package */ final void releaseRevWalk(final RevWalk walk) {
+		walk.dispose();
+		walk.setRevFilter(RevFilter.ALL);
+		walk.setTreeFilter(TreeFilter.ALL);
+		synchronized (mWalkPool) {
+			if (mWalkPool.size() < WALK_POOL_SIZE) {
+				mWalkPool.addFirst(walk);
+				return;
+			}
 		}
-		return repo;
+		walk.release();
 	}
 
 	/**
@@ -193,6 +380,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 		repo = getGitRepository();
 
 		File gitDir = new File(mRepoDir, ".git");
+		cleanScratch();
 		if (!gitDir.exists()) {
 			try {
 				repo.create();
@@ -206,6 +394,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 				throw new RuntimeException(e);
 			}
 		}
+		mMaintenance.schedule(false);
 	}
 
 	/**
@@ -218,8 +407,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 	public final File checkoutReference(final String subdir,
 			final String reference) throws IOException {
 		LOG.debug("getting checkout: {} {}", subdir, reference);
-		Repository repo = getGitRepository(subdir);
-		ObjectId headId = repo.resolve(reference);
+		ObjectId headId = getGitRepository().resolve(reference);
 		LOG.debug("Head id is: {}", headId);
 
 		File checkoutDir = null;
@@ -228,7 +416,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 			checkoutDir = new File(mRepoDir, subdir);
 
 			if (!checkoutDir.isDirectory()) {
-				if (!checkoutDir.mkdir() || !checkoutDir.isDirectory()) {
+				if (!checkoutDir.mkdirs() || !checkoutDir.isDirectory()) {
 					throw new IOException("Could not create checkout directory: "
 							+ subdir);
 				}
@@ -237,17 +425,14 @@ public class VdbRepositoryImpl implements VdbRepository {
 				return checkoutDir;
 			}
 
-			RevWalk revWalk = new RevWalk(repo);
-			RevCommit headCommit = revWalk.parseCommit(headId);
-			RevTree headTree = headCommit.getTree();
-			DirCacheCheckout dco = new DirCacheCheckout(repo, repo.lockDirCache(),
-					headTree);
-			dco.setFailOnConflict(true);
+			RevWalk revWalk = acquireRevWalk();
 			try {
-				dco.checkout();
-			} catch (CheckoutConflictException e) {
-				LOG.error("Conflict!", e);
+				materialize(revWalk, revWalk.parseCommit(headId), checkoutDir);
+			} catch (IOException e) {
+				FSUtil.removeDirectory(checkoutDir);
 				throw e;
+			} finally {
+				releaseRevWalk(revWalk);
 			}
 
 		} else {
@@ -257,14 +442,233 @@ public class VdbRepositoryImpl implements VdbRepository {
 	}
 
 	/**
-	 * Checkout the named branch.
+	 * Writes the state of a commit into a checkout directory. Commits
+	 * which carry a change set are rebuilt by replaying all change sets
+	 * since the nearest full snapshot on top of that snapshot.
+	 * @param revWalk the walk to parse commits and read objects with
+	 * @param commit the commit to materialize
+	 * @param checkoutDir the directory to write to
+	 * @throws IOException if reading or writing fails
+	 */
+	private void materialize(final RevWalk revWalk, final RevCommit commit,
+			final File checkoutDir) throws IOException {
+		ObjectReader reader = revWalk.getObjectReader();
+		copyBlob(reader, commit, VdbCheckoutImpl.SCHEMA_FILE,
+				new File(checkoutDir, VdbCheckoutImpl.SCHEMA_FILE));
+
+		// Collect change sets back to the nearest snapshot
+		List<ObjectId> changeSets = new ArrayList<ObjectId>();
+		RevCommit snapshot = commit;
+		ObjectId changeSet = findEntry(reader, snapshot,
+				VdbCheckoutImpl.CHANGESET);
+		while (changeSet != null) {
+			changeSets.add(changeSet);
+			if (snapshot.getParentCount() == 0) {
+				throw new IOException("Change set without snapshot in "
+						+ commit.getName());
+			}
+			snapshot = revWalk.parseCommit(snapshot.getParent(0));
+			changeSet = findEntry(reader, snapshot,
+					VdbCheckoutImpl.CHANGESET);
+		}
+
+		File dbFile = new File(checkoutDir, VdbCheckoutImpl.SQLITEDB);
+		TreeWalk dbEntry = TreeWalk.forPath(reader,
+				VdbCheckoutImpl.SQLITEDB, snapshot.getTree());
+		if (dbEntry == null) {
+			throw new IOException("Commit " + snapshot.getName()
+					+ " has no " + VdbCheckoutImpl.SQLITEDB);
+		}
+		ChunkedFile.write(reader, dbEntry.getObjectId(0),
+				dbEntry.getFileMode(0), dbFile);
+		WriteAheadLog.reset(dbFile);
+
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(
+				dbFile.getAbsolutePath(), null,
+				SQLiteDatabase.OPEN_READWRITE);
+		try {
+			db.beginTransaction();
+			try {
+				for (int i = changeSets.size() - 1; i >= 0; i--) {
+					InputStream in = reader.open(changeSets.get(i),
+							Constants.OBJ_BLOB).openStream();
+					try {
+						ChangeLog.apply(db, in);
+					} finally {
+						in.close();
+					}
+				}
+				// Changes replayed or inherited from the snapshot are
+				// already part of history.
+				CommitSummary.update(db, false);
+				ChangeLog.clear(db, Long.MAX_VALUE);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			db.close();
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Replayed " + changeSets.size()
+					+ " change sets onto snapshot " + snapshot.getName());
+		}
+	}
+
+	/**
+	 * Finds an entry in the tree of a commit. The tree walk is not
+	 * released since that would release the shared reader.
+	 * @param reader the reader to read objects with
+	 * @param commit the commit to look in
+	 * @param path the path of the entry
+	 * @return the id of the entry or null if there is no such entry
+	 * @throws IOException if reading fails
+	 */
+	/* package */ static ObjectId findEntry(final ObjectReader reader,
+			final RevCommit commit, final String path) throws IOException {
+		TreeWalk walk = TreeWalk.forPath(reader, path, commit.getTree());
+		if (walk == null) {
+			return null;
+		}
+		return walk.getObjectId(0);
+	}
+
+	/**
+	 * Copies a blob from the tree of a commit to a file.
+	 * @param reader the reader to read objects with
+	 * @param commit the commit holding the blob
+	 * @param path the path of the blob in the commit
+	 * @param target the file to write to
+	 * @throws IOException if reading or writing fails
+	 */
+	private static void copyBlob(final ObjectReader reader,
+			final RevCommit commit, final String path,
+			final File target) throws IOException {
+		ObjectId blobId = findEntry(reader, commit, path);
+		if (blobId == null) {
+			throw new IOException("Commit " + commit.getName()
+					+ " has no " + path);
+		}
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			reader.open(blobId, Constants.OBJ_BLOB).copyTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the number of commits between full database snapshots.
+	 * Commits in between store only the changed rows. This is read from
+	 * the vdb.snapshotinterval key in the repository configuration.
+	 * @return the snapshot interval
+	 */
+	public final int getSnapshotInterval() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_SNAPSHOT_INTERVAL,
+				DEFAULT_SNAPSHOT_INTERVAL);
+	}
+
+	/**
+	 * Returns the size of the chunks the database is split into when a
+	 * snapshot is stored. The size is rounded up to whole database pages.
+	 * A size of 0 stores the database as a single blob. This is read from
+	 * the vdb.chunksize key in the repository configuration.
+	 * @return the chunk size in bytes
+	 */
+	public final int getChunkSize() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Returns the number of connections used for reading a checkout
+	 * next to the connection used for writing. The default is one per
+	 * core up to a small maximum. This is read from the
+	 * vdb.readerconnections key in the repository configuration.
+	 * @return the number of reader connections or 0 to share the writer
+	 */
+	public final int getReaderConnections() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_READER_CONNECTIONS,
+				Math.min(MAX_DEFAULT_READER_CONNECTIONS,
+						Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Returns the number of rows a schema migration copies in one
+	 * transaction. This is read from the vdb.migrationbatch key in the
+	 * repository configuration.
+	 * @return the number of rows per batch
+	 */
+	public final int getMigrationBatchSize() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_MIGRATION_BATCH,
+				DEFAULT_MIGRATION_BATCH);
+	}
+
+	/**
+	 * Checkout the named branch. The checkout only holds the schema and
+	 * a marker for the commit it is based on, the database itself is
+	 * copied in by the checkout on the first write.
 	 * @param branchName the name of the desired branch.
 	 * @return the directory with the checkout
 	 * @throws IOException if reading or writing fails
 	 */
 	public final File checkoutBranch(final String branchName)
 			throws IOException {
-		return checkoutReference(branchName, BRANCH_REF_PREFIX + branchName);
+		File checkoutDir = new File(mRepoDir, branchName);
+		if (checkoutDir.isDirectory()) {
+			// Assume already checked out.
+			return checkoutDir;
+		}
+
+		ObjectId headId = getGitRepository().resolve(
+				BRANCH_REF_PREFIX + branchName);
+		if (headId == null) {
+			throw new RuntimeException("No such reference.");
+		}
+		if (!checkoutDir.mkdir() || !checkoutDir.isDirectory()) {
+			throw new IOException("Could not create checkout directory: "
+					+ branchName);
+		}
+
+		try {
+			resetCheckout(checkoutDir, headId);
+		} catch (IOException e) {
+			FSUtil.removeDirectory(checkoutDir);
+			throw e;
+		}
+		LOG.debug("Created lazy checkout of {} at {}", branchName, headId);
+		return checkoutDir;
+	}
+
+	/**
+	 * Points a checkout directory at a commit. The directory gets the
+	 * schema of the commit and a marker for it, but shares the database
+	 * of the commit until the first write.
+	 * See VdbCheckoutImpl.copyOnWrite().
+	 * @param checkoutDir the directory of the checkout, without database
+	 * @param headId the commit to point to
+	 * @throws IOException if reading or writing fails
+	 */
+	/* package */ final void resetCheckout(final File checkoutDir,
+			final ObjectId headId) throws IOException {
+		RevWalk revWalk = acquireRevWalk();
+		try {
+			copyBlob(revWalk.getObjectReader(),
+					revWalk.parseCommit(headId), VdbCheckoutImpl.SCHEMA_FILE,
+					new File(checkoutDir, VdbCheckoutImpl.SCHEMA_FILE));
+			FileOutputStream out = new FileOutputStream(
+					new File(checkoutDir, VdbCheckoutImpl.BASE_FILE));
+			try {
+				out.write(Constants.encodeASCII(headId.name()));
+			} finally {
+				out.close();
+			}
+		} finally {
+			releaseRevWalk(revWalk);
+		}
 	}
 
 	/**
@@ -274,13 +678,147 @@ public class VdbRepositoryImpl implements VdbRepository {
 	 * @throws IOException if reading or writing fails
 	 */
 	public final File checkoutCommit(final String sha1) throws IOException {
-		return checkoutReference(sha1, sha1);
+		return mCheckoutCache.getDirectory(sha1, false);
+	}
+
+	/**
+	 * Checkout a read only commit and pin it so it is not evicted from
+	 * the cache until it is released again.
+	 * @param sha1 the sha1 of the commit to check out.
+	 * @return the checkout directory
+	 * @throws IOException if reading or writing fails
+	 */
+	/* package */ final File acquireCommit(final String sha1)
+			throws IOException {
+		return mCheckoutCache.getDirectory(sha1, true);
+	}
+
+	/**
+	 * Releases a commit checkout pinned by {@link #acquireCommit(String)}.
+	 * @param checkoutDir the directory returned when acquiring
+	 */
+	/* package */ final void releaseCommit(final File checkoutDir) {
+		mCheckoutCache.unpin(checkoutDir);
+	}
+
+	/**
+	 * Returns the key identifying the content of a commit. Commits with
+	 * the same key have identical checkouts.
+	 * @param sha1 the commit
+	 * @return the key for the content
+	 * @throws IOException if the commit can not be read
+	 */
+	/* package */ final String getContentKey(final String sha1)
+			throws IOException {
+		ObjectId commitId = getGitRepository().resolve(sha1);
+		if (commitId == null) {
+			throw new RuntimeException("No such reference.");
+		}
+		RevWalk revWalk = acquireRevWalk();
+		try {
+			return revWalk.parseCommit(commitId).getTree().name();
+		} finally {
+			releaseRevWalk(revWalk);
+		}
+	}
+
+	/**
+	 * Reads the summary of the database stored in a commit.
+	 * @param sha1 the commit
+	 * @return the summary or null if the commit has none
+	 * @throws IOException if the commit can not be read
+	 */
+	/* package */ final CommitSummary readSummary(final String sha1)
+			throws IOException {
+		ObjectId commitId = getGitRepository().resolve(sha1);
+		if (commitId == null) {
+			throw new RuntimeException("No such reference.");
+		}
+		RevWalk revWalk = acquireRevWalk();
+		try {
+			ObjectReader reader = revWalk.getObjectReader();
+			ObjectId summaryId = findEntry(reader,
+					revWalk.parseCommit(commitId), VdbCheckoutImpl.SUMMARY);
+			if (summaryId == null) {
+				return null;
+			}
+			InputStream in = reader.open(summaryId,
+					Constants.OBJ_BLOB).openStream();
+			try {
+				return CommitSummary.read(in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			releaseRevWalk(revWalk);
+		}
+	}
+
+	/**
+	 * @param name the name of a directory in the scratch area
+	 * @return the path of that directory relative to the repository
+	 */
+	/* package */ final String getScratchName(final String name) {
+		return SCRATCH_DIR + File.separator + name;
+	}
+
+	/**
+	 * Returns the maximum number of bytes the cache of read only
+	 * commit checkouts may use. This is read from the
+	 * vdb.checkoutcachesize key in the repository configuration.
+	 * @return the size of the cache in bytes
+	 */
+	public final long getCheckoutCacheSize() {
+		return getGitRepository().getConfig().getLong(
+				VDB_PREFERENCES_SECTION, PREF_CHECKOUT_CACHE_SIZE,
+				DEFAULT_CHECKOUT_CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the maximum number of read only commit checkouts which
+	 * are kept open. This is read from the vdb.checkoutcachehandles key
+	 * in the repository configuration.
+	 * @return the maximum number of open checkouts
+	 */
+	public final int getCheckoutCacheHandles() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_CHECKOUT_CACHE_HANDLES,
+				DEFAULT_CHECKOUT_CACHE_HANDLES);
+	}
+
+	/**
+	 * @return the directory read only commit checkouts are written to.
+	 * It only holds temporary files and is wiped when the repository is
+	 * opened and closed.
+	 */
+	public final File getScratchDir() {
+		return new File(mRepoDir, SCRATCH_DIR);
+	}
+
+	/**
+	 * Removes all temporary commit checkouts, including those left
+	 * in the repository directory by older versions.
+	 */
+	private void cleanScratch() {
+		if (!FSUtil.removeDirectory(getScratchDir())) {
+			LOG.warn("Unable to remove: {}", getScratchDir());
+		}
+		File[] children = mRepoDir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory() && ObjectId.isId(child.getName())
+						&& !mCheckouts.containsKey(child.getName())) {
+					LOG.debug("Removing stale commit checkout: {}", child);
+					FSUtil.removeDirectory(child);
+				}
+			}
+		}
 	}
 
 	@Override
 	public final void createBranch(final String branchName,
 			final String baseRef) throws IOException {
-		ObjectId oId = getGitRepository(null).resolve(baseRef);
+		ObjectId oId = getGitRepository().resolve(baseRef);
 		createBranchFromId(branchName, oId);
 	}
 
@@ -354,8 +892,46 @@ public class VdbRepositoryImpl implements VdbRepository {
 		return rw;
 	}
 
+	@Override
+	public final List<CommitInfo> getHistory(final String reference,
+			final int offset, final int limit) throws IOException {
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("Invalid page: "
+					+ offset + " " + limit);
+		}
+		ObjectId tipId = getGitRepository().resolve(reference);
+		if (tipId == null) {
+			throw new IOException("Invalid reference: " + reference);
+		}
+		List<CommitGraph.Node> page = mCommitGraph.history(
+				mCommitGraph.get(getGitRepository(), tipId), offset, limit);
+
+		// Only the commits in the page are parsed for their message.
+		List<CommitInfo> history = new ArrayList<CommitInfo>(page.size());
+		RevWalk walk = acquireRevWalk();
+		try {
+			for (CommitGraph.Node node : page) {
+				RevCommit commit = walk.parseCommit(node);
+				String[] parents = new String[node.getParentCount()];
+				for (int i = 0; i < parents.length; i++) {
+					parents[i] = node.getParent(i).getName();
+				}
+				PersonIdent author = commit.getAuthorIdent();
+				history.add(new CommitInfo(node.getName(), parents,
+						node.getCommitTime(), node.getGeneration(),
+						author.getName(), author.getEmailAddress(),
+						commit.getShortMessage()));
+			}
+		} finally {
+			releaseRevWalk(walk);
+		}
+		return history;
+	}
+
 	/**
 	 * Returns the commit which is the base for a merge of 2 or more commits.
+	 * The base is found through the commit graph index so only commits
+	 * newer than the base are visited.
 	 * @param commitIds the ids of the commits being merged
 	 * @return the commit which is the common base
 	 * @throws IOException if reading or writing fails.
@@ -367,19 +943,39 @@ public class VdbRepositoryImpl implements VdbRepository {
 					"Need to specify at least 2 commits.");
 		}
 
-		RevWalk walk = new RevWalk(getGitRepository());
-		walk.setRevFilter(RevFilter.MERGE_BASE);
-		walk.setTreeFilter(TreeFilter.ALL);
+		CommitGraph.Node[] tips = new CommitGraph.Node[commitIds.length];
+		for (int i = 0; i < tips.length; i++) {
+			tips[i] = mCommitGraph.get(getGitRepository(), commitIds[i]);
+		}
+		CommitGraph.Node base = mCommitGraph.mergeBase(tips);
+		if (base == null) {
+			throw new IllegalStateException("Could not find merge base.");
+		}
 
-		for (AnyObjectId commitId : commitIds) {
-			walk.markStart(walk.parseCommit(commitId));
+		RevWalk walk = acquireRevWalk();
+		try {
+			return walk.parseCommit(base);
+		} finally {
+			releaseRevWalk(walk);
 		}
+	}
 
-		RevCommit baseCommit = walk.next();
-		if (baseCommit == null) {
-			throw new IllegalStateException("Could not find merge base.");
+	/**
+	 * Adds all commits reachable from any reference to the commit graph
+	 * index, for example after new commits have been fetched.
+	 */
+	private void updateCommitGraph() {
+		List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (Ref ref : getGitRepository().getAllRefs().values()) {
+			if (ref.getObjectId() != null) {
+				tips.add(ref.getObjectId());
+			}
+		}
+		try {
+			mCommitGraph.update(getGitRepository(), tips);
+		} catch (IOException e) {
+			LOG.warn("Unable to update commit graph.", e);
 		}
-		return baseCommit;
 	}
 
 	@Override
@@ -397,13 +993,14 @@ public class VdbRepositoryImpl implements VdbRepository {
 
 	@Override
 	public final VdbCheckout getCommit(final String sha1) throws IOException {
-		if (!mCheckouts.containsKey(sha1)) {
-			checkoutCommit(sha1);
+		return mCheckoutCache.getCheckout(sha1);
+	}
 
-			VdbCheckoutImpl checkout = new VdbCheckoutImpl(this, sha1, true);
-			mCheckouts.put(sha1, checkout);
+	@Override
+	public final void releaseCommit(final VdbCheckout checkout) {
+		if (checkout instanceof VdbCheckoutImpl) {
+			mCheckoutCache.unpin((VdbCheckoutImpl) checkout);
 		}
-		return mCheckouts.get(sha1);
 	}
 
 	@Override
@@ -529,6 +1126,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 				connection.close();
 			}
 		}
+		updateCommitGraph();
 	}
 
 	@Override
@@ -573,12 +1171,12 @@ public class VdbRepositoryImpl implements VdbRepository {
 	@Override
 	public void updateDatabase(String branchName, Schema newSchema) throws IOException {
 		VdbCheckout branch = getBranch(branchName);
-		String old = branch.getSchema();
 
-		// Do we need to run an update?
-		if (!old.equals(newSchema.toString())) {
+		// Do we need to run an update? Changes to documentation, defaults
+		// or properties keep the layout but still have to be stored.
+		Schema oldSchema = SchemaCache.get(branch.getSchema()).getSchema();
+		if (!oldSchema.toString().equals(newSchema.toString())) {
 			// Need to check projection.
-			Schema oldSchema = Schema.parse(old);
 			SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
 			if (validator.validateProjection(newSchema, oldSchema)) {
 				LOG.debug("Schema projection validated.");
@@ -592,12 +1190,188 @@ public class VdbRepositoryImpl implements VdbRepository {
 		}
 	}
 
+	@Override
+	public final void setAutoCommitPolicy(final AutoCommitPolicy policy) {
+		if (policy == null) {
+			mAutoCommitPolicy = AutoCommitPolicy.DISABLED;
+		} else {
+			mAutoCommitPolicy = policy;
+		}
+		LOG.debug("Auto commit policy for {}: {}", mName, mAutoCommitPolicy);
+	}
+
+	@Override
+	public final AutoCommitPolicy getAutoCommitPolicy() {
+		return mAutoCommitPolicy;
+	}
+
+	@Override
+	public final void setConflictConfig(final ConflictConfig config) {
+		if (config == null) {
+			mConflictConfig = new ConflictConfig();
+		} else {
+			mConflictConfig = config;
+		}
+		LOG.debug("Conflict policies for {}: {}", mName, mConflictConfig);
+	}
+
+	@Override
+	public final ConflictConfig getConflictConfig() {
+		return mConflictConfig;
+	}
+
+	/**
+	 * @return the executor automatic commits for this repository run on
+	 */
+	/* package */ final synchronized ScheduledExecutorService
+	getAutoCommitExecutor() {
+		if (mAutoCommitExecutor == null) {
+			mAutoCommitExecutor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread thread = new Thread(r, "AutoCommit-" + mName);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return mAutoCommitExecutor;
+	}
+
+	@Override
+	public final Future<MaintenanceReport> runMaintenance() {
+		return mMaintenance.schedule(true);
+	}
+
+	@Override
+	public final MaintenanceReport getLastMaintenanceReport() {
+		return mMaintenance.getLastReport();
+	}
+
+	/**
+	 * Called after a commit has been made on any branch so the commit
+	 * is added to the commit graph index and maintenance can be
+	 * scheduled once enough objects have been written.
+	 * @param commitId the id of the new commit
+	 */
+	/* package */ final void onCommit(final AnyObjectId commitId) {
+		try {
+			mCommitGraph.get(getGitRepository(), commitId);
+		} catch (IOException e) {
+			LOG.warn("Unable to add commit to commit graph.", e);
+		}
+		mMaintenance.onCommit();
+	}
+
+	/**
+	 * Removes temporary commit checkouts which are no longer in use.
+	 * @param minAgeMillis the minimum age of a checkout to remove
+	 * @return the number of bytes freed
+	 */
+	/* package */ final long removeStaleCheckouts(final long minAgeMillis) {
+		return mCheckoutCache.removeStale(minAgeMillis);
+	}
+
+	/**
+	 * Returns the number of commits after which the repository is
+	 * checked for maintenance. This is read from the
+	 * vdb.maintenancecommits key in the repository configuration.
+	 * @return the number of commits or 0 if checks are not scheduled
+	 */
+	public final int getMaintenanceCommitInterval() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_MAINTENANCE_COMMITS,
+				DEFAULT_MAINTENANCE_COMMITS);
+	}
+
+	/**
+	 * Returns the number of loose objects which triggers maintenance.
+	 * This is read from the vdb.maintenanceloose key in the repository
+	 * configuration.
+	 * @return the number of loose objects
+	 */
+	public final int getMaintenanceLooseObjects() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_MAINTENANCE_LOOSE,
+				DEFAULT_MAINTENANCE_LOOSE);
+	}
+
+	/**
+	 * Returns the number of pack files which triggers maintenance.
+	 * This is read from the vdb.maintenancepacks key in the repository
+	 * configuration.
+	 * @return the number of pack files
+	 */
+	public final int getMaintenancePackFiles() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_MAINTENANCE_PACKS,
+				DEFAULT_MAINTENANCE_PACKS);
+	}
+
+	/**
+	 * Returns the age unreachable objects and unused temporary checkouts
+	 * must reach before they are removed. This is read in seconds from
+	 * the vdb.maintenanceexpire key in the repository configuration.
+	 * @return the age in milliseconds
+	 */
+	public final long getMaintenancePruneExpire() {
+		return getGitRepository().getConfig().getLong(
+				VDB_PREFERENCES_SECTION, PREF_MAINTENANCE_EXPIRE,
+				DEFAULT_MAINTENANCE_EXPIRE) * 1000;
+	}
+
+	/**
+	 * @return the executor asynchronous commits for this repository
+	 * run on
+	 */
+	/* package */ final synchronized ExecutorService getCommitExecutor() {
+		if (mCommitExecutor == null) {
+			mCommitExecutor = Executors.newSingleThreadExecutor(
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread thread = new Thread(r, "Commit-" + mName);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return mCommitExecutor;
+	}
+
 	/**
 	 * Close any open checkouts.
 	 */
 	public void close() {
+		mMaintenance.shutdown();
+		synchronized (this) {
+			if (mAutoCommitExecutor != null) {
+				mAutoCommitExecutor.shutdown();
+				mAutoCommitExecutor = null;
+			}
+			if (mCommitExecutor != null) {
+				mCommitExecutor.shutdown();
+				mCommitExecutor = null;
+			}
+		}
 		for (Entry<String, VdbCheckoutImpl> checkout : mCheckouts.entrySet()) {
 			checkout.getValue().close();
 		}
+		mCheckouts.clear();
+		mCheckoutCache.clear();
+		cleanScratch();
+		synchronized (mWalkPool) {
+			for (RevWalk walk : mWalkPool) {
+				walk.release();
+			}
+			mWalkPool.clear();
+		}
+		synchronized (this) {
+			if (mGitRepo != null) {
+				mGitRepo.close();
+				mGitRepo = null;
+			}
+		}
 	}
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Switches checkout databases to write ahead logging so readers on
+ * other connections are not blocked by the writer.
+ *
+ * The journal mode is stored in the database file, while the log lives
+ * next to it. Before a database file is copied into a commit the log is
+ * folded back into the file, and files written out of a commit are
+ * switched back to a rollback journal so they can be opened by SQLite
+ * versions without write ahead logging.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class WriteAheadLog {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(WriteAheadLog.class);
+
+	/**
+	 * The offset of the read and write version bytes in the header.
+	 */
+	private static final int VERSION_OFFSET = 18;
+
+	/**
+	 * The file format version of a database in rollback journal mode.
+	 */
+	private static final int VERSION_ROLLBACK = 1;
+
+	/**
+	 * The file format version of a database in write ahead log mode.
+	 */
+	private static final int VERSION_WAL = 2;
+
+	/**
+	 * The number of attempts made to checkpoint the whole log.
+	 */
+	private static final int CHECKPOINT_ATTEMPTS = 10;
+
+	/**
+	 * The delay in milliseconds between checkpoint attempts.
+	 */
+	private static final long CHECKPOINT_DELAY = 50;
+
+	/**
+	 * No construction.
+	 */
+	private WriteAheadLog() {
+	}
+
+	/**
+	 * Tries to switch the database to write ahead logging. SQLite
+	 * before 3.7 ignores the request and keeps its rollback journal.
+	 * @param db the database
+	 * @return true if the database now uses write ahead logging
+	 */
+	static boolean enable(final SQLiteDatabase db) {
+		Cursor c = db.rawQuery("PRAGMA journal_mode=WAL", null);
+		try {
+			boolean enabled = c.moveToFirst()
+					&& "wal".equalsIgnoreCase(c.getString(0));
+			LOG.debug("Write ahead log for {}: {}", db.getPath(), enabled);
+			return enabled;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Copies all frames in the log into the database file. The caller
+	 * must make sure nobody writes to the database. Readers may briefly
+	 * hold back the checkpoint, in which case it is retried.
+	 * @param db the database
+	 * @throws IOException if the log could not be checkpointed
+	 */
+	static void checkpoint(final SQLiteDatabase db) throws IOException {
+		for (int i = 0; i < CHECKPOINT_ATTEMPTS; i++) {
+			Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+			try {
+				// Older versions return no status, assume it completed.
+				if (!c.moveToFirst() || c.getColumnCount() < 3) {
+					return;
+				}
+				long log = c.getLong(1);
+				if (c.getInt(0) == 0 && log == c.getLong(2)) {
+					return;
+				}
+			} finally {
+				c.close();
+			}
+			try {
+				Thread.sleep(CHECKPOINT_DELAY);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted during checkpoint.");
+			}
+		}
+		throw new IOException("Unable to checkpoint " + db.getPath());
+	}
+
+	/**
+	 * Marks a database file without a log as using a rollback journal,
+	 * which is what SQLite does itself when leaving write ahead logging.
+	 * @param database the database file
+	 * @throws IOException if the file can not be updated
+	 */
+	static void reset(final File database) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(database, "rw");
+		try {
+			if (file.length() <= VERSION_OFFSET + 1) {
+				return;
+			}
+			file.seek(VERSION_OFFSET);
+			if (file.read() == VERSION_WAL && file.read() == VERSION_WAL) {
+				file.seek(VERSION_OFFSET);
+				file.write(VERSION_ROLLBACK);
+				file.write(VERSION_ROLLBACK);
+			}
+		} finally {
+			file.close();
+		}
+	}
+}
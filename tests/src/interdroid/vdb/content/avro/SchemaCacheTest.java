@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.avro;
+
+import junit.framework.TestCase;
+
+import org.apache.avro.Schema;
+
+/**
+ * Checks the fingerprints computed by {@link SchemaCache} against the
+ * values given for the CRC-64-AVRO fingerprint by the Avro
+ * specification and that schemas differing only in properties are
+ * cached apart.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class SchemaCacheTest extends TestCase {
+
+	/**
+	 * Schemas with their canonical form and fingerprint.
+	 */
+	private static final Object[][] FINGERPRINTS = {
+		{"\"null\"", "\"null\"", 7195948357588979594L},
+		{"{\"type\":\"boolean\"}", "\"boolean\"", -6970731678124411036L},
+		{"\"int\"", "\"int\"", 8247732601305521295L},
+		{"\"long\"", "\"long\"", -3434872931120570953L},
+		{"\"float\"", "\"float\"", 5583340709985441680L},
+		{"\"double\"", "\"double\"", -8181574048448539266L},
+		{"\"bytes\"", "\"bytes\"", 5746618253357095269L},
+		{"\"string\"", "\"string\"", -8142146995180207161L},
+		{"[]", "[]", -1241056759729112623L},
+		{"[\"int\"]", "[\"int\"]", -5232228896498058493L},
+		{"[\"int\", \"boolean\"]", "[\"int\",\"boolean\"]",
+			5392556393470105090L},
+		{"{\"fields\": [], \"type\": \"record\", \"name\": \"foo\"}",
+			"{\"name\":\"foo\",\"type\":\"record\",\"fields\":[]}",
+			-4824392279771201922L},
+		{"{\"fields\": [], \"type\": \"record\", \"name\": \"foo\","
+			+ " \"namespace\": \"x.y\"}",
+			"{\"name\":\"x.y.foo\",\"type\":\"record\",\"fields\":[]}",
+			5916914534497305771L},
+		{"{\"type\": \"record\", \"name\": \"foo\", \"doc\": \"Useful\","
+			+ " \"fields\": [{\"name\": \"f1\", \"type\": \"boolean\","
+			+ " \"default\": true}]}",
+			"{\"name\":\"foo\",\"type\":\"record\",\"fields\":"
+			+ "[{\"name\":\"f1\",\"type\":\"boolean\"}]}",
+			7843277075252814651L},
+		{"{\"type\": \"enum\", \"name\": \"foo\", \"symbols\": [\"A1\"]}",
+			"{\"name\":\"foo\",\"type\":\"enum\",\"symbols\":[\"A1\"]}",
+			-6342190197741309591L},
+		{"{\"type\": \"fixed\", \"name\": \"foo\", \"size\": 15}",
+			"{\"name\":\"foo\",\"type\":\"fixed\",\"size\":15}",
+			1756455273707447556L},
+		{"{\"type\": \"array\", \"items\": \"null\"}",
+			"{\"type\":\"array\",\"items\":\"null\"}",
+			-589620603366471059L},
+		{"{\"type\": \"map\", \"values\": \"string\"}",
+			"{\"type\":\"map\",\"values\":\"string\"}",
+			-8732877298790414990L},
+	};
+
+	/**
+	 * Checks the canonical forms and fingerprints.
+	 */
+	public final void testFingerprint() {
+		for (Object[] test : FINGERPRINTS) {
+			Schema schema = Schema.parse((String) test[0]);
+			assertEquals(test[1], SchemaCache.toCanonicalForm(schema));
+			assertEquals(((Long) test[2]).longValue(),
+					SchemaCache.fingerprint(schema));
+		}
+	}
+
+	/**
+	 * Checks that schemas which only differ in properties share a
+	 * fingerprint but not an entry.
+	 */
+	public final void testPropertiesNotShared() {
+		String schema = "{\"type\": \"record\", \"name\": \"note\","
+				+ " \"namespace\": \"test.cache\", %s \"fields\":"
+				+ " [{\"name\": \"title\", \"type\": \"string\"}]}";
+		SchemaCache.Entry plain = SchemaCache.get(
+				String.format(schema, ""));
+		SchemaCache.Entry merged = SchemaCache.get(String.format(schema,
+				"\"conflictPolicy\": \"theirs\","));
+		assertEquals(plain.getFingerprint(), merged.getFingerprint());
+		assertNotSame(plain, merged);
+		assertNull(plain.getSchema().getProp("conflictPolicy"));
+		assertEquals("theirs", merged.getSchema().getProp("conflictPolicy"));
+	}
+}
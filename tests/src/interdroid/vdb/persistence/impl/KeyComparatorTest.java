@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * Checks that {@link KeyComparator} orders keys the way SQLite sorts
+ * them, which the three way diff depends on.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class KeyComparatorTest extends TestCase {
+
+	/**
+	 * Text in the order SQLite sorts it, by code point.
+	 */
+	private static final String[] SORTED_TEXT = {
+		"",
+		"A",
+		"AB",
+		"B",
+		"a",
+		"\u00e9",
+		"\ud7ff",
+		"\ue000",
+		"\uffff",
+		"\ud800\udc00",
+		"\ud83d\ude00",
+		"\udbff\udfff",
+	};
+
+	/**
+	 * Checks that every pair of texts is ordered by code point, which
+	 * places surrogate pairs after all other chars.
+	 */
+	public final void testCompareText() {
+		for (int i = 0; i < SORTED_TEXT.length; i++) {
+			for (int j = 0; j < SORTED_TEXT.length; j++) {
+				int order = compareText(SORTED_TEXT[i], SORTED_TEXT[j]);
+				assertEquals(SORTED_TEXT[i] + " <> " + SORTED_TEXT[j],
+						Integer.signum(i - j), Integer.signum(order));
+			}
+		}
+	}
+
+	/**
+	 * Checks that only the given number of chars are compared, since
+	 * the buffers are reused and may hold more.
+	 */
+	public final void testCompareTextLength() {
+		char[] ours = "abcx".toCharArray();
+		char[] theirs = "abcy".toCharArray();
+		assertEquals(0, KeyComparator.compareText(ours, 3, theirs, 3));
+		assertTrue(KeyComparator.compareText(ours, 2, theirs, 3) < 0);
+		assertTrue(KeyComparator.compareText(ours, 4, theirs, 4) < 0);
+	}
+
+	/**
+	 * Checks that NULL sorts before any value.
+	 */
+	public final void testNullFirst() {
+		KeyComparator[] comparators = KeyComparator.forKey(
+				Arrays.asList(DatabaseFieldType.TEXT));
+		assertTrue(compareKeys(comparators, new Object[] {null},
+				new Object[] {""}) < 0);
+		assertTrue(compareKeys(comparators, new Object[] {""},
+				new Object[] {null}) > 0);
+		assertEquals(0, compareKeys(comparators, new Object[] {null},
+				new Object[] {null}));
+	}
+
+	/**
+	 * Checks that composite keys are ordered by their first column and
+	 * only then by the next one.
+	 */
+	public final void testCompositeKeys() {
+		KeyComparator[] comparators = KeyComparator.forKey(Arrays.asList(
+				DatabaseFieldType.INTEGER, DatabaseFieldType.TEXT));
+		assertTrue(compareKeys(comparators, new Object[] {1L, "b"},
+				new Object[] {2L, "a"}) < 0);
+		assertTrue(compareKeys(comparators, new Object[] {2L, "a"},
+				new Object[] {2L, "b"}) < 0);
+		assertTrue(compareKeys(comparators, new Object[] {2L, null},
+				new Object[] {2L, "a"}) < 0);
+		assertTrue(compareKeys(comparators, new Object[] {null, "b"},
+				new Object[] {1L, "a"}) < 0);
+		assertEquals(0, compareKeys(comparators, new Object[] {2L, "a"},
+				new Object[] {2L, "a"}));
+	}
+
+	/**
+	 * Compares two strings with {@link KeyComparator#compareText}.
+	 * @param ours our text
+	 * @param theirs their text
+	 * @return the order of the texts
+	 */
+	private static int compareText(final String ours, final String theirs) {
+		return KeyComparator.compareText(ours.toCharArray(), ours.length(),
+				theirs.toCharArray(), theirs.length());
+	}
+
+	/**
+	 * Compares two keys with {@link KeyComparator#compareKeys}.
+	 * @param comparators the comparators for the key columns
+	 * @param ours our key
+	 * @param theirs their key
+	 * @return the order of the keys
+	 */
+	private static int compareKeys(final KeyComparator[] comparators,
+			final Object[] ours, final Object[] theirs) {
+		Cursor ourRow = row(ours);
+		Cursor theirRow = row(theirs);
+		try {
+			return KeyComparator.compareKeys(comparators, ourRow, theirRow);
+		} finally {
+			ourRow.close();
+			theirRow.close();
+		}
+	}
+
+	/**
+	 * @param values the values of a key
+	 * @return a cursor positioned on a row holding the values
+	 */
+	private static Cursor row(final Object[] values) {
+		String[] columns = new String[values.length];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = "k" + i;
+		}
+		MatrixCursor cursor = new MatrixCursor(columns, 1);
+		cursor.addRow(values);
+		cursor.moveToFirst();
+		return cursor;
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * Measures how fast a {@link ThreeWayDiffCursor} walks the changes of
+ * large tables for the supported kinds of keys. Every run also checks
+ * that each changed key is visited exactly once, which only holds if
+ * the keys are compared in the order SQLite sorts them.
+ *
+ * The default number of rows keeps the suite short. Raise {@link #ROWS}
+ * to a few million when measuring.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+@LargeTest
+public class ThreeWayDiffCursorBenchmark extends AndroidTestCase {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ThreeWayDiffCursorBenchmark.class);
+
+	/**
+	 * The number of rows in the benchmarked tables.
+	 */
+	private static final int ROWS = 20000;
+
+	/**
+	 * Every row with a key divisible by this is changed on our side.
+	 */
+	private static final int OURS_UPDATED = 7;
+
+	/**
+	 * Every row with a key divisible by this is changed on their side.
+	 */
+	private static final int THEIRS_UPDATED = 5;
+
+	/**
+	 * Every row with a key divisible by this is deleted on their side.
+	 */
+	private static final int THEIRS_DELETED = 11;
+
+	/**
+	 * The number of values of the second column of composite keys.
+	 */
+	private static final int COMPOSITE_WIDTH = 100;
+
+	/**
+	 * The names the merged databases are attached as.
+	 */
+	private static final String[] DATABASES = {"base", "ours", "theirs"};
+
+	/**
+	 * The name of the benchmarked table.
+	 */
+	private static final String TABLE = "bench";
+
+	/**
+	 * The database holding the merged databases.
+	 */
+	private SQLiteDatabase mDb;
+
+	@Override
+	protected final void setUp() throws Exception {
+		super.setUp();
+		mDb = SQLiteDatabase.create(null);
+		for (String database : DATABASES) {
+			mDb.execSQL("ATTACH DATABASE ':memory:' AS " + database);
+		}
+	}
+
+	@Override
+	protected final void tearDown() throws Exception {
+		mDb.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Benchmarks integer keys.
+	 */
+	public final void testIntegerKeys() {
+		createTables("k INTEGER PRIMARY KEY, v INTEGER");
+		fill("INSERT INTO base." + TABLE + " VALUES (?, 0)",
+				new RowBinder() {
+			public void bind(final SQLiteStatement insert, final int row) {
+				insert.bindLong(1, row);
+			}
+		});
+		run("integer", "k");
+	}
+
+	/**
+	 * Benchmarks text keys, which SQLite sorts differently from the
+	 * numbers they hold.
+	 */
+	public final void testTextKeys() {
+		createTables("k TEXT PRIMARY KEY, n INTEGER, v INTEGER");
+		fill("INSERT INTO base." + TABLE + " VALUES (?, ?, 0)",
+				new RowBinder() {
+			public void bind(final SQLiteStatement insert, final int row) {
+				insert.bindString(1, "key-" + row);
+				insert.bindLong(2, row);
+			}
+		});
+		run("text", "n");
+	}
+
+	/**
+	 * Benchmarks real keys.
+	 */
+	public final void testRealKeys() {
+		createTables("k REAL PRIMARY KEY, n INTEGER, v INTEGER");
+		fill("INSERT INTO base." + TABLE + " VALUES (?, ?, 0)",
+				new RowBinder() {
+			public void bind(final SQLiteStatement insert, final int row) {
+				insert.bindDouble(1, row / 4.0);
+				insert.bindLong(2, row);
+			}
+		});
+		run("real", "n");
+	}
+
+	/**
+	 * Benchmarks blob keys.
+	 */
+	public final void testBlobKeys() {
+		createTables("k BLOB PRIMARY KEY, n INTEGER, v INTEGER");
+		fill("INSERT INTO base." + TABLE + " VALUES (?, ?, 0)",
+				new RowBinder() {
+			public void bind(final SQLiteStatement insert, final int row) {
+				insert.bindBlob(1, new byte[] {(byte) row, (byte) (row >> 8),
+						(byte) (row >> 16), (byte) (row >> 24)});
+				insert.bindLong(2, row);
+			}
+		});
+		run("blob", "n");
+	}
+
+	/**
+	 * Benchmarks composite keys of an integer and a text column.
+	 */
+	public final void testCompositeKeys() {
+		createTables("a INTEGER, b TEXT, n INTEGER, v INTEGER,"
+				+ " PRIMARY KEY (a, b)");
+		fill("INSERT INTO base." + TABLE + " VALUES (?, ?, ?, 0)",
+				new RowBinder() {
+			public void bind(final SQLiteStatement insert, final int row) {
+				insert.bindLong(1, row / COMPOSITE_WIDTH);
+				insert.bindString(2, String.valueOf(row % COMPOSITE_WIDTH));
+				insert.bindLong(3, row);
+			}
+		});
+		run("composite", "n");
+	}
+
+	/**
+	 * Binds the values of a row to an insert statement.
+	 */
+	private interface RowBinder {
+		/**
+		 * @param insert the statement to bind to
+		 * @param row the number of the row
+		 */
+		void bind(SQLiteStatement insert, int row);
+	}
+
+	/**
+	 * Creates the benchmarked table in all databases.
+	 * @param columns the column definitions of the table
+	 */
+	private void createTables(final String columns) {
+		mDb.execSQL("CREATE TABLE " + TABLE + " (" + columns + ")");
+		for (String database : DATABASES) {
+			mDb.execSQL("CREATE TABLE " + database + "." + TABLE + " ("
+					+ columns + ")");
+		}
+	}
+
+	/**
+	 * Fills the base table and copies it to both sides.
+	 * @param sql the statement inserting a row
+	 * @param binder binds the values of each row
+	 */
+	private void fill(final String sql, final RowBinder binder) {
+		SQLiteStatement insert = mDb.compileStatement(sql);
+		mDb.beginTransaction();
+		try {
+			for (int row = 0; row < ROWS; row++) {
+				binder.bind(insert, row);
+				insert.executeInsert();
+			}
+			mDb.execSQL("INSERT INTO ours." + TABLE + " SELECT * FROM base."
+					+ TABLE);
+			mDb.execSQL("INSERT INTO theirs." + TABLE
+					+ " SELECT * FROM base." + TABLE);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			insert.close();
+		}
+	}
+
+	/**
+	 * Changes both sides, then walks their changes and logs the time
+	 * taken.
+	 * @param name the name of the benchmark
+	 * @param number the column holding the number of each row
+	 */
+	private void run(final String name, final String number) {
+		mDb.execSQL("UPDATE ours." + TABLE + " SET v = 1 WHERE " + number
+				+ " % " + OURS_UPDATED + " = 0");
+		mDb.execSQL("UPDATE theirs." + TABLE + " SET v = 2 WHERE " + number
+				+ " % " + THEIRS_UPDATED + " = 0");
+		mDb.execSQL("DELETE FROM theirs." + TABLE + " WHERE " + number
+				+ " % " + THEIRS_DELETED + " = 0");
+		int expected = 0;
+		for (int row = 0; row < ROWS; row++) {
+			if (row % OURS_UPDATED == 0 || row % THEIRS_UPDATED == 0
+					|| row % THEIRS_DELETED == 0) {
+				expected++;
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		int visited = 0;
+		ThreeWayDiffCursor diff = new MergeHelper().diff3(mDb, TABLE);
+		try {
+			for (boolean more = diff.moveToFirst(); more;
+					more = diff.moveToNext()) {
+				visited++;
+			}
+		} finally {
+			diff.close();
+		}
+		long time = System.currentTimeMillis() - start;
+		LOG.info("Diffed " + ROWS + " rows with " + name + " keys in "
+				+ time + " ms: " + (visited * 1000L / Math.max(time, 1))
+				+ " changed rows per second");
+		assertEquals(expected, visited);
+	}
+}